@@ -0,0 +1,26 @@
+package benchmarks;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks with the JMH command line options, always with
+ * the allocation profiler (-prof gc): the bytes allocated per operation
+ * (gc.alloc.rate.norm) are reported next to the times, so that a hot
+ * path that starts allocating shows up as a number.
+ * Usage: java -jar benchmarks/target/benchmarks.jar [JMH options] [benchmarks regexp]
+ */
+public class Main {
+
+	public static void main(String[] args) throws Exception {
+		Options options = new OptionsBuilder()
+				.parent(new CommandLineOptions(args))
+				.addProfiler(GCProfiler.class)
+				.build();
+		new Runner(options).run();
+	}
+
+}
@@ -0,0 +1,68 @@
+package clients;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import documents.Document;
+
+/**
+ * Lookups in the client cache, for hits and misses, with both eviction
+ * policies and several numbers of cached documents. The cache budget
+ * holds them all: a lookup never evicts. See test.CacheBenchmark for the
+ * hit rates.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CacheBenchmark {
+
+	private static final int DOCUMENT_SIZE = 64;
+
+	@Param({ "100", "10000", "100000" })
+	int documents;
+
+	@Param({ "lru", "wtinylfu" })
+	String policy;
+
+	private Cache cache;
+	private String[] names;
+	private int next;
+
+	@Setup
+	public void setup() {
+		I_EvictionPolicy evictionPolicy = policy.equals("lru") ? new LruPolicy()
+				: new WTinyLfuPolicy(Integer.highestOneBit(documents * 4) * 2);
+		cache = new Cache((long) documents * DOCUMENT_SIZE, evictionPolicy);
+		names = new String[documents];
+		for (int i = 0; i < documents; i++) {
+			names[i] = "doc" + i;
+			cache.addCachedDocument(names[i], new byte[DOCUMENT_SIZE], 1);
+		}
+	}
+
+	@Benchmark
+	public Document hit() {
+		next = next + 1 == names.length ? 0 : next + 1;
+		return cache.getDocumentFromName(names[next]);
+	}
+
+	@Benchmark
+	public Document miss() {
+		return cache.getDocumentFromName("absent");
+	}
+
+}
@@ -0,0 +1,69 @@
+package documents;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The DOCUMENTS_LIST answer of a server over directories of many
+ * (empty) documents
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DocumentsListBenchmark {
+
+	@Param({ "100", "1000", "10000" })
+	int documents;
+
+	private File directory;
+	private DocumentsSet documentsSet;
+
+	@Setup
+	public void setup() throws IOException {
+		directory = Files.createTempDirectory("documents").toFile();
+		for (int i = 0; i < documents; i++) {
+			new File(directory, "document" + i + ".txt").createNewFile();
+		}
+		documentsSet = new DocumentsSet(directory.getPath());
+	}
+
+	@TearDown
+	public void tearDown() {
+		documentsSet.close();
+		delete(directory);
+	}
+
+	@Benchmark
+	public String getDocumentsList() {
+		return documentsSet.getDocumentsList();
+	}
+
+	private static void delete(File file) {
+		File[] files = file.listFiles();
+		if (files != null) {
+			for (File child : files) {
+				delete(child);
+			}
+		}
+		file.delete();
+	}
+
+}
@@ -0,0 +1,98 @@
+package documents;
+
+import java.io.IOException;
+import java.nio.channels.SocketChannel;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import nioEngine.I_NioEngine;
+
+/**
+ * Throughput of the document locks (the LockManager of a DocumentsSet):
+ * lock and unlock of a free document, read leases, and the handoff of a
+ * lock to a waiting client. Each thread works on its own documents, as
+ * clients of different documents do; the threads only share the maps of
+ * the manager. The clients are unconnected channels, only their identity
+ * matters.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(4)
+public class LockManagerBenchmark {
+
+	private LockManager lockManager;
+
+	@State(Scope.Thread)
+	public static class Clients {
+
+		Document document;
+		SocketChannel owner;
+		SocketChannel next;
+		Waiter ownerLock;
+		Waiter nextLock;
+		Waiter ownerRead;
+
+		@Setup
+		public void setup() throws IOException {
+			document = new Document("doc" + System.identityHashCode(this), new byte[0], 1);
+			owner = SocketChannel.open();
+			next = SocketChannel.open();
+			ownerLock = new Waiter(owner, 1, I_NioEngine.LOCK, 0);
+			nextLock = new Waiter(next, 2, I_NioEngine.LOCK, 0);
+			ownerRead = new Waiter(owner, 3, I_NioEngine.READ, 0);
+		}
+
+		@TearDown
+		public void tearDown() throws IOException {
+			owner.close();
+			next.close();
+		}
+	}
+
+	@Setup
+	public void setup() {
+		lockManager = new LockManager();
+	}
+
+	@Benchmark
+	public List<Waiter> lockUnlock(Clients clients) {
+		lockManager.acquire(clients.document, clients.ownerLock);
+		return lockManager.unlock(clients.document, clients.owner);
+	}
+
+	@Benchmark
+	public List<Waiter> readLease(Clients clients) {
+		lockManager.acquire(clients.document, clients.ownerRead);
+		return lockManager.releaseRead(clients.document, clients.owner);
+	}
+
+	/**
+	 * A client waits for the lock, granted when the owner unlocks
+	 */
+	@Benchmark
+	public List<Waiter> handoff(Clients clients) {
+		lockManager.acquire(clients.document, clients.ownerLock);
+		lockManager.acquire(clients.document, clients.nextLock);
+		List<Waiter> granted = lockManager.unlock(clients.document, clients.owner);
+		lockManager.unlock(clients.document, clients.next);
+		return granted;
+	}
+
+}
@@ -0,0 +1,51 @@
+package documents;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Fixed-length string form of the revision numbers, both ways
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RevisionNumberBenchmark {
+
+	// few digits: the most padding
+	@Param({ "7", "1234567" })
+	int revision;
+
+	private RevisionNumber number;
+	private String encoded;
+
+	@Setup
+	public void setup() {
+		number = new RevisionNumber(revision);
+		encoded = number.toString();
+	}
+
+	@Benchmark
+	public String encode() {
+		return number.toString();
+	}
+
+	@Benchmark
+	public int decode() {
+		return RevisionNumber.decode(encoded);
+	}
+
+}
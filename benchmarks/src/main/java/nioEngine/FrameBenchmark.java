@@ -0,0 +1,85 @@
+package nioEngine;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import documents.Document;
+
+/**
+ * Encoding of the messages sent (wholeMessage, then the frame header as
+ * NioEngine.send does) and decoding of the frames received, as
+ * SelectorLoop.handleRead does once a frame is complete: a pooled buffer
+ * filled with the frame, decoded, released. In this package to reach the
+ * engine internals.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FrameBenchmark {
+
+	@Param({ "256", "16384" })
+	int payloadSize;
+
+	private Document document;
+	private BufferPool pool;
+	// a received frame, without its length field
+	private ByteBuffer frame;
+
+	@Setup
+	public void setup() {
+		document = new Document("benchmark.txt", new byte[payloadSize], 12);
+		pool = new BufferPool();
+		ByteBuffer[] encoded = new Message(I_NioEngine.DOWNLOAD, 0, 42, "benchmark.txt", 12,
+				ByteBuffer.allocate(payloadSize)).encode();
+		frame = ByteBuffer.allocate(encoded[0].remaining() - 4 + encoded[1].remaining());
+		encoded[0].position(4);
+		frame.put(encoded[0]).put(encoded[1]).flip();
+	}
+
+	@Benchmark
+	public ByteBuffer[] wholeMessage() throws IOException {
+		return NioEngine.wholeMessage(I_NioEngine.DOWNLOAD, 42, document).encode();
+	}
+
+	/**
+	 * Header in a pooled buffer, released as it is once written
+	 */
+	@Benchmark
+	public void wholeMessagePooledHeader(Blackhole blackhole) throws IOException {
+		Message message = NioEngine.wholeMessage(I_NioEngine.DOWNLOAD, 42, document);
+		PooledBuffer header = message.encodeHeader(pool);
+		blackhole.consume(header.buffer());
+		blackhole.consume(message.getPayload());
+		header.release();
+	}
+
+	@Benchmark
+	public void decode(Blackhole blackhole) throws IOException {
+		PooledBuffer buffer = pool.acquire(frame.remaining());
+		buffer.buffer().put(frame.duplicate());
+		buffer.buffer().flip();
+		try {
+			blackhole.consume(Message.decode(buffer));
+		} finally {
+			buffer.release();
+		}
+	}
+
+}
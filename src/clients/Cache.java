@@ -1,14 +1,28 @@
 package clients;
 
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Predicate;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import nioEngine.I_NioEngine;
+import documents.Delta;
 import documents.Document;
 
+/**
+ * Client cache of documents, indexed by name and bounded by the total size
+ * of their content. When the budget is exceeded, documents chosen by the
+ * eviction policy are dropped, except the ones pinned because the client
+ * holds their lock (they are the only copy of the changes).
+ * A document received from the server may be read from the cache, without
+ * asking the server, while its lease runs and it was not invalidated.
+ */
 public class Cache {
 	
-	public static final int CAPACITY = 10; // max number of documents in the cache
+	public static final long DEFAULT_BUDGET = 16 * 1024 * 1024; // max number of cached bytes
 	
 	/**
 	 * Cache representation of a document (bytes array)
@@ -16,9 +30,23 @@ public class Cache {
 	private class CachedDocument {
 		String name;
 		byte[] data;
-		public CachedDocument(String name, byte[] data) {
+		int revision;
+		// content of the revision on the server, data is replaced on changes
+		byte[] base;
+		// the revision is known to be up to date until then
+		long leaseExpiry;
+		// the server has a newer revision
+		boolean stale;
+		public CachedDocument(String name, byte[] data, int revision) {
 			this.name = name;
 			this.data = data;
+			this.revision = revision;
+			this.base = data;
+			renewLease();
+		}
+		void renewLease() {
+			leaseExpiry = System.currentTimeMillis() + I_NioEngine.LEASE_DURATION;
+			stale = false;
 		}
 		public String getName() {
 			return name;
@@ -27,88 +55,197 @@ public class Cache {
 			return data;
 		}
 		public void setData(byte[] data) {
+			cachedBytes += data.length - this.data.length;
 			this.data = data;
 		}
 	}
 	
-	private CachedDocument[] documents;
-	private int cachedDocumentsNumber;
-	
-	public int getCachedDocumentsNumber() {
-		return cachedDocumentsNumber;
-	}
+	// in insertion order, for the listings
+	private Map<String, CachedDocument> documents;
+	private Set<String> pinned;
+	private I_EvictionPolicy evictionPolicy;
+	private Predicate<String> evictable;
+	private long budget;
+	private long cachedBytes;
+	private long hits;
+	private long misses;
+	private long evictions;
 
 	private static final Logger logger = Logger.getLogger(DocumentClient.class.getName());
 	
 	public Cache() {
-		documents = new CachedDocument[CAPACITY];
-		cachedDocumentsNumber = 0;
+		this(DEFAULT_BUDGET, new WTinyLfuPolicy());
+	}
+	
+	/**
+	 * @param budget max number of cached bytes, pinned documents excepted
+	 * @param evictionPolicy
+	 */
+	public Cache(long budget, I_EvictionPolicy evictionPolicy) {
+		this.budget = budget;
+		this.evictionPolicy = evictionPolicy;
+		documents = new LinkedHashMap<String, CachedDocument>();
+		pinned = new HashSet<String>();
+		evictable = new Predicate<String>() {
+			@Override
+			public boolean test(String name) {
+				return !pinned.contains(name);
+			}
+		};
+	}
+	
+	public synchronized int getCachedDocumentsNumber() {
+		return documents.size();
 	}
 	
 	/**
-	 * Add a document to the cache
-	 * @param document a string containing the name and the content
+	 * Add a document to the cache, or replace the cached content
+	 * of a document downloaded again
+	 * @param name
+	 * @param data the content
+	 * @param revision the revision number of the content
 	 */
-	public void addCachedDocument(String document) {
-		if (cachedDocumentsNumber == CAPACITY) {
-			logger.log(Level.SEVERE, "the cache has reached is maximum capacity");
-			// TODO implement FIFO replacement
-			return;
+	public synchronized void addCachedDocument(String name, byte[] data, int revision) {
+		CachedDocument doc = documents.get(name);
+		if (doc != null) {
+			doc.setData(data);
+			doc.base = data;
+			doc.revision = revision;
+			doc.renewLease();
+			evictionPolicy.recordAccess(name);
+		}
+		else {
+			documents.put(name, new CachedDocument(name, data, revision));
+			cachedBytes += data.length;
+			evictionPolicy.recordInsertion(name);
 		}
-		String[] s = document.split(I_NioEngine.nameContentSeparator);
-		CachedDocument doc = new CachedDocument(s[0], s[1].getBytes());
-		documents[cachedDocumentsNumber++] = doc;
+		evict();
 	}
 	
 	/**
 	 * Return a physical document from a cached document (bytes)
-	 * @param index
-	 * @return
+	 * @param documentName
+	 * @return the document, null if it is not cached
 	 */
-	public Document toDocument(int index) {
-		if (index >=0 && index < cachedDocumentsNumber) {
-			CachedDocument cachedDocument = documents[index];
-			Document document = new Document(cachedDocument.getName(), cachedDocument.getName());
-			document.setData(cachedDocument.getData());
-			return document;
+	public synchronized Document getDocumentFromName(String documentName) {
+		CachedDocument cachedDocument = getDocument(documentName);
+		if (cachedDocument == null) {
+			return null;
 		}
-		return null;
+		return new Document(cachedDocument.getName(), cachedDocument.getData(),
+				cachedDocument.revision);
 	}
 	
-	public void appendToDocument(int index, byte[] data) {
-		if (index >=0 && index <= cachedDocumentsNumber) {
-			CachedDocument cachedDocument = documents[index];
+	public synchronized void appendToDocument(String url, byte[] data) {
+		CachedDocument cachedDocument = getDocument(url);
+		if (cachedDocument != null) {
 			int currentLength = cachedDocument.getData().length;
 			byte[] newData = new byte[currentLength + data.length];
 			System.arraycopy(cachedDocument.getData(), 0, newData, 0, currentLength);
 			System.arraycopy(data, 0, newData, currentLength, data.length);
 			cachedDocument.setData(newData);
+			evict();
 		}
 	}
 	
-	public void modifyDocument(String url, byte[] newContent) {
-		getDocument(url).setData(newContent);
+	public synchronized void modifyDocument(String url, byte[] newContent) {
+		CachedDocument cachedDocument = getDocument(url);
+		if (cachedDocument != null) {
+			cachedDocument.setData(newContent);
+			evict();
+		}
 	}
 	
-	public boolean exists(String url) {
-		for (int doc = 0; doc < cachedDocumentsNumber; doc++) {
-			if (documents[doc].getName().equals(url)) {
-				return true;
-			}
+	/**
+	 * Record the server revision of a cached document after its changes
+	 * have been committed: the current content becomes the base of the
+	 * next delta
+	 */
+	public synchronized void setRevision(String url, int revision) {
+		CachedDocument document = documents.get(url);
+		if (document != null) {
+			document.revision = revision;
+			document.base = document.data;
+			document.renewLease();
 		}
-		return false;
 	}
 	
-	public Document getDocumentFromName(String documentName) {
-		for (int doc = 0; doc < cachedDocumentsNumber; doc++) {
-			if (documents[doc].getName().equals(documentName)) {
-				return toDocument(doc);
-			}
+	/**
+	 * The server confirmed the revision of a cached document: it may be
+	 * read from the cache again
+	 */
+	public synchronized void renewLease(String url, int revision) {
+		CachedDocument document = documents.get(url);
+		if (document != null && document.revision == revision) {
+			document.renewLease();
 		}
-		return null;
 	}
 	
-	public byte[] getDocumentContent(String url) {
+	/**
+	 * The server has a new revision of a cached document
+	 */
+	public synchronized void invalidate(String url, int revision) {
+		CachedDocument document = documents.get(url);
+		if (document != null && document.revision != revision) {
+			document.stale = true;
+			document.leaseExpiry = 0;
+		}
+	}
+	
+	/**
+	 * @return true if the document may be read from the cache
+	 */
+	public synchronized boolean hasLease(String url) {
+		CachedDocument document = documents.get(url);
+		return document != null && !document.stale
+				&& System.currentTimeMillis() < document.leaseExpiry;
+	}
+	
+	/**
+	 * Changes made to a document since its revision was downloaded
+	 * @return the delta, null if it is not smaller than the whole content
+	 */
+	public synchronized Delta getDelta(String url) {
+		CachedDocument document = documents.get(url);
+		if (document == null) {
+			return null;
+		}
+		Delta delta = Delta.diff(document.base, document.getData());
+		if (delta.encode().remaining() >= document.getData().length) {
+			return null;
+		}
+		return delta;
+	}
+	
+	/**
+	 * Keep a document in the cache while the client holds its lock,
+	 * even if it is not cached yet
+	 */
+	public synchronized void pin(String url) {
+		pinned.add(url);
+	}
+	
+	/**
+	 * Let a document be evicted again
+	 */
+	public synchronized void unpin(String url) {
+		pinned.remove(url);
+		evict();
+	}
+	
+	/**
+	 * Look a document up, counted as a hit or a miss
+	 */
+	public synchronized boolean exists(String url) {
+		if (getDocument(url) != null) {
+			hits++;
+			return true;
+		}
+		misses++;
+		return false;
+	}
+	
+	public synchronized byte[] getDocumentContent(String url) {
 		CachedDocument document = getDocument(url);
 		if (document == null) {
 			return null;
@@ -116,40 +253,85 @@ public class Cache {
 		return document.getData();
 	}
 	
-	public String documentsList() {
+	public synchronized long getHits() {
+		return hits;
+	}
+	
+	public synchronized long getMisses() {
+		return misses;
+	}
+	
+	public synchronized long getEvictions() {
+		return evictions;
+	}
+	
+	/**
+	 * @return total size of the cached contents
+	 */
+	public synchronized long getCachedBytes() {
+		return cachedBytes;
+	}
+	
+	public synchronized String documentsList() {
 		String result = "";
-		for (int docIdx = 0; docIdx < cachedDocumentsNumber; docIdx++) {
-			result += documents[docIdx].getName() + "\n";
+		for (CachedDocument document : documents.values()) {
+			result += document.getName() + "\n";
 		}
 		return result;
 	}
 	
-	public String textContent() {
+	public synchronized String textContent() {
 		String result = "";
-		for (int docIdx = 0; docIdx < cachedDocumentsNumber; docIdx++) {
-			result += "Document "+docIdx+": "+documents[docIdx].getName() + "\n";
-			result += new String(documents[docIdx].getData()) + "\n";
+		for (CachedDocument document : documents.values()) {
+			result += "Document: "+document.getName() + "\n";
+			result += new String(document.getData()) + "\n";
 			result += "-----------------------\n";
 		}
+		result += statistics();
 		return result;
 	}
 	
-	public void print() {
+	public synchronized void print() {
 		System.out.println("--- cache content ---");
-		for (int docIdx = 0; docIdx < cachedDocumentsNumber; docIdx++) {
-			System.out.println("Document "+docIdx+": "+documents[docIdx].getName());
-			System.out.println(new String(documents[docIdx].getData()));
+		for (CachedDocument document : documents.values()) {
+			System.out.println("Document: "+document.getName());
+			System.out.println(new String(document.getData()));
 			System.out.println("-----------------------");
 		}
+		System.out.println(statistics());
 	}
 	
+	private String statistics() {
+		return cachedBytes + "/" + budget + " bytes, " + hits + " hits, " + misses
+				+ " misses, " + evictions + " evictions\n";
+	}
+	
+	/**
+	 * Cached document, its access is recorded by the eviction policy
+	 */
 	private CachedDocument getDocument(String url) {
-		for (int doc = 0; doc < cachedDocumentsNumber; doc++) {
-			if (documents[doc].getName().equals(url)) {
-				return documents[doc];
+		CachedDocument document = documents.get(url);
+		if (document != null) {
+			evictionPolicy.recordAccess(url);
+		}
+		return document;
+	}
+	
+	/**
+	 * Drop documents until the cache fits in its budget
+	 */
+	private void evict() {
+		while (cachedBytes > budget) {
+			String victim = evictionPolicy.selectVictim(evictable);
+			if (victim == null) {
+				logger.log(Level.WARNING, "cache over budget, all the cached documents are locked");
+				return;
 			}
+			CachedDocument document = documents.remove(victim);
+			cachedBytes -= document.getData().length;
+			evictionPolicy.recordRemoval(victim);
+			evictions++;
 		}
-		return null;
 	}
 
 }
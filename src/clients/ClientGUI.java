@@ -28,6 +28,7 @@ public class ClientGUI implements ActionListener {
 	private JTextField entryField;
 	private JButton buttonDisplayCache;
 	private JButton buttonGetDocument;
+	private JButton buttonReadDocument;
 	private JButton buttonUploadDocument;
 	private JButton buttonDocumentsList;
 	private JButton buttonModify;
@@ -49,18 +50,21 @@ public class ClientGUI implements ActionListener {
 
 		buttonDisplayCache = new JButton("Display cache");
 		buttonGetDocument = new JButton("Get document");
+		buttonReadDocument = new JButton("Read document");
 		buttonUploadDocument = new JButton("Upload document");
 		buttonDocumentsList = new JButton("Documents list");
 		buttonModify = new JButton("Modify");
 		buttonQuit = new JButton("Quit");
 		leftPanel.add(buttonDisplayCache, BorderLayout.SOUTH);
 		leftPanel.add(buttonGetDocument, BorderLayout.SOUTH);
+		leftPanel.add(buttonReadDocument, BorderLayout.SOUTH);
 		leftPanel.add(buttonUploadDocument, BorderLayout.SOUTH);
 		leftPanel.add(buttonDocumentsList, BorderLayout.SOUTH);
 		leftPanel.add(buttonModify, BorderLayout.SOUTH);
 		leftPanel.add(buttonQuit, BorderLayout.SOUTH);
 		buttonDisplayCache.addActionListener(this);
 		buttonGetDocument.addActionListener(this);
+		buttonReadDocument.addActionListener(this);
 		buttonUploadDocument.addActionListener(this);
 		buttonDocumentsList.addActionListener(this);
 		buttonModify.addActionListener(this);
@@ -96,6 +100,10 @@ public class ClientGUI implements ActionListener {
 				client.requestDocument(entryField.getText());
 				entryField.setText("");
 			} 
+			else if (btn == buttonReadDocument) {
+				client.readDocument(entryField.getText());
+				entryField.setText("");
+			} 
 			else if (btn == buttonUploadDocument) {
 				if (! client.unlockDocument(entryField.getText())) {
 					displayMessage("This document doesn't exist.");
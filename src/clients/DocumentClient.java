@@ -4,31 +4,41 @@ import java.io.IOException;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
 import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Set;
+import java.util.Timer;
+import java.util.TimerTask;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import nioEngine.DeflateCodec;
+import nioEngine.I_ChannelStateHandler;
 import nioEngine.I_NioEngine;
 import nioEngine.I_RecvMsgHandler;
+import nioEngine.Message;
 import nioEngine.NioEngine;
+import documents.Delta;
 import documents.Document;
-import documents.RevisionNumber;
 
 /**
  * This class contains the client methods to manage documents
  * TODO failures
  * TODO modify document
  */
-public class DocumentClient implements I_RecvMsgHandler {
+public class DocumentClient implements I_RecvMsgHandler, I_ChannelStateHandler {
 
 	private I_NioEngine nioEngine;
 	private Thread threadEngine;
-	private I_DocumentServer serverProxy;
+	private ServerProxy serverProxy;
 	private Cache cache;
 	private String name;
 	private Set<String> documentsLocked; // set of documents for which this client owns a lock
+	private Timer leaseTimer; // renews the leases on the locks
 	private ClientGUI clientGui;
 
 	private static final Logger logger = Logger.getLogger(DocumentClient.class.getName());
@@ -39,8 +49,9 @@ public class DocumentClient implements I_RecvMsgHandler {
 		name = clientName;
 		clientGui = new ClientGUI();
 		clientGui.setHandler(this);
-		documentsLocked = new HashSet<String>();
+		documentsLocked = Collections.synchronizedSet(new HashSet<String>());
 		nioEngine = new NioEngine();
+		nioEngine.setCompression(I_NioEngine.DEFAULT_COMPRESSION_THRESHOLD, new DeflateCodec());
 		threadEngine = new Thread(nioEngine);
 		try {
 			nioEngine.InitializeAsClient(InetAddress.getByName("localhost"), 9090, this);
@@ -49,6 +60,13 @@ public class DocumentClient implements I_RecvMsgHandler {
 				Thread.sleep(100);
 			} catch (InterruptedException ex) {}
 			serverProxy = new ServerProxy(nioEngine);
+			leaseTimer = new Timer("DocumentClient-leases", true);
+			leaseTimer.schedule(new TimerTask() {
+				@Override
+				public void run() {
+					renewLeases();
+				}
+			}, I_NioEngine.LEASE_DURATION / 3, I_NioEngine.LEASE_DURATION / 3);
 		} catch (UnknownHostException e) {
 			e.printStackTrace();
 		} catch (IOException e) {
@@ -57,39 +75,120 @@ public class DocumentClient implements I_RecvMsgHandler {
 	}
 
 	@Override
-	public void receivedCB(byte[] data, SocketChannel socketChannel) {
-		String stringData = new String(data);
-		int code = Integer.valueOf(stringData.substring(0,1));
-		String dataContent = stringData.substring(1);
-		switch (code) {
+	public void receivedCB(Message message, SocketChannel socketChannel) {
+		if (serverProxy != null && serverProxy.receivedReply(message)) {
+			// answer to an asynchronous request
+			return;
+		}
+		switch (message.getOpcode()) {
 		case I_NioEngine.DOWNLOAD:
-			logger.log(Level.INFO, "client received (DOWNLOAD): " + dataContent);
-			handleDownload(dataContent);
+			logger.log(Level.INFO, "client received (DOWNLOAD): " + message);
+			handleDownload(message);
 			break;
 		case I_NioEngine.DOWNLOAD_LOCKED:
-			logger.log(Level.INFO, "client received (DOWNLOAD_LOCKED): " + dataContent);
-			handleDownloadLocked(dataContent);
+			logger.log(Level.INFO, "client received (DOWNLOAD_LOCKED): " + message);
+			handleDownloadLocked(message);
+			break;
+		case I_NioEngine.READ:
+			logger.log(Level.INFO, "client received (READ): " + message);
+			handleRead(message);
+			break;
+		case I_NioEngine.NOT_MODIFIED:
+			logger.log(Level.INFO, "client received (NOT_MODIFIED): " + message);
+			if (message.hasFlag(I_NioEngine.FLAG_SHARED)) {
+				handleReadNotModified(message.getName(), message.getRevision());
+			}
+			else {
+				handleNotModified(message.getName(), message.getRevision());
+			}
+			break;
+		case I_NioEngine.RANGE_READ:
+			logger.log(Level.INFO, "client received (RANGE_READ): " + message);
+			clientGui.displayDocument(new String(message.getPayloadBytes()));
 			break;
 		case I_NioEngine.LOCK:
-			logger.log(Level.INFO, "client received (LOCK): " + dataContent);
-			handleLock(dataContent);
+			logger.log(Level.INFO, "client received (LOCK): " + message);
+			handleLock(message.getName(), message.getRevision());
 			break;
 		case I_NioEngine.ALREADY_LOCKED:
-			logger.log(Level.INFO, "client received (ALREADY_LOCKED): " + dataContent);
-			clientGui.displayMessage("The document "+dataContent+" is already locked."
+			logger.log(Level.INFO, "client received (ALREADY_LOCKED): " + message);
+			clientGui.displayMessage("The document "+message.getName()+" is already locked."
 					+ " It will be downloaded later.");
 			break;
+		case I_NioEngine.COMMIT:
+			logger.log(Level.INFO, "client received (COMMIT): " + message);
+			cache.setRevision(message.getName(), message.getRevision());
+			break;
+		case I_NioEngine.NOT_LOCKED:
+			logger.log(Level.INFO, "client received (NOT_LOCKED): " + message);
+			if (!message.hasFlag(I_NioEngine.FLAG_SHARED)) {
+				// the lock lease expired
+				documentsLocked.remove(message.getName());
+				cache.unpin(message.getName());
+				clientGui.displayMessage("The document "+message.getName()+" is not locked,"
+						+ " the changes have not been saved.");
+			}
+			break;
+		case I_NioEngine.RENEW:
+			logger.log(Level.INFO, "client received (RENEW): " + message);
+			break;
+		case I_NioEngine.INVALIDATE:
+			logger.log(Level.INFO, "client received (INVALIDATE): " + message);
+			cache.invalidate(message.getName(), message.getRevision());
+			break;
+		case I_NioEngine.STALE_REVISION:
+			logger.log(Level.INFO, "client received (STALE_REVISION): " + message);
+			// the document is still locked
+			documentsLocked.add(message.getName());
+			cache.pin(message.getName());
+			clientGui.displayMessage("The document "+message.getName()+" is at revision "
+					+ message.getRevision() + ", the changes have not been saved.");
+			break;
+		case I_NioEngine.UNKNOWN_DOCUMENT:
+			logger.log(Level.INFO, "client received (UNKNOWN_DOCUMENT): " + message);
+			clientGui.displayMessage("The document "+message.getName()+" doesn't exist.");
+			break;
 		case I_NioEngine.DOCUMENTS_LIST:
-			logger.log(Level.INFO, "client received (DOCUMENTS_LIST): " + dataContent);
-			clientGui.displayDocument(dataContent.replaceAll(I_NioEngine.documentsSeparator, "\n"));
+			logger.log(Level.INFO, "client received (DOCUMENTS_LIST): " + message);
+			clientGui.displayDocument(new String(message.getPayloadBytes())
+					.replaceAll(I_NioEngine.documentsSeparator, "\n"));
+			break;
+		case I_NioEngine.INVALID_REQUEST:
+			logger.log(Level.INFO, "client received (INVALID_REQUEST): " + message);
+			clientGui.displayMessage("The request on "+message.getName()+" was rejected: "
+					+ new String(message.getPayloadBytes(), StandardCharsets.UTF_8));
 			break;
 		default:
 			logger.log(Level.SEVERE, "client received unexpected message :"
-					+ dataContent);
+					+ message);
 			break;
 		}
 		clientGui.updateInfo(cachedAndLockedDocuments());
 	}
+
+	@Override
+	public void writableCB(SocketChannel socketChannel) {
+	}
+
+	/**
+	 * The connection to the server is closed: the requests in flight
+	 * fail, and the server has released the locks of the client
+	 */
+	@Override
+	public void disconnectedCB(SocketChannel socketChannel) {
+		logger.log(Level.WARNING, "DocumentClient: disconnected from the server");
+		if (serverProxy != null) {
+			serverProxy.disconnected();
+		}
+		synchronized (documentsLocked) {
+			for (String url : documentsLocked) {
+				cache.unpin(url);
+			}
+			documentsLocked.clear();
+		}
+		clientGui.displayMessage("The connection to the server is closed.");
+		clientGui.updateInfo(cachedAndLockedDocuments());
+	}
 	
 	/**
 	 * Main method to get a document from its url
@@ -97,21 +196,41 @@ public class DocumentClient implements I_RecvMsgHandler {
 	 * @param url the document URL
 	 */
 	public void requestDocument (String url) {
-		// the document is in the cache
+		// the server only sends the content if the cached revision is not
+		// the current one (0 if the document is not in the cache)
+		int cachedRevision = 0;
 		if (cache.exists(url)) {
-			// asks the server the revision number and a lock
-			serverProxy.lockDocument(url);
+			cachedRevision = cache.getDocumentFromName(url).getRevision().value();
 		}
-		// the document is not in the cache
+		// if the client owns the lock
+		if (documentsLocked.contains(url)) {
+			serverProxy.downloadLockedDocument(url, cachedRevision);
+		}
+		// the lock is requested with the document
 		else {
-			// if the client owns the lock
-			if (documentsLocked.contains(url) && !cache.exists(url)) {
-				serverProxy.downloadLockedDocument(url);
-			}			
-			// the client doesn't have the document neither the lock
-			else {
-				serverProxy.downloadDocument(url);
+			serverProxy.downloadDocument(url, cachedRevision);
+		}
+	}
+	
+	/**
+	 * Display a document without locking it: from the cache while its
+	 * lease runs, otherwise it is read from the server, along with other
+	 * readers
+	 * @param url the document URL
+	 */
+	public void readDocument(String url) {
+		if (cache.hasLease(url)) {
+			clientGui.displayDocument(new String(cache.getDocumentContent(url)));
+		}
+		else if (documentsLocked.contains(url)) {
+			requestDocument(url);
+		}
+		else {
+			int cachedRevision = 0;
+			if (cache.exists(url)) {
+				cachedRevision = cache.getDocumentFromName(url).getRevision().value();
 			}
+			serverProxy.readDocument(url, cachedRevision);
 		}
 	}
 	
@@ -125,62 +244,142 @@ public class DocumentClient implements I_RecvMsgHandler {
 	/**
 	 * Add the document to the cache and remember that
 	 * the client owns the lock on it
-	 * @param data
+	 * @param message
 	 */
-	private void handleDownload(String data){
-		cache.addCachedDocument(data);
-		documentsLocked.add(data.split(I_NioEngine.nameContentSeparator)[0]);
-		clientGui.displayDocument(data.split(I_NioEngine.nameContentSeparator)[1]);
+	private void handleDownload(Message message){
+		byte[] data = message.getPayloadBytes();
+		documentsLocked.add(message.getName());
+		cache.pin(message.getName());
+		cache.addCachedDocument(message.getName(), data, message.getRevision());
+		clientGui.displayDocument(new String(data));
 	}
 	
 	/**
 	 * Retrieve a document that was locked before
-	 * @param data
+	 * @param message
+	 */
+	private void handleDownloadLocked(Message message){
+		byte[] data = message.getPayloadBytes();
+		cache.addCachedDocument(message.getName(), data, message.getRevision());
+		clientGui.displayDocument(new String(data));
+	}
+	
+	/**
+	 * Cache and display a document read from the server, then release
+	 * the read lease: the cached copy stays valid until invalidated
+	 * @param message
+	 */
+	private void handleRead(Message message) {
+		byte[] data = message.getPayloadBytes();
+		cache.addCachedDocument(message.getName(), data, message.getRevision());
+		releaseRead(message.getName());
+		clientGui.displayDocument(new String(data));
+	}
+	
+	/**
+	 * The cached document is up to date, display it and release the read lease
+	 * @param documentName
+	 * @param revisionNumber the server revision number
 	 */
-	private void handleDownloadLocked(String data){
-		cache.addCachedDocument(data);
-		clientGui.displayDocument(data.split(I_NioEngine.nameContentSeparator)[1]);
+	private void handleReadNotModified(String documentName, int revisionNumber) {
+		cache.renewLease(documentName, revisionNumber);
+		releaseRead(documentName);
+		byte[] data = cache.getDocumentContent(documentName);
+		if (data != null) {
+			clientGui.displayDocument(new String(data));
+		}
+	}
+	
+	private void releaseRead(String documentName) {
+		// the owner of a document does not get a read lease
+		if (!documentsLocked.contains(documentName)) {
+			serverProxy.releaseRead(documentName);
+		}
+	}
+	
+	/**
+	 * The cached document is up to date, and locked for the client
+	 * @param documentName
+	 * @param revisionNumber the server revision number
+	 */
+	private void handleNotModified(String documentName, int revisionNumber) {
+		documentsLocked.add(documentName);
+		cache.pin(documentName);
+		cache.renewLease(documentName, revisionNumber);
+		byte[] data = cache.getDocumentContent(documentName);
+		if (data != null) {
+			clientGui.displayDocument(new String(data));
+		}
 	}
 	
 	/**
 	 * Get the lock on the document requested
 	 * If the cached version is not up to date, then the document
 	 * is downloaded again
-	 * @param data format: <document_name><separator><revision_number>
+	 * @param documentName
+	 * @param revisionNumber the server revision number
 	 */
-	private void handleLock(String data){
-		String documentName = data.split(I_NioEngine.nameContentSeparator)[0];
-		String revisionNumber = data.split(I_NioEngine.nameContentSeparator)[1];
+	private void handleLock(String documentName, int revisionNumber){
 		Document document = cache.getDocumentFromName(documentName);
 		documentsLocked.add(documentName);
+		cache.pin(documentName);
 		if (document == null){
 			serverProxy.downloadDocument(documentName);
 		}
-		else if (document.getRevision().value() != RevisionNumber.decode(revisionNumber)) {
+		else if (document.getRevision().value() != revisionNumber) {
 			serverProxy.downloadLockedDocument(documentName);
 		}
+		else {
+			cache.renewLease(documentName, revisionNumber);
+		}
 	}
 	
 	/**
 	 * Upload and unlock a document
+	 * Only the changes are sent when they are smaller than the document
 	 * @param url
 	 * @return true if the document has been uploaded, i.e. it is in cache
 	 */
 	public boolean unlockDocument(String url) {
 		Document document = cache.getDocumentFromName(url);
 		if (document != null && documentsLocked.contains(url)) {
-			serverProxy.unlockDocument(document);
+			Delta delta = cache.getDelta(url);
+			if (delta == null) {
+				serverProxy.unlockDocument(document);
+			}
+			else {
+				serverProxy.commitDelta(url, document.getRevision().value(), delta);
+			}
 			documentsLocked.remove(document.getName());
+			cache.unpin(document.getName());
 			clientGui.updateInfo(cachedAndLockedDocuments());
 			return true;
 		}
 		return false;
 	}
 	
+	/**
+	 * Keep the locks of the client, the server gives a lock that is not
+	 * renewed to the next client
+	 */
+	private void renewLeases() {
+		List<String> names;
+		synchronized (documentsLocked) {
+			names = new ArrayList<String>(documentsLocked);
+		}
+		for (String name : names) {
+			serverProxy.renewLease(name);
+		}
+	}
+	
 	public I_DocumentServer getServerProxy() {
 		return serverProxy;
 	}
 	
+	public I_AsyncDocumentServer getAsyncServerProxy() {
+		return serverProxy;
+	}
+	
 	public Cache getCache() {
 		return cache;
 	}
@@ -195,9 +394,11 @@ public class DocumentClient implements I_RecvMsgHandler {
 	 */
 	public String cachedAndLockedDocuments() {
 		String result = "Locked documents:\n";
-		Iterator<String> docName = documentsLocked.iterator();
-		while (docName.hasNext()) {
-			result += docName.next() + "\n";
+		synchronized (documentsLocked) {
+			Iterator<String> docName = documentsLocked.iterator();
+			while (docName.hasNext()) {
+				result += docName.next() + "\n";
+			}
 		}
 		result += "\nCached documents:\n" + cache.documentsList();
 		return result;
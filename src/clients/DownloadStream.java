@@ -0,0 +1,227 @@
+package clients;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.function.BiConsumer;
+
+import nioEngine.I_NioEngine;
+import documents.Document;
+
+/**
+ * A document downloaded into a file in chunks (RANGE_READ), with
+ * STREAM_WINDOW chunks in flight: the memory used does not depend on the
+ * size of the document.
+ * The chunks are written to a part file named after the revision, renamed
+ * over the file once complete. They are written in order, so that the part
+ * file is always a prefix of the revision: an interrupted download is
+ * resumed from its end if the document still has the same revision.
+ * A document changed during the download is downloaded again.
+ */
+class DownloadStream {
+
+	private static final String PART_SUFFIX = ".part";
+	// downloads started again when the document changes meanwhile
+	private static final int MAX_RESTARTS = 3;
+
+	private final ServerProxy serverProxy;
+	private final String url;
+	private final File file;
+	private final CompletableFuture<Integer> result;
+
+	// guarded by this
+	// revision downloaded, 0 until the first chunk gives it
+	private int revision;
+	private File partFile;
+	private FileChannel channel;
+	// end of the chunks requested, and of the chunks written
+	private long requested;
+	private long written;
+	// length of the document once its last chunk is received, -1 until then
+	private long end;
+	private int inFlight;
+	// true once the document has changed, until the chunks in flight are received
+	private boolean stale;
+	private int restarts;
+	// chunks received before the ones preceding them, by offset
+	private final Map<Long, ByteBuffer> received;
+
+	DownloadStream(ServerProxy serverProxy, String url, File file) {
+		this.serverProxy = serverProxy;
+		this.url = url;
+		this.file = file;
+		result = new CompletableFuture<Integer>();
+		received = new HashMap<Long, ByteBuffer>();
+	}
+
+	/**
+	 * Request the first chunk, which gives the revision, the others are
+	 * requested when it is received
+	 * @return the future completed with the revision downloaded
+	 */
+	synchronized CompletableFuture<Integer> start() {
+		try {
+			resume();
+		} catch (IOException e) {
+			result.completeExceptionally(e);
+			return result;
+		}
+		request();
+		return result;
+	}
+
+	/**
+	 * Start from the part file left by a previous download, if any
+	 */
+	private void resume() throws IOException {
+		File directory = file.getAbsoluteFile().getParentFile();
+		String prefix = file.getName() + ".";
+		File[] files = directory.listFiles();
+		if (files != null) {
+			for (File part : files) {
+				String name = part.getName();
+				if (!name.startsWith(prefix) || !name.endsWith(PART_SUFFIX)) {
+					continue;
+				}
+				String number = name.substring(prefix.length(), name.length() - PART_SUFFIX.length());
+				if (partFile == null && number.matches("\\d+")) {
+					partFile = part;
+					revision = Integer.parseInt(number);
+				}
+				else if (number.matches("\\d+")) {
+					part.delete();
+				}
+			}
+		}
+		if (partFile != null) {
+			channel = FileChannel.open(partFile.toPath(), StandardOpenOption.WRITE);
+			written = channel.size();
+		}
+		requested = written;
+		end = -1;
+	}
+
+	private void request() {
+		final long offset = requested;
+		requested += I_NioEngine.CHUNK_SIZE;
+		inFlight++;
+		ByteBuffer range = ByteBuffer.allocate(12);
+		range.putLong(offset).putInt(I_NioEngine.CHUNK_SIZE).flip();
+		CompletableFuture<Document> reply = serverProxy.request(I_NioEngine.RANGE_READ, 0, url, revision, range);
+		// written out of the engine thread
+		reply.whenCompleteAsync(new BiConsumer<Document, Throwable>() {
+			@Override
+			public void accept(Document chunk, Throwable error) {
+				received(offset, chunk, error);
+			}
+		});
+	}
+
+	private synchronized void received(long offset, Document chunk, Throwable error) {
+		inFlight--;
+		if (result.isDone()) {
+			return;
+		}
+		if (error != null) {
+			Throwable cause = error instanceof CompletionException ? error.getCause() : error;
+			// STALE_REVISION: the document changed
+			if (!(cause instanceof IllegalStateException) || restarts == MAX_RESTARTS) {
+				fail(cause);
+				return;
+			}
+			stale = true;
+		}
+		if (stale) {
+			if (inFlight == 0) {
+				restart();
+			}
+			return;
+		}
+		try {
+			if (channel == null) {
+				revision = chunk.getRevision().value();
+				partFile = new File(file.getAbsoluteFile().getParentFile(),
+						file.getName() + "." + revision + PART_SUFFIX);
+				channel = FileChannel.open(partFile.toPath(), StandardOpenOption.CREATE,
+						StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+			}
+			ByteBuffer bytes = ByteBuffer.wrap(chunk.getData());
+			if (bytes.remaining() < I_NioEngine.CHUNK_SIZE && (end < 0 || offset + bytes.remaining() < end)) {
+				end = offset + bytes.remaining();
+			}
+			if (end < 0 || offset < end) {
+				received.put(offset, bytes);
+			}
+			ByteBuffer next;
+			while ((next = received.remove(written)) != null) {
+				while (next.hasRemaining()) {
+					written += channel.write(next, written);
+				}
+			}
+			if (written == end) {
+				finish();
+				return;
+			}
+			while (end < 0 && inFlight < I_NioEngine.STREAM_WINDOW) {
+				request();
+			}
+		} catch (IOException e) {
+			fail(e);
+		}
+	}
+
+	/**
+	 * Download the new revision from the start
+	 */
+	private void restart() {
+		close();
+		if (partFile != null) {
+			partFile.delete();
+			partFile = null;
+		}
+		revision = 0;
+		written = 0;
+		requested = 0;
+		end = -1;
+		received.clear();
+		stale = false;
+		restarts++;
+		request();
+	}
+
+	private void finish() throws IOException {
+		channel.close();
+		channel = null;
+		Files.move(partFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		result.complete(revision);
+	}
+
+	/**
+	 * Stop the download, keeping the part file to resume it
+	 */
+	private void fail(Throwable cause) {
+		close();
+		received.clear();
+		result.completeExceptionally(cause);
+	}
+
+	private void close() {
+		if (channel != null) {
+			try {
+				channel.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+			channel = null;
+		}
+	}
+
+}
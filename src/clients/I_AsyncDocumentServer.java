@@ -0,0 +1,71 @@
+package clients;
+
+import java.io.File;
+import java.util.concurrent.CompletableFuture;
+
+import documents.Delta;
+import documents.Document;
+
+/**
+ * Asynchronous version of the I_DocumentServer requests.
+ * Each request carries an id and returns at once a future, completed when
+ * the server answers it. Many requests can hence be in flight on the same
+ * connection, and the server may answer them in any order (a request
+ * waiting for a lock is answered when the lock is granted).
+ * Futures are completed by the engine thread, dependent actions that may
+ * block should use the ...Async variants of CompletableFuture.
+ * A request on an unknown document completes exceptionally with a
+ * FileNotFoundException.
+ */
+public interface I_AsyncDocumentServer {
+	
+	// completes when the lock is granted, with the server revision of the document (no content)
+	public CompletableFuture<Document> lockDocumentAsync(String url);
+	// completes when the lock is granted, with the document
+	public CompletableFuture<Document> downloadDocumentAsync(String url);
+	// same, completes with the cached document if the server has its revision
+	public CompletableFuture<Document> downloadDocumentAsync(Document cached);
+	// completes with the document and a shared read lease, to release with releaseRead
+	// (or left to expire after LEASE_DURATION); many clients may read a document at once
+	public CompletableFuture<Document> readDocumentAsync(String url);
+	// same, completes with the cached document if the server has its revision
+	public CompletableFuture<Document> readDocumentAsync(Document cached);
+	// releases a read lease, not answered
+	public void releaseRead(String url);
+	// completes with the document already locked by the client
+	public CompletableFuture<Document> downloadLockedDocumentAsync(String url);
+	// same, completes with the cached document if the server has its revision
+	public CompletableFuture<Document> downloadLockedDocumentAsync(Document cached);
+	// completes with the names of the server documents
+	public CompletableFuture<String[]> requestDocumentsListAsync();
+	// renews the lease on the lock (or on a read lease if shared), which the server takes
+	// back after LEASE_DURATION; completes with the revision (exceptionally with an
+	// IllegalStateException if the lease was lost)
+	public CompletableFuture<Integer> renewLeaseAsync(String url, boolean shared);
+	// uploads a locked document and unlocks it, completes with the new revision number
+	// (exceptionally with an IllegalStateException if the client does not own the lock)
+	public CompletableFuture<Integer> commitDocumentAsync(Document document);
+	// same with the changes made since baseRevision only
+	// (exceptionally with an IllegalStateException if the server has another revision)
+	public CompletableFuture<Integer> commitDeltaAsync(String url, int baseRevision, Delta delta);
+	// completes with a past revision of a document, 0 for the current one (exceptionally
+	// with a FileNotFoundException if the server history does not have it)
+	public CompletableFuture<Document> downloadRevisionAsync(String url, int revision);
+	// same, only fetching the chunks of the revision that are not in the content of base
+	// (for instance another revision of the document, or null)
+	public CompletableFuture<Document> fetchRevisionAsync(String url, int revision, Document base);
+	// completes with the bytes of a range of a document, without its lock, as a document holding
+	// only them at the revision read (0 for the current one, exceptionally with an
+	// IllegalStateException if the document has another one); fewer bytes are read at its end,
+	// at most MAX_RANGE_LENGTH
+	public CompletableFuture<Document> readRangeAsync(String url, int revision, long offset, int length);
+	// downloads the current revision of a document into a file, in chunks, whatever its size; an
+	// interrupted download is resumed by the next one into the same file if the revision did not
+	// change. Completes with the revision downloaded
+	public CompletableFuture<Integer> downloadToFileAsync(String url, File file);
+	// uploads a file in chunks as the new content of a locked document and unlocks it, like
+	// commitDocumentAsync; an interrupted upload is resumed by the next one while the document is
+	// still at baseRevision. Completes with the new revision number
+	public CompletableFuture<Integer> commitFileAsync(String url, int baseRevision, File file);
+
+}
@@ -13,6 +13,7 @@ public interface I_DocumentServer {
 	public void unlockDocument(Document document);
 	public Document downloadDocument(String url);
 	public Document downloadLockedDocument(String url);
+	public void readRange(String url, long offset, int length);
 	public Document createDocument(String url);
 	public void disposeDocument(String url);
 	public void requestDocumentsList();
@@ -0,0 +1,22 @@
+package clients;
+
+import java.util.function.Predicate;
+
+/**
+ * Chooses which documents the Cache drops when it exceeds its budget.
+ * The cache tells the policy about every insertion, access and removal
+ * of a document, identified by its name.
+ */
+public interface I_EvictionPolicy {
+	
+	public void recordInsertion(String name);
+	public void recordAccess(String name);
+	public void recordRemoval(String name);
+	
+	/**
+	 * @param evictable documents that may be evicted (not locked by the client)
+	 * @return the document to evict, null if none is evictable
+	 */
+	public String selectVictim(Predicate<String> evictable);
+
+}
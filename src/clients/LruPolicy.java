@@ -0,0 +1,46 @@
+package clients;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.function.Predicate;
+
+/**
+ * Evict the least recently used document
+ */
+public class LruPolicy implements I_EvictionPolicy {
+	
+	// access-ordered: the first entry is the least recently used
+	private LinkedHashMap<String, Boolean> order;
+	
+	public LruPolicy() {
+		order = new LinkedHashMap<String, Boolean>(16, 0.75f, true);
+	}
+
+	@Override
+	public void recordInsertion(String name) {
+		order.put(name, Boolean.TRUE);
+	}
+
+	@Override
+	public void recordAccess(String name) {
+		order.get(name);
+	}
+
+	@Override
+	public void recordRemoval(String name) {
+		order.remove(name);
+	}
+
+	@Override
+	public String selectVictim(Predicate<String> evictable) {
+		Iterator<String> names = order.keySet().iterator();
+		while (names.hasNext()) {
+			String name = names.next();
+			if (evictable.test(name)) {
+				return name;
+			}
+		}
+		return null;
+	}
+
+}
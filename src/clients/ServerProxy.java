@@ -1,17 +1,51 @@
 package clients;
 
+import java.io.File;
+import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
 
 import nioEngine.I_NioEngine;
+import nioEngine.Message;
 import nioEngine.NioEngine;
+import documents.Delta;
 import documents.Document;
+import documents.Manifest;
 
-public class ServerProxy implements I_DocumentServer {
+/**
+ * Client-side proxy of the server. The I_DocumentServer methods send
+ * requests whose answers are handled by the client, the
+ * I_AsyncDocumentServer ones send requests with an id and complete
+ * a future with the answer (see receivedReply).
+ */
+public class ServerProxy implements I_DocumentServer, I_AsyncDocumentServer {
 	
 	private I_NioEngine nioEngine;
+	// requests in flight, by id
+	private Map<Integer, CompletableFuture<?>> pendingRequests;
+	private AtomicInteger lastRequestId;
+	// set once the connection is closed, no request can be answered
+	private volatile boolean disconnected;
 	
 	public ServerProxy(I_NioEngine nioEngine) {
 		this.nioEngine = nioEngine;
+		pendingRequests = new ConcurrentHashMap<Integer, CompletableFuture<?>>();
+		lastRequestId = new AtomicInteger();
 	}
 
 	@Override
@@ -20,30 +54,37 @@ public class ServerProxy implements I_DocumentServer {
 	 * Will then receive the lock and the document's revision number
 	 */
 	public Document lockDocument(String url) {
-//		nioEngine.send(new String(I_NioEngine.DOWNLOAD + url).getBytes());
-		nioEngine.send(new String(I_NioEngine.LOCK + url).getBytes());
+		nioEngine.send(new Message(I_NioEngine.LOCK, url));
 		return null;
 	}
 
 	@Override
 	/**
-	 * Send an upload and an unlock message for a document
+	 * Upload a document and unlock it, in a single commit message
+	 * Will then receive the new revision number
 	 */
 	public void unlockDocument(Document document) {
 		try {
-			nioEngine.send(NioEngine.wholeMessage(I_NioEngine.UPLOAD, document));
-			try {
-				Thread.sleep(100);
-			} catch (InterruptedException e) {
-				// TODO Auto-generated catch block
-				e.printStackTrace();
-			}
-			nioEngine.send((I_NioEngine.UNLOCK + document.getName()).getBytes());
+			nioEngine.send(NioEngine.wholeMessage(I_NioEngine.COMMIT, document));
 		} catch (IOException e) {
 			e.printStackTrace();
 		}
 	}
 
+	/**
+	 * Send only the changes made to a locked document since the revision
+	 * it was downloaded at, and unlock it
+	 * Will then receive the new revision number, or STALE_REVISION if
+	 * the server has another revision
+	 * @param url
+	 * @param baseRevision the revision the changes apply to
+	 * @param delta
+	 */
+	public void commitDelta(String url, int baseRevision, Delta delta) {
+		nioEngine.send(new Message(I_NioEngine.COMMIT, I_NioEngine.FLAG_DELTA, 0,
+				url, baseRevision, delta.encode()));
+	}
+
 	@Override
 	public Document createDocument(String url) {
 		// TODO complete
@@ -60,24 +101,440 @@ public class ServerProxy implements I_DocumentServer {
 	 * Send a download message
 	 */
 	public Document downloadDocument(String url) {
-		nioEngine.send(new String(I_NioEngine.DOWNLOAD + url).getBytes());
+		nioEngine.send(new Message(I_NioEngine.DOWNLOAD, url));
 		return null;
 	}
 
+	/**
+	 * Send a download message, the server answers NOT_MODIFIED
+	 * (with the lock) if it has the cached revision
+	 * @param url
+	 * @param cachedRevision the revision cached by the client
+	 */
+	public void downloadDocument(String url, int cachedRevision) {
+		nioEngine.send(new Message(I_NioEngine.DOWNLOAD, url, cachedRevision));
+	}
+
+	/**
+	 * Send a read message: the document is sent with a shared read lease,
+	 * or NOT_MODIFIED if the server has the cached revision
+	 * @param url
+	 * @param cachedRevision the revision cached by the client, 0 if none
+	 */
+	public void readDocument(String url, int cachedRevision) {
+		nioEngine.send(new Message(I_NioEngine.READ, url, cachedRevision));
+	}
+
+	/**
+	 * Renew the lease of the client on the lock of a document
+	 * Will then receive RENEW, or NOT_LOCKED if the lock was lost
+	 */
+	public void renewLease(String url) {
+		nioEngine.send(new Message(I_NioEngine.RENEW, url));
+	}
+
+	@Override
+	public void releaseRead(String url) {
+		nioEngine.send(new Message(I_NioEngine.UNLOCK, I_NioEngine.FLAG_SHARED, 0, url, 0, (ByteBuffer) null));
+	}
+
 	@Override
 	/**
 	 * Send a download message for a document that is already locked by the client
 	 */
 	public Document downloadLockedDocument(String url) {
-		nioEngine.send(new String(I_NioEngine.DOWNLOAD_LOCKED + url).getBytes());
+		nioEngine.send(new Message(I_NioEngine.DOWNLOAD_LOCKED, url));
 		return null;
 	}
 
+	/**
+	 * Send a download message for a document that is already locked by the client,
+	 * the server answers NOT_MODIFIED if it has the cached revision
+	 * @param url
+	 * @param cachedRevision the revision cached by the client
+	 */
+	public void downloadLockedDocument(String url, int cachedRevision) {
+		nioEngine.send(new Message(I_NioEngine.DOWNLOAD_LOCKED, url, cachedRevision));
+	}
+
+	@Override
+	/**
+	 * Send a range read message, answered with the bytes of the range
+	 * of the current revision
+	 */
+	public void readRange(String url, long offset, int length) {
+		nioEngine.send(new Message(I_NioEngine.RANGE_READ, 0, 0, url, 0, range(offset, length)));
+	}
+
 	/**
 	 * Ask the server the documents list
 	 */
 	public void requestDocumentsList() {
-		nioEngine.send(String.valueOf(I_NioEngine.DOCUMENTS_LIST).getBytes());
+		nioEngine.send(new Message(I_NioEngine.DOCUMENTS_LIST, null));
+	}
+
+	@Override
+	public CompletableFuture<Document> lockDocumentAsync(String url) {
+		return request(I_NioEngine.LOCK, url);
+	}
+
+	@Override
+	public CompletableFuture<Document> downloadDocumentAsync(String url) {
+		return request(I_NioEngine.DOWNLOAD, url);
+	}
+
+	@Override
+	public CompletableFuture<Document> downloadDocumentAsync(Document cached) {
+		return conditionalDownload(I_NioEngine.DOWNLOAD, cached);
+	}
+
+	@Override
+	public CompletableFuture<Document> readDocumentAsync(String url) {
+		return request(I_NioEngine.READ, url);
+	}
+
+	@Override
+	public CompletableFuture<Document> readDocumentAsync(Document cached) {
+		return conditionalDownload(I_NioEngine.READ, cached);
+	}
+
+	@Override
+	public CompletableFuture<Document> downloadLockedDocumentAsync(String url) {
+		return request(I_NioEngine.DOWNLOAD_LOCKED, url);
+	}
+
+	@Override
+	public CompletableFuture<Document> downloadLockedDocumentAsync(Document cached) {
+		return conditionalDownload(I_NioEngine.DOWNLOAD_LOCKED, cached);
+	}
+
+	@Override
+	public CompletableFuture<String[]> requestDocumentsListAsync() {
+		return request(I_NioEngine.DOCUMENTS_LIST, null);
+	}
+
+	@Override
+	public CompletableFuture<Integer> renewLeaseAsync(String url, boolean shared) {
+		int requestId = nextRequestId();
+		return send(requestId, new Message(I_NioEngine.RENEW, shared ? I_NioEngine.FLAG_SHARED : 0,
+				requestId, url, 0, (ByteBuffer) null));
+	}
+
+	@Override
+	public CompletableFuture<Integer> commitDocumentAsync(Document document) {
+		int requestId = nextRequestId();
+		try {
+			return send(requestId, NioEngine.wholeMessage(I_NioEngine.COMMIT, requestId, document));
+		} catch (IOException e) {
+			CompletableFuture<Integer> future = new CompletableFuture<Integer>();
+			future.completeExceptionally(e);
+			return future;
+		}
+	}
+
+	@Override
+	public CompletableFuture<Integer> commitDeltaAsync(String url, int baseRevision, Delta delta) {
+		int requestId = nextRequestId();
+		return send(requestId, new Message(I_NioEngine.COMMIT, I_NioEngine.FLAG_DELTA, requestId,
+				url, baseRevision, delta.encode()));
+	}
+
+	@Override
+	public CompletableFuture<Document> downloadRevisionAsync(String url, int revision) {
+		return request(I_NioEngine.HISTORY, url, revision);
+	}
+
+	/**
+	 * Get the manifest of the revision, cut the base content in chunks the
+	 * same way, and ask only for the chunks the base does not have, in
+	 * batches whose answers fit MAX_CHUNKS_LENGTH.
+	 * The chunks are cut and checked out of the engine thread.
+	 */
+	@Override
+	public CompletableFuture<Document> fetchRevisionAsync(final String url, int revision, final Document base) {
+		CompletableFuture<Manifest> manifest = request(I_NioEngine.MANIFEST, url, revision);
+		return manifest.thenComposeAsync(new Function<Manifest, CompletionStage<Document>>() {
+			@Override
+			public CompletionStage<Document> apply(final Manifest manifest) {
+				// filled by the batches as they are answered
+				final Map<String, ByteBuffer> known = new ConcurrentHashMap<String, ByteBuffer>();
+				if (base != null && base.getData() != null) {
+					ByteBuffer content = ByteBuffer.wrap(base.getData());
+					for (Manifest.Chunk chunk : Manifest.of(0, content).getChunks()) {
+						ByteBuffer bytes = content.slice();
+						bytes.limit(chunk.getLength());
+						known.put(chunk.getKey(), bytes);
+						content.position(content.position() + chunk.getLength());
+					}
+				}
+				List<Map<String, byte[]>> batches = new ArrayList<Map<String, byte[]>>();
+				Set<String> missing = new HashSet<String>();
+				Map<String, byte[]> batch = new LinkedHashMap<String, byte[]>();
+				long batchLength = 0;
+				for (Manifest.Chunk chunk : manifest.getChunks()) {
+					if (known.containsKey(chunk.getKey()) || !missing.add(chunk.getKey())) {
+						continue;
+					}
+					// an int length and the bytes of each chunk in the answer
+					if (!batch.isEmpty() && batchLength + 4 + chunk.getLength() > I_NioEngine.MAX_CHUNKS_LENGTH) {
+						batches.add(batch);
+						batch = new LinkedHashMap<String, byte[]>();
+						batchLength = 0;
+					}
+					batch.put(chunk.getKey(), chunk.getHash());
+					batchLength += 4 + chunk.getLength();
+				}
+				if (!batch.isEmpty()) {
+					batches.add(batch);
+				}
+				List<CompletableFuture<Void>> fetched = new ArrayList<CompletableFuture<Void>>(batches.size());
+				for (Map<String, byte[]> missingChunks : batches) {
+					fetched.add(fetchChunks(url, manifest.getRevision(), missingChunks, known));
+				}
+				return CompletableFuture.allOf(fetched.toArray(new CompletableFuture<?>[fetched.size()]))
+						.thenApply(new Function<Void, Document>() {
+					@Override
+					public Document apply(Void fetched) {
+						return assemble(url, manifest, known);
+					}
+				});
+			}
+		});
+	}
+
+	/**
+	 * Ask for chunks of a revision, check them and add them to the known
+	 * ones, out of the engine thread
+	 * @param missing the hashes of the chunks, by key
+	 */
+	private CompletableFuture<Void> fetchChunks(final String url, int revision, final Map<String, byte[]> missing,
+			final Map<String, ByteBuffer> known) {
+		ByteBuffer hashes = ByteBuffer.allocate(missing.size() * Manifest.HASH_LENGTH);
+		for (byte[] hash : missing.values()) {
+			hashes.put(hash);
+		}
+		hashes.flip();
+		int requestId = nextRequestId();
+		CompletableFuture<ByteBuffer> chunks = send(requestId, new Message(I_NioEngine.CHUNKS, 0,
+				requestId, url, revision, hashes));
+		return chunks.thenApplyAsync(new Function<ByteBuffer, Void>() {
+			@Override
+			public Void apply(ByteBuffer chunks) {
+				MessageDigest digest = Manifest.newDigest();
+				for (Map.Entry<String, byte[]> chunk : missing.entrySet()) {
+					int length = chunks.remaining() >= 4 ? chunks.getInt() : -1;
+					if (length < 0 || length > chunks.remaining()) {
+						throw new CompletionException(new FileNotFoundException(
+								url + ": chunk " + chunk.getKey() + " not found"));
+					}
+					ByteBuffer bytes = chunks.slice();
+					bytes.limit(length);
+					chunks.position(chunks.position() + length);
+					if (!Arrays.equals(Manifest.hash(digest, bytes, 0, length), chunk.getValue())) {
+						throw new CompletionException(new IOException(
+								url + ": corrupted chunk " + chunk.getKey()));
+					}
+					known.put(chunk.getKey(), bytes);
+				}
+				return null;
+			}
+		});
+	}
+
+	@Override
+	public CompletableFuture<Document> readRangeAsync(String url, int revision, long offset, int length) {
+		return request(I_NioEngine.RANGE_READ, 0, url, revision, range(offset, length));
+	}
+
+	@Override
+	public CompletableFuture<Integer> downloadToFileAsync(String url, File file) {
+		return new DownloadStream(this, url, file).start();
+	}
+
+	@Override
+	public CompletableFuture<Integer> commitFileAsync(String url, int baseRevision, File file) {
+		return new UploadStream(this, url, baseRevision, file).start();
+	}
+
+	/**
+	 * Payload of a range read
+	 */
+	private static ByteBuffer range(long offset, int length) {
+		if (offset < 0 || length < 0 || length > I_NioEngine.MAX_RANGE_LENGTH) {
+			throw new IllegalArgumentException("invalid range [" + offset + ", +" + length + "]");
+		}
+		ByteBuffer range = ByteBuffer.allocate(12);
+		range.putLong(offset).putInt(length).flip();
+		return range;
+	}
+
+	/**
+	 * Content of a revision from its chunks
+	 */
+	private static Document assemble(String url, Manifest manifest, Map<String, ByteBuffer> chunks) {
+		ByteBuffer content = ByteBuffer.allocate((int) manifest.getLength());
+		for (Manifest.Chunk chunk : manifest.getChunks()) {
+			content.put(chunks.get(chunk.getKey()).duplicate());
+		}
+		return new Document(url, content.array(), manifest.getRevision());
+	}
+
+	/**
+	 * Complete the future of the request answered by a message
+	 * @param message a message received from the server
+	 * @return true if the message answered a request of the asynchronous
+	 * API, false if it should be handled by the client
+	 */
+	@SuppressWarnings("unchecked")
+	public boolean receivedReply(Message message) {
+		int requestId = message.getRequestId();
+		if (requestId == 0) {
+			return false;
+		}
+		if (message.getOpcode() == I_NioEngine.ALREADY_LOCKED) {
+			// still in flight, answered when the lock is granted
+			return pendingRequests.containsKey(requestId);
+		}
+		CompletableFuture<?> future = pendingRequests.remove(requestId);
+		if (future == null) {
+			return false;
+		}
+		switch (message.getOpcode()) {
+		case I_NioEngine.LOCK:
+			((CompletableFuture<Document>) future).complete(
+					new Document(message.getName(), null, message.getRevision()));
+			break;
+		case I_NioEngine.DOWNLOAD:
+		case I_NioEngine.DOWNLOAD_LOCKED:
+		case I_NioEngine.READ:
+		case I_NioEngine.HISTORY:
+		case I_NioEngine.RANGE_READ:
+			((CompletableFuture<Document>) future).complete(
+					new Document(message.getName(), message.getPayloadBytes(), message.getRevision()));
+			break;
+		case I_NioEngine.MANIFEST:
+			try {
+				((CompletableFuture<Manifest>) future).complete(
+						Manifest.decode(message.getRevision(), message.getPayload()));
+			} catch (IOException e) {
+				future.completeExceptionally(e);
+			}
+			break;
+		case I_NioEngine.CHUNKS:
+			// copied: the frame buffer is reused once this callback returns
+			((CompletableFuture<ByteBuffer>) future).complete(ByteBuffer.wrap(message.getPayloadBytes()));
+			break;
+		case I_NioEngine.UPLOAD_CHUNK:
+			((CompletableFuture<Long>) future).complete(message.getPayload().getLong());
+			break;
+		case I_NioEngine.NOT_MODIFIED:
+			// replaced by the cached document, see conditionalDownload
+			future.complete(null);
+			break;
+		case I_NioEngine.DOCUMENTS_LIST:
+			((CompletableFuture<String[]>) future).complete(
+					new String(message.getPayloadBytes()).split(I_NioEngine.documentsSeparator));
+			break;
+		case I_NioEngine.COMMIT:
+		case I_NioEngine.RENEW:
+			((CompletableFuture<Integer>) future).complete(message.getRevision());
+			break;
+		case I_NioEngine.UNKNOWN_DOCUMENT:
+			future.completeExceptionally(new FileNotFoundException(message.getName()));
+			break;
+		case I_NioEngine.NOT_LOCKED:
+			future.completeExceptionally(new IllegalStateException(
+					message.getName() + " is not locked by this client"));
+			break;
+		case I_NioEngine.STALE_REVISION:
+			future.completeExceptionally(new IllegalStateException(
+					message.getName() + " is at revision " + message.getRevision()));
+			break;
+		case I_NioEngine.INVALID_REQUEST:
+			future.completeExceptionally(new IOException(message.getName() + ": "
+					+ new String(message.getPayloadBytes(), StandardCharsets.UTF_8)));
+			break;
+		default:
+			future.completeExceptionally(new IOException("unexpected answer " + message));
+			break;
+		}
+		return true;
+	}
+
+	/**
+	 * Fail the requests in flight, and those sent from now on: the
+	 * connection to the server is closed, they will never be answered
+	 */
+	public void disconnected() {
+		disconnected = true;
+		for (Integer requestId : pendingRequests.keySet()) {
+			CompletableFuture<?> future = pendingRequests.remove(requestId);
+			if (future != null) {
+				future.completeExceptionally(new IOException("connection to the server closed"));
+			}
+		}
+	}
+
+	/**
+	 * Send a request with a new id
+	 * @return the future completed by the answer
+	 */
+	private <T> CompletableFuture<T> request(int opcode, String url) {
+		return request(opcode, url, 0);
+	}
+	
+	private <T> CompletableFuture<T> request(int opcode, String url, int revision) {
+		return request(opcode, 0, url, revision, (ByteBuffer) null);
+	}
+	
+	/**
+	 * Send a request with a new id, for the transfers in chunks
+	 * @return the future completed by the answer
+	 */
+	<T> CompletableFuture<T> request(int opcode, int flags, String url, int revision, ByteBuffer payload) {
+		int requestId = nextRequestId();
+		return send(requestId, new Message(opcode, flags, requestId, url, revision, payload));
+	}
+	
+	/**
+	 * Download a document, completed with the cached one if the server
+	 * answers it is not modified
+	 */
+	private CompletableFuture<Document> conditionalDownload(int opcode, final Document cached) {
+		CompletableFuture<Document> reply = request(opcode, cached.getName(), cached.getRevision().value());
+		return reply.thenApply(new Function<Document, Document>() {
+			@Override
+			public Document apply(Document document) {
+				return document == null ? cached : document;
+			}
+		});
+	}
+	
+	/**
+	 * Send a request message carrying requestId
+	 * @return the future completed by the answer
+	 */
+	private <T> CompletableFuture<T> send(int requestId, Message message) {
+		CompletableFuture<T> future = new CompletableFuture<T>();
+		pendingRequests.put(requestId, future);
+		// not to be missed by a concurrent disconnected()
+		if (disconnected) {
+			if (pendingRequests.remove(requestId, future)) {
+				future.completeExceptionally(new IOException("connection to the server closed"));
+			}
+			return future;
+		}
+		nioEngine.send(message);
+		return future;
+	}
+	
+	private int nextRequestId() {
+		int requestId;
+		do {
+			// 0 means no request id
+			requestId = lastRequestId.incrementAndGet();
+		} while (requestId == 0);
+		return requestId;
 	}
 
 }
@@ -0,0 +1,172 @@
+package clients;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.function.BiConsumer;
+
+import nioEngine.I_NioEngine;
+import documents.Manifest;
+
+/**
+ * A file uploaded in chunks (UPLOAD_CHUNK) as the new content of a locked
+ * document, then committed (COMMIT with FLAG_STAGED), with STREAM_WINDOW
+ * chunks in flight: the memory used does not depend on the size of the file.
+ * The upload starts where the server says it has staged the content up to,
+ * so an interrupted upload is resumed while the document keeps the same
+ * revision. The commit carries the SHA-256 of the file, a content staged
+ * from another file is rejected and uploaded again by the next upload.
+ */
+class UploadStream {
+
+	private final ServerProxy serverProxy;
+	private final String url;
+	private final int baseRevision;
+	private final File file;
+	private final CompletableFuture<Integer> result;
+
+	// guarded by this
+	private FileChannel channel;
+	private long size;
+	// end of the chunks sent
+	private long sent;
+	private int inFlight;
+
+	UploadStream(ServerProxy serverProxy, String url, int baseRevision, File file) {
+		this.serverProxy = serverProxy;
+		this.url = url;
+		this.baseRevision = baseRevision;
+		this.file = file;
+		result = new CompletableFuture<Integer>();
+	}
+
+	/**
+	 * Ask the server where to resume, the chunks are sent from there
+	 * @return the future completed with the new revision
+	 */
+	synchronized CompletableFuture<Integer> start() {
+		try {
+			channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+			size = channel.size();
+		} catch (IOException e) {
+			result.completeExceptionally(e);
+			return result;
+		}
+		CompletableFuture<Long> staged = serverProxy.request(I_NioEngine.UPLOAD_CHUNK, 0, url, baseRevision,
+				(ByteBuffer) null);
+		staged.whenCompleteAsync(new BiConsumer<Long, Throwable>() {
+			@Override
+			public void accept(Long length, Throwable error) {
+				resume(length, error);
+			}
+		});
+		return result;
+	}
+
+	private synchronized void resume(Long length, Throwable error) {
+		if (error != null) {
+			fail(error);
+			return;
+		}
+		// a longer content was staged from another file: start again
+		sent = length <= size ? length : 0;
+		next();
+	}
+
+	/**
+	 * Send chunks until the window is full, commit once all of them are
+	 * acknowledged
+	 */
+	private void next() {
+		try {
+			while (inFlight < I_NioEngine.STREAM_WINDOW && sent < size) {
+				final long offset = sent;
+				int length = (int) Math.min(I_NioEngine.CHUNK_SIZE, size - offset);
+				ByteBuffer chunk = ByteBuffer.allocate(8 + length);
+				chunk.putLong(offset);
+				while (chunk.hasRemaining()) {
+					if (channel.read(chunk, offset + chunk.position() - 8) < 0) {
+						throw new IOException(file + " truncated during the upload");
+					}
+				}
+				chunk.flip();
+				sent += length;
+				inFlight++;
+				final long expected = sent;
+				CompletableFuture<Long> staged = serverProxy.request(I_NioEngine.UPLOAD_CHUNK, 0, url, baseRevision,
+						chunk);
+				staged.whenCompleteAsync(new BiConsumer<Long, Throwable>() {
+					@Override
+					public void accept(Long length, Throwable error) {
+						acknowledged(expected, length, error);
+					}
+				});
+			}
+			if (inFlight == 0 && sent == size) {
+				commit();
+			}
+		} catch (IOException e) {
+			fail(e);
+		}
+	}
+
+	private synchronized void acknowledged(long expected, Long length, Throwable error) {
+		inFlight--;
+		if (result.isDone()) {
+			return;
+		}
+		if (error != null) {
+			fail(error);
+		}
+		else if (length != expected) {
+			fail(new IOException(url + ": the server staged " + length + " bytes instead of " + expected));
+		}
+		else {
+			next();
+		}
+	}
+
+	private void commit() throws IOException {
+		MessageDigest digest = Manifest.newDigest();
+		ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+		long position = 0;
+		int count;
+		while ((count = channel.read(buffer, position)) > 0) {
+			position += count;
+			buffer.flip();
+			digest.update(buffer);
+			buffer.clear();
+		}
+		channel.close();
+		ByteBuffer expected = ByteBuffer.allocate(8 + Manifest.HASH_LENGTH);
+		expected.putLong(size).put(digest.digest()).flip();
+		CompletableFuture<Integer> revision = serverProxy.request(I_NioEngine.COMMIT, I_NioEngine.FLAG_STAGED,
+				url, baseRevision, expected);
+		revision.whenComplete(new BiConsumer<Integer, Throwable>() {
+			@Override
+			public void accept(Integer revision, Throwable error) {
+				if (error != null) {
+					result.completeExceptionally(error instanceof CompletionException ? error.getCause() : error);
+				}
+				else {
+					result.complete(revision);
+				}
+			}
+		});
+	}
+
+	private void fail(Throwable error) {
+		try {
+			channel.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		result.completeExceptionally(error instanceof CompletionException ? error.getCause() : error);
+	}
+
+}
@@ -0,0 +1,176 @@
+package clients;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Predicate;
+
+/**
+ * W-TinyLFU eviction: new documents enter a small LRU window, the others
+ * are kept in a segmented LRU (probation, then protected once accessed
+ * again). To be evicted, the window's oldest document is compared with
+ * the main segment's oldest one, and the least frequently used of them
+ * goes. Frequencies are estimated by a sketch that also remembers
+ * documents no longer cached, and ages periodically.
+ * Segment sizes are counted in documents, the Cache enforces the byte budget.
+ */
+public class WTinyLfuPolicy implements I_EvictionPolicy {
+	
+	/**
+	 * Count-min sketch of 4 rows of saturating counters
+	 */
+	private static class FrequencySketch {
+		private static final int DEPTH = 4;
+		private static final int MAX_COUNT = 15;
+		private static final int[] SEEDS = {0x97cb3127, 0xb1e4d8a5, 0x6a09e667, 0x3c6ef372};
+		private int[][] counters;
+		private int mask;
+		private int additions;
+		private int sampleSize;
+		
+		FrequencySketch(int width) {
+			counters = new int[DEPTH][width];
+			mask = width - 1;
+			sampleSize = 10 * width;
+		}
+		
+		void increment(String name) {
+			int hash = name.hashCode();
+			boolean incremented = false;
+			for (int row = 0; row < DEPTH; row++) {
+				int index = index(hash, row);
+				if (counters[row][index] < MAX_COUNT) {
+					counters[row][index]++;
+					incremented = true;
+				}
+			}
+			if (incremented && ++additions == sampleSize) {
+				age();
+			}
+		}
+		
+		int frequency(String name) {
+			int hash = name.hashCode();
+			int frequency = MAX_COUNT;
+			for (int row = 0; row < DEPTH; row++) {
+				frequency = Math.min(frequency, counters[row][index(hash, row)]);
+			}
+			return frequency;
+		}
+		
+		// halve every counter, so that old accesses count less
+		private void age() {
+			for (int[] row : counters) {
+				for (int i = 0; i < row.length; i++) {
+					row[i] >>>= 1;
+				}
+			}
+			additions /= 2;
+		}
+		
+		private int index(int hash, int row) {
+			int h = (hash ^ SEEDS[row]) * 0x9e3779b9;
+			return (h ^ (h >>> 16)) & mask;
+		}
+	}
+	
+	private static final int DEFAULT_SKETCH_WIDTH = 1024;
+	
+	// access-ordered: the first entry of each segment is its least recently used
+	private LinkedHashMap<String, Boolean> window;
+	private LinkedHashMap<String, Boolean> probation;
+	private LinkedHashMap<String, Boolean> protectedSegment;
+	private FrequencySketch sketch;
+	
+	public WTinyLfuPolicy() {
+		this(DEFAULT_SKETCH_WIDTH);
+	}
+	
+	/**
+	 * @param sketchWidth number of counters per row of the frequency sketch,
+	 * a power of 2 of about 4 times the number of cached documents
+	 */
+	public WTinyLfuPolicy(int sketchWidth) {
+		if (Integer.bitCount(sketchWidth) != 1) {
+			throw new IllegalArgumentException("sketch width must be a power of 2");
+		}
+		window = new LinkedHashMap<String, Boolean>(16, 0.75f, true);
+		probation = new LinkedHashMap<String, Boolean>(16, 0.75f, true);
+		protectedSegment = new LinkedHashMap<String, Boolean>(16, 0.75f, true);
+		sketch = new FrequencySketch(sketchWidth);
+	}
+
+	@Override
+	public void recordInsertion(String name) {
+		sketch.increment(name);
+		window.put(name, Boolean.TRUE);
+		// the window holds 1% of the documents
+		int windowMax = Math.max(1, size() / 100);
+		while (window.size() > windowMax) {
+			probation.put(removeEldest(window), Boolean.TRUE);
+		}
+	}
+
+	@Override
+	public void recordAccess(String name) {
+		sketch.increment(name);
+		if (window.get(name) != null || protectedSegment.get(name) != null) {
+			return;
+		}
+		if (probation.remove(name) != null) {
+			protectedSegment.put(name, Boolean.TRUE);
+			// the protected segment holds 80% of the main segment
+			int protectedMax = Math.max(1, (probation.size() + protectedSegment.size()) * 4 / 5);
+			while (protectedSegment.size() > protectedMax) {
+				probation.put(removeEldest(protectedSegment), Boolean.TRUE);
+			}
+		}
+	}
+
+	@Override
+	public void recordRemoval(String name) {
+		window.remove(name);
+		probation.remove(name);
+		protectedSegment.remove(name);
+	}
+
+	@Override
+	public String selectVictim(Predicate<String> evictable) {
+		String candidate = first(window, evictable);
+		String victim = first(probation, evictable);
+		if (victim == null) {
+			victim = first(protectedSegment, evictable);
+		}
+		if (candidate == null || victim == null) {
+			return candidate == null ? victim : candidate;
+		}
+		if (sketch.frequency(candidate) > sketch.frequency(victim)) {
+			// the candidate is admitted to the main segment
+			window.remove(candidate);
+			probation.put(candidate, Boolean.TRUE);
+			return victim;
+		}
+		return candidate;
+	}
+	
+	private int size() {
+		return window.size() + probation.size() + protectedSegment.size();
+	}
+	
+	private static String first(Map<String, Boolean> segment, Predicate<String> evictable) {
+		for (String name : segment.keySet()) {
+			if (evictable.test(name)) {
+				return name;
+			}
+		}
+		return null;
+	}
+	
+	private static String removeEldest(Map<String, Boolean> segment) {
+		Iterator<String> names = segment.keySet().iterator();
+		String eldest = names.next();
+		names.remove();
+		return eldest;
+	}
+
+}
@@ -0,0 +1,274 @@
+package documents;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * History of the documents of a directory. Every revision is kept as a
+ * Manifest, the list of its chunks, and every chunk is stored once
+ * whatever the number of revisions and documents it appears in.
+ * Stored in the hidden directory HISTORY_DIRECTORY:
+ * <pre>
+ * chunks/ab/abcdef...      the chunk whose hash is abcdef...
+ * manifests/name/revision  the manifest of a revision of a document
+ * </pre>
+ * The history is not forced to the disk: after a system crash it may
+ * miss the last revisions, the chunks are checked when read.
+ * Safe to use from several threads.
+ */
+public class ChunkStore {
+
+	public static final String HISTORY_DIRECTORY = ".history";
+
+	private final File chunksDirectory;
+	private final File manifestsDirectory;
+	// keys of the stored chunks
+	private final Set<String> index;
+	// last manifest of each document
+	private final ConcurrentHashMap<String, Manifest> latest;
+	// number of bytes in the stored chunks, and in the revisions stored since startup
+	private final AtomicLong storedBytes;
+	private final AtomicLong archivedBytes;
+	// makes the names of the temporary files unique
+	private final AtomicInteger tmpCount;
+
+	/**
+	 * Open the history of a directory, indexing its chunks
+	 * @throws IOException if the history cannot be created
+	 */
+	public ChunkStore(File directory) throws IOException {
+		File historyDirectory = new File(directory, HISTORY_DIRECTORY);
+		chunksDirectory = new File(historyDirectory, "chunks");
+		manifestsDirectory = new File(historyDirectory, "manifests");
+		if (!chunksDirectory.isDirectory() && !chunksDirectory.mkdirs()
+				|| !manifestsDirectory.isDirectory() && !manifestsDirectory.mkdirs()) {
+			throw new IOException("cannot create " + historyDirectory);
+		}
+		index = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+		latest = new ConcurrentHashMap<String, Manifest>();
+		storedBytes = new AtomicLong();
+		archivedBytes = new AtomicLong();
+		tmpCount = new AtomicInteger();
+		File[] prefixes = chunksDirectory.listFiles();
+		for (File prefix : prefixes) {
+			File[] chunks = prefix.listFiles();
+			if (chunks == null) {
+				continue;
+			}
+			for (File chunk : chunks) {
+				if (!chunk.getName().startsWith(".")) {
+					index.add(chunk.getName());
+					storedBytes.addAndGet(chunk.length());
+				}
+			}
+		}
+	}
+
+	/**
+	 * Store the current revision of a document if it is not yet.
+	 * Must be called while the document cannot change (under its lock
+	 * monitor).
+	 * @param document
+	 * @param unchangedPrefix number of bytes the content shares with the
+	 * previous revision: the chunks before it are not cut again
+	 * @return the manifest of the revision
+	 * @throws IOException
+	 */
+	public Manifest archive(Document document, long unchangedPrefix) throws IOException {
+		String name = document.getName();
+		int revision = document.getRevision().value();
+		Manifest previous = latest.get(name);
+		if (previous == null || previous.getRevision() != revision) {
+			Manifest stored = readManifest(name, revision);
+			if (stored != null) {
+				latest.put(name, stored);
+				return stored;
+			}
+		}
+		if (previous != null && previous.getRevision() == revision) {
+			return previous;
+		}
+		if (previous == null) {
+			previous = readManifest(name, revision - 1);
+		}
+		if (previous == null || previous.getRevision() != revision - 1) {
+			unchangedPrefix = 0;
+		}
+		Manifest manifest = store(revision, document.getContent(), previous, unchangedPrefix);
+		writeManifest(name, manifest);
+		latest.put(name, manifest);
+		return manifest;
+	}
+
+	/**
+	 * @return the manifest of a revision of a document, null if the
+	 * history does not have it
+	 * @throws IOException
+	 */
+	public Manifest getManifest(String name, int revision) throws IOException {
+		Manifest manifest = latest.get(name);
+		if (manifest != null && manifest.getRevision() == revision) {
+			return manifest;
+		}
+		return readManifest(name, revision);
+	}
+
+	/**
+	 * Content of a revision
+	 * @throws IOException if a chunk is missing or corrupted
+	 */
+	public byte[] read(Manifest manifest) throws IOException {
+		long length = manifest.getLength();
+		if (length > Integer.MAX_VALUE) {
+			throw new IOException("revision too large");
+		}
+		ByteBuffer content = ByteBuffer.allocate((int) length);
+		MessageDigest digest = Manifest.newDigest();
+		for (Manifest.Chunk chunk : manifest.getChunks()) {
+			byte[] bytes = getChunk(chunk.getHash(), digest);
+			if (bytes == null || bytes.length != chunk.getLength()) {
+				throw new IOException("missing chunk " + chunk.getKey());
+			}
+			content.put(bytes);
+		}
+		return content.array();
+	}
+
+	/**
+	 * @return the content of a chunk, null if it is not stored
+	 * @throws IOException if the chunk is corrupted
+	 */
+	public byte[] getChunk(byte[] hash) throws IOException {
+		return getChunk(hash, Manifest.newDigest());
+	}
+
+	public long getStoredBytes() {
+		return storedBytes.get();
+	}
+
+	public long getArchivedBytes() {
+		return archivedBytes.get();
+	}
+
+	private byte[] getChunk(byte[] hash, MessageDigest digest) throws IOException {
+		String key = Manifest.key(hash);
+		if (!index.contains(key)) {
+			return null;
+		}
+		byte[] bytes = Files.readAllBytes(chunkFile(key).toPath());
+		digest.reset();
+		if (!Arrays.equals(digest.digest(bytes), hash)) {
+			throw new IOException("corrupted chunk " + key);
+		}
+		return bytes;
+	}
+
+	/**
+	 * Cut a content in chunks and store the new ones. The chunks of the
+	 * previous revision that end before the unchanged prefix, but its
+	 * last one (cut by the end of the content), are kept as they are.
+	 */
+	private Manifest store(int revision, ByteBuffer content, Manifest previous, long unchangedPrefix)
+			throws IOException {
+		List<Manifest.Chunk> chunks = new ArrayList<Manifest.Chunk>();
+		int start = content.position();
+		if (previous != null) {
+			List<Manifest.Chunk> previousChunks = previous.getChunks();
+			for (int i = 0; i < previousChunks.size() - 1; i++) {
+				Manifest.Chunk chunk = previousChunks.get(i);
+				if (start - content.position() + chunk.getLength() > unchangedPrefix) {
+					break;
+				}
+				chunks.add(chunk);
+				start += chunk.getLength();
+			}
+		}
+		MessageDigest digest = Manifest.newDigest();
+		while (start < content.limit()) {
+			int end = Manifest.nextBoundary(content, start);
+			byte[] hash = Manifest.hash(digest, content, start, end);
+			Manifest.Chunk chunk = new Manifest.Chunk(hash, end - start);
+			String key = chunk.getKey();
+			if (!index.contains(key)) {
+				ByteBuffer bytes = content.duplicate();
+				bytes.limit(end).position(start);
+				writeChunk(key, bytes);
+			}
+			chunks.add(chunk);
+			start = end;
+		}
+		archivedBytes.addAndGet(content.remaining());
+		return new Manifest(revision, chunks);
+	}
+
+	private void writeChunk(String key, ByteBuffer bytes) throws IOException {
+		File file = chunkFile(key);
+		File parent = file.getParentFile();
+		if (!parent.isDirectory() && !parent.mkdirs() && !parent.isDirectory()) {
+			throw new IOException("cannot create " + parent);
+		}
+		int length = bytes.remaining();
+		writeFile(file, bytes);
+		if (index.add(key)) {
+			storedBytes.addAndGet(length);
+		}
+	}
+
+	private Manifest readManifest(String name, int revision) throws IOException {
+		File file = manifestFile(name, revision);
+		if (!file.exists()) {
+			return null;
+		}
+		return Manifest.decode(revision, ByteBuffer.wrap(Files.readAllBytes(file.toPath())));
+	}
+
+	private void writeManifest(String name, Manifest manifest) throws IOException {
+		File file = manifestFile(name, manifest.getRevision());
+		File parent = file.getParentFile();
+		if (!parent.isDirectory() && !parent.mkdirs() && !parent.isDirectory()) {
+			throw new IOException("cannot create " + parent);
+		}
+		writeFile(file, manifest.encode());
+	}
+
+	/**
+	 * Write a file at once: through a temporary file renamed over it
+	 */
+	private void writeFile(File file, ByteBuffer bytes) throws IOException {
+		File tmpFile = new File(file.getParentFile(), "." + file.getName() + "." + tmpCount.incrementAndGet());
+		FileOutputStream fos = new FileOutputStream(tmpFile);
+		try {
+			FileChannel channel = fos.getChannel();
+			while (bytes.hasRemaining()) {
+				channel.write(bytes);
+			}
+		} finally {
+			fos.close();
+		}
+		Files.move(tmpFile.toPath(), file.toPath(),
+				StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	private File chunkFile(String key) {
+		return new File(new File(chunksDirectory, key.substring(0, 2)), key);
+	}
+
+	private File manifestFile(String name, int revision) {
+		return new File(new File(manifestsDirectory, name), Integer.toString(revision));
+	}
+
+}
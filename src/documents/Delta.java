@@ -0,0 +1,208 @@
+package documents;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Changes between two contents of a document, as a list of byte ranges
+ * of the base content replaced with new bytes. Appending is replacing
+ * an empty range at the end of the base.
+ * Encoded as:
+ * <pre>
+ * int    base length
+ * then for each range, by increasing offset:
+ * int    offset in the base
+ * int    number of base bytes removed
+ * int    number of bytes inserted
+ * byte[] inserted bytes
+ * </pre>
+ */
+public class Delta {
+
+	private static class Range {
+		int offset;
+		int removed;
+		byte[] inserted;
+	}
+
+	private int baseLength;
+	private List<Range> ranges;
+
+	public Delta(int baseLength) {
+		if (baseLength < 0) {
+			throw new IllegalArgumentException("invalid base length " + baseLength);
+		}
+		this.baseLength = baseLength;
+		ranges = new ArrayList<Range>();
+	}
+
+	/**
+	 * Replace a range of the base. Ranges must be added by increasing
+	 * offset and must not overlap.
+	 * @param offset in the base
+	 * @param removed number of base bytes replaced
+	 * @param inserted the new bytes
+	 */
+	public void replace(int offset, int removed, byte[] inserted) {
+		int previousEnd = ranges.isEmpty() ? 0 : end(ranges.get(ranges.size() - 1));
+		// offset is not negative once past previousEnd, no sum to overflow
+		if (offset < previousEnd || removed < 0 || removed > baseLength - offset) {
+			throw new IllegalArgumentException("invalid range " + offset + "+" + removed);
+		}
+		Range range = new Range();
+		range.offset = offset;
+		range.removed = removed;
+		range.inserted = inserted;
+		ranges.add(range);
+	}
+
+	/**
+	 * Delta between two contents: the bytes between their common prefix
+	 * and their common suffix are replaced
+	 */
+	public static Delta diff(byte[] base, byte[] target) {
+		Delta delta = new Delta(base.length);
+		int max = Math.min(base.length, target.length);
+		int prefix = 0;
+		while (prefix < max && base[prefix] == target[prefix]) {
+			prefix++;
+		}
+		int suffix = 0;
+		while (suffix < max - prefix
+				&& base[base.length - 1 - suffix] == target[target.length - 1 - suffix]) {
+			suffix++;
+		}
+		int removed = base.length - prefix - suffix;
+		int insertedLength = target.length - prefix - suffix;
+		if (removed > 0 || insertedLength > 0) {
+			byte[] inserted = new byte[insertedLength];
+			System.arraycopy(target, prefix, inserted, 0, insertedLength);
+			delta.replace(prefix, removed, inserted);
+		}
+		return delta;
+	}
+
+	public int getBaseLength() {
+		return baseLength;
+	}
+
+	/**
+	 * @return the number of bytes at the beginning of the base that the
+	 * delta does not change
+	 */
+	public int getUnchangedPrefix() {
+		return ranges.isEmpty() ? baseLength : ranges.get(0).offset;
+	}
+
+	/**
+	 * @return true if the delta only adds bytes at the end of the base
+	 */
+	public boolean isAppend() {
+		return ranges.size() == 1 && ranges.get(0).offset == baseLength;
+	}
+
+	/**
+	 * @return the bytes appended to the base, if isAppend
+	 */
+	public byte[] getAppended() {
+		return ranges.get(0).inserted;
+	}
+
+	/**
+	 * Apply the changes to a base content
+	 * @param base the content, from its position to its limit (not modified)
+	 * @return the new content
+	 * @throws IOException if the base does not have the expected length,
+	 * or the new content would not fit an array
+	 */
+	public byte[] apply(ByteBuffer base) throws IOException {
+		if (base.remaining() != baseLength) {
+			throw new IOException("base length " + base.remaining() + ", expected " + baseLength);
+		}
+		long targetLength = targetLength();
+		if (targetLength > Integer.MAX_VALUE - 8) {
+			throw new IOException("target length " + targetLength + " too large");
+		}
+		base = base.duplicate();
+		int start = base.position();
+		byte[] result = new byte[(int) targetLength];
+		int copied = 0;
+		int read = 0;
+		for (Range range : ranges) {
+			int kept = range.offset - read;
+			base.position(start + read);
+			base.get(result, copied, kept);
+			copied += kept;
+			System.arraycopy(range.inserted, 0, result, copied, range.inserted.length);
+			copied += range.inserted.length;
+			read = end(range);
+		}
+		base.position(start + read);
+		base.get(result, copied, baseLength - read);
+		return result;
+	}
+
+	public int getTargetLength() {
+		return (int) targetLength();
+	}
+
+	private long targetLength() {
+		long length = baseLength;
+		for (Range range : ranges) {
+			length += range.inserted.length - range.removed;
+		}
+		return length;
+	}
+
+	public ByteBuffer encode() {
+		int size = 4;
+		for (Range range : ranges) {
+			size += 12 + range.inserted.length;
+		}
+		ByteBuffer buffer = ByteBuffer.allocate(size);
+		buffer.putInt(baseLength);
+		for (Range range : ranges) {
+			buffer.putInt(range.offset);
+			buffer.putInt(range.removed);
+			buffer.putInt(range.inserted.length);
+			buffer.put(range.inserted);
+		}
+		buffer.flip();
+		return buffer;
+	}
+
+	/**
+	 * @param buffer an encoded delta, from its position to its limit
+	 * @throws IOException if the delta is malformed
+	 */
+	public static Delta decode(ByteBuffer buffer) throws IOException {
+		buffer = buffer.duplicate();
+		try {
+			Delta delta = new Delta(buffer.getInt());
+			while (buffer.hasRemaining()) {
+				int offset = buffer.getInt();
+				int removed = buffer.getInt();
+				int insertedLength = buffer.getInt();
+				if (insertedLength < 0 || insertedLength > buffer.remaining()) {
+					throw new IOException("invalid delta insertion length " + insertedLength);
+				}
+				byte[] inserted = new byte[insertedLength];
+				buffer.get(inserted);
+				delta.replace(offset, removed, inserted);
+			}
+			return delta;
+		} catch (BufferUnderflowException e) {
+			throw new IOException("truncated delta");
+		} catch (IllegalArgumentException e) {
+			throw new IOException(e.getMessage());
+		}
+	}
+
+	private static int end(Range range) {
+		return range.offset + range.removed;
+	}
+
+}
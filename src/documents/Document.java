@@ -1,30 +1,59 @@
 package documents;
 
-import java.io.BufferedInputStream;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
 
+/**
+ * A document. On the server side a document is backed by a file: only its
+ * metadata is kept in memory and its content is read through a memory
+ * mapping, loaded on first access. Its changes are logged, a new content
+ * stays in memory until it is written on the file by a checkpoint. On the client side a document holds
+ * its content in memory.
+ */
 public class Document {
 
 	private String name;
 	private String url;
 	private File file;
-	private byte[] data;
+	// content set by the owner until it is written, read from other threads
+	private volatile byte[] data;
 	private RevisionNumber revision;
+	// mappings of the server documents files, null for an in-memory document
+	private MappingCache mappingCache;
+	// log of the changes of the server documents, null for an in-memory document
+	private WriteAheadLog log;
 	
-	public Document(String name, String url) {
+	/**
+	 * Document backed by a file, whose content is not read until needed
+	 * @param name
+	 * @param url path of the file
+	 * @param revision its revision (see MetadataIndex)
+	 * @param mappingCache the cache providing the file mapping
+	 * @param log the log of the changes
+	 */
+	public Document(String name, String url, int revision, MappingCache mappingCache, WriteAheadLog log) {
 		this.name = name;
 		this.url = url;
+		this.mappingCache = mappingCache;
+		this.log = log;
 		file = new File(url);
-		revision = new RevisionNumber(1);
-		try {
-			setData(getBytesFromFile());
-		} catch (IOException e) {
-			e.printStackTrace();
-		}
+		this.revision = new RevisionNumber(revision);
+	}
+
+	/**
+	 * In-memory document (client side), not backed by a file
+	 */
+	public Document(String name, byte[] data, int revision) {
+		this.name = name;
+		this.data = data;
+		this.revision = new RevisionNumber(revision);
 	}
 
 	public String getName() {
@@ -35,41 +64,237 @@ public class Document {
 		this.name = name;
 	}
 	
+	/**
+	 * Content of the document. For a file-backed document this is a copy
+	 * of the mapped file, prefer getContent to avoid it.
+	 */
 	public byte[] getData() {
-		return data;
+		byte[] current = data;
+		if (current != null || file == null) {
+			return current;
+		}
+		try {
+			ByteBuffer content = getContent();
+			byte[] bytes = new byte[content.remaining()];
+			content.get(bytes);
+			return bytes;
+		} catch (IOException e) {
+			e.printStackTrace();
+			return null;
+		}
 	}
 	
+	/**
+	 * Content of the document without copy: a view of the file mapping,
+	 * or of the in-memory data
+	 * @throws IOException if the file cannot be mapped
+	 */
+	public ByteBuffer getContent() throws IOException {
+		byte[] current = data;
+		if (current != null) {
+			return ByteBuffer.wrap(current).asReadOnlyBuffer();
+		}
+		if (file == null) {
+			return ByteBuffer.allocate(0);
+		}
+		return mappingCache.map(this);
+	}
+	
+	/**
+	 * Set the content of an in-memory document (see update for a
+	 * file-backed document)
+	 */
 	public void setData(byte[] data) {
 		this.data = data;
 	}
 	
+	/**
+	 * @return the content length in bytes
+	 */
+	public long getSize() {
+		byte[] current = data;
+		if (current != null || file == null) {
+			return current == null ? 0 : current.length;
+		}
+		return file.length();
+	}
+	
 	public RevisionNumber getRevision() {
 		return revision;
 	}
+	
+	/**
+	 * @return the file of the document, null for an in-memory document
+	 */
+	public File getFile() {
+		return file;
+	}
 	 
-	public byte[] getBytesFromFile() throws IOException {
-		int length = (int) file.length();
-		byte[] bytes = new byte[length];
-		BufferedInputStream in = new BufferedInputStream(new FileInputStream(file));
-		int result = in.read(bytes, 0, length);
-		in.close();
-		return bytes;
+	/**
+	 * Replace the content, durably: the change is logged and the content
+	 * kept in memory until a checkpoint writes it on the file.
+	 * Nothing changes if the change cannot be logged; once logged,
+	 * setting the content cannot fail, there is nothing to cancel.
+	 * Returns once the change is forced to the log.
+	 * @throws IOException if the change cannot be logged
+	 */
+	public void update(byte[] content) throws IOException {
+		long position;
+		synchronized (this) {
+			position = log.append(this, revision.value() + 1, 0, content);
+			data = content;
+			revision.increment();
+		}
+		log.sync(position);
 	}
 	
 	/**
-	 * Write data from the byte array to the file
+	 * Append bytes, durably, without rewriting the content: on the file
+	 * if it holds the current content, otherwise on the content waiting
+	 * for the next checkpoint. Transfers of the previous content are not
+	 * affected: they stop at the previous length.
+	 * The bytes are logged before they are appended: nothing changes if
+	 * they cannot be logged. If they cannot be written on the file, the
+	 * file is cut back to its previous length and a record cancelling the
+	 * append is logged (see WriteAheadLog.cancelAppend), so that the
+	 * replay of the log does not restore it.
+	 * Returns once the change is forced to the log.
+	 * @throws IOException
 	 */
-	public void update() {
-		revision.increment();
-		FileOutputStream fos;
+	public void append(byte[] appended) throws IOException {
+		long position;
+		synchronized (this) {
+			byte[] pending = data;
+			if (pending != null) {
+				byte[] content = Arrays.copyOf(pending, pending.length + appended.length);
+				System.arraycopy(appended, 0, content, pending.length, appended.length);
+				position = log.append(this, revision.value() + 1, pending.length, appended);
+				data = content;
+			}
+			else {
+				long offset = file.length();
+				FileChannel fileChannel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE);
+				try {
+					position = log.append(this, revision.value() + 1, offset, appended);
+					try {
+						ByteBuffer bytes = ByteBuffer.wrap(appended);
+						while (bytes.hasRemaining()) {
+							fileChannel.write(bytes, offset + bytes.position());
+						}
+					} catch (IOException e) {
+						cancelAppend(fileChannel, offset, e);
+						throw e;
+					}
+				} finally {
+					fileChannel.close();
+				}
+				mappingCache.invalidate(this);
+			}
+			revision.increment();
+		}
+		log.sync(position);
+	}
+	
+	/**
+	 * Undo an append logged but not written on the file: cut the file back
+	 * and log the cancellation (see WriteAheadLog.cancelAppend)
+	 * @param failure the failure of the append, the failures of the
+	 * cancellation are added to it
+	 */
+	private void cancelAppend(FileChannel fileChannel, long length, IOException failure) {
 		try {
-			fos = new FileOutputStream(url);
-			fos.write(data);
-			fos.close();
-		} catch (FileNotFoundException e) {
-			e.printStackTrace();
+			fileChannel.truncate(length);
 		} catch (IOException e) {
-			e.printStackTrace();
+			// the replay of the cancellation cuts it
+			failure.addSuppressed(e);
+		}
+		try {
+			log.cancelAppend(this, revision.value(), length);
+		} catch (IOException e) {
+			failure.addSuppressed(e);
+		}
+	}
+	
+	/**
+	 * Replace the content by a file, durably, without reading it: the
+	 * file is forced, the replacement logged and the file renamed over
+	 * the document's. Used for the contents too large for the memory.
+	 * Returns once the replacement is durable.
+	 * @param replacement a file in the directory of the document (see UploadStage)
+	 * @throws IOException if the replacement cannot be logged or made
+	 */
+	public void replace(File replacement) throws IOException {
+		FileChannel fileChannel = FileChannel.open(replacement.toPath(), StandardOpenOption.WRITE);
+		try {
+			fileChannel.force(false);
+		} finally {
+			fileChannel.close();
+		}
+		// the rename follows the forced record, so that the replay of the
+		// log knows if it was made (see WriteAheadLog)
+		synchronized (this) {
+			log.sync(log.replace(this, revision.value() + 1, replacement));
+			Files.move(replacement.toPath(), file.toPath(),
+					StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			log.forceDirectory();
+			revision.increment();
+			data = null;
+			mappingCache.invalidate(this);
+		}
+	}
+	
+	/**
+	 * @return true if the file holds the current content, false if it
+	 * waits for the next checkpoint
+	 */
+	public boolean isWritten() {
+		return data == null;
+	}
+	
+	/**
+	 * Write the content waiting for a checkpoint on the file, or force
+	 * the bytes appended to the file.
+	 * The content is written to a temporary file renamed over the document's,
+	 * so that transfers of the previous content still read a complete file.
+	 * @throws IOException
+	 */
+	void checkpoint() throws IOException {
+		byte[] pending;
+		// not between the record of a change and the change (see update)
+		synchronized (this) {
+			pending = data;
+		}
+		if (pending == null) {
+			FileChannel fileChannel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE);
+			try {
+				fileChannel.force(false);
+			} finally {
+				fileChannel.close();
+			}
+			return;
+		}
+		File tmpFile = new File(file.getAbsoluteFile().getParentFile(), "." + name + ".tmp");
+		FileOutputStream fos = new FileOutputStream(tmpFile);
+		try {
+			fos.write(pending);
+			fos.getFD().sync();
+		} finally {
+			fos.close();
+		}
+		synchronized (this) {
+			if (data == null) {
+				// replaced meanwhile by a file, newer than the content written
+				tmpFile.delete();
+				return;
+			}
+			Files.move(tmpFile.toPath(), file.toPath(),
+					StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			// a newer content may have been set meanwhile, it stays in memory
+			if (data == pending) {
+				// the content will now be read from the new file
+				data = null;
+				mappingCache.invalidate(this);
+			}
 		}
 	}
 	
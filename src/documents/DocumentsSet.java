@@ -2,17 +2,19 @@ package documents;
 
 /**
  * Server documents set
- * Manages clients locks and queues on documents
- * TODO change owner after unlock
+ * Indexes the documents of a directory, their locks are managed by
+ * a LockManager, their changes logged by a WriteAheadLog and their
+ * revisions kept across restarts by a MetadataIndex. Their past
+ * revisions are kept by a ChunkStore, the contents uploaded in chunks
+ * staged by an UploadStage.
+ * Safe to use from several threads.
  */
 
 import java.io.File;
-import java.nio.channels.SocketChannel;
-import java.util.HashMap;
-import java.util.LinkedList;
+import java.io.IOException;
 import java.util.Map;
-import java.util.Queue;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 import nioEngine.I_NioEngine;
 
@@ -20,30 +22,53 @@ public class DocumentsSet {
 	
 	private File directory;
 	private Map<String, Document> documents;
+	// mappings of the documents files
+	private MappingCache mappingCache;
+	// locks, read leases and cache registrations of the documents
+	private LockManager lockManager;
+	// log of the documents changes
+	private WriteAheadLog log;
+	// revisions of the documents, persisted
+	private MetadataIndex index;
+	// past revisions of the documents
+	private ChunkStore history;
+	// contents uploaded in chunks
+	private UploadStage uploads;
 	
-	// for each document, the client who owns it (or null)
-	private Map<Document, SocketChannel> lockOwners;
-	// for each document, a FIFO list of clients who want it
-	private Map<Document, Queue<SocketChannel>> lockRequests;
+	public DocumentsSet(String currentDirectory) throws IOException {
+		this(currentDirectory, MappingCache.DEFAULT_BUDGET);
+	}
 	
-	public DocumentsSet(String currentDirectory) {
-		documents = new HashMap<String, Document>();
-		lockOwners = new HashMap<Document, SocketChannel>();
-		lockRequests = new HashMap<Document, Queue<SocketChannel>>();
+	/**
+	 * Index the documents of a directory. Only their metadata is read,
+	 * their content is mapped on first access. The changes logged and not
+	 * written on the files when the server stopped are written first.
+	 * The documents keep their revisions from the previous run.
+	 * @param currentDirectory
+	 * @param residentBudget max number of bytes of documents kept mapped
+	 * @throws IOException if the log cannot be replayed or created
+	 */
+	public DocumentsSet(String currentDirectory, long residentBudget) throws IOException {
+		documents = new ConcurrentHashMap<String, Document>();
+		mappingCache = new MappingCache(residentBudget);
+		lockManager = new LockManager();
 		directory = new File(currentDirectory);
 		if (!directory.isDirectory()) {
 			System.out.println("not a directory");
 			System.exit(1);
 		}
+		index = new MetadataIndex(directory);
+		log = new WriteAheadLog(directory, index);
+		history = new ChunkStore(directory);
+		uploads = new UploadStage(directory);
 		File[] listFiles = directory.listFiles();
 		for (File f : listFiles) {
 			if (!f.isDirectory() && !f.getName().startsWith(".")) {
-				Document doc = new Document(f.getName(), directory+"/"+f);
+				Document doc = new Document(f.getName(), f.getPath(), index.revision(f), mappingCache, log);
 				documents.put(f.getName(), doc);
-				lockOwners.put(doc, null);
-				lockRequests.put(doc, new LinkedList<SocketChannel>());
 			}
 		}
+		index.save();
 	}
 	
 	public Document getDocument(String name) {
@@ -51,44 +76,26 @@ public class DocumentsSet {
 	}
 	
 	public void addDocument(Document document) {
-		lockOwners.put(document, null);
-	}
-	
-	public void setOwner(Document document, SocketChannel client) {
-			lockOwners.put(document, client);
+		documents.put(document.getName(), document);
 	}
 	
-	public SocketChannel getOwner(Document document) {
-		return lockOwners.get(document);
+	public LockManager getLockManager() {
+		return lockManager;
 	}
 	
-	public SocketChannel getOwner(String name) {
-		return lockOwners.get(getDocument(name));
+	public ChunkStore getHistory() {
+		return history;
 	}
 	
-	public void freeDocument(Document document) {
-		setOwner(document, null);
-	}
-	
-	public SocketChannel updateOwner(Document document) {
-		LinkedList<SocketChannel> queue = (LinkedList<SocketChannel>) lockRequests.get(document);
-		if (queue != null) {
-			if (queue.isEmpty()) {
-				freeDocument(document);
-			} else {
-				// there are waiting clients: retrieve and remove the first one
-				SocketChannel socketChannel = queue.removeFirst();
-				setOwner(document, socketChannel);
-				return socketChannel;
-			}
-		} else {
-			freeDocument(document);
-		}
-		return null;
+	public UploadStage getUploads() {
+		return uploads;
 	}
 	
-	public void addWaitingClient(Document document, SocketChannel client) {
-		lockRequests.get(document).add(client);
+	/**
+	 * Write the logged changes on the documents files
+	 */
+	public void close() {
+		log.close();
 	}
 	
 	public String getDocumentsList() {
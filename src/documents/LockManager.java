@@ -0,0 +1,344 @@
+package documents;
+
+import java.nio.channels.SocketChannel;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import nioEngine.I_NioEngine;
+
+/**
+ * Locks of the server documents, safe to use from several threads.
+ * A document has either one writer (its owner) or any number of readers
+ * holding a read lease. Requests that cannot be granted wait in a FIFO
+ * queue, and a waiting writer holds back the readers arriving after it.
+ * Every document has its own state, found in a concurrent map and guarded
+ * by its own monitor: requests on different documents never contend.
+ * Locks and read leases expire after LEASE_DURATION unless renewed.
+ */
+public class LockManager {
+
+	/**
+	 * Lock state of a document, guarded by itself
+	 */
+	private static class LockState {
+		// the client who owns the document (or null), and when its lease expires
+		SocketChannel owner;
+		long ownerExpiry;
+		// the clients holding a read lease, with its expiry time
+		Map<SocketChannel, Long> readers = new HashMap<SocketChannel, Long>();
+		// FIFO list of clients who want the document
+		Queue<Waiter> waiters = new ConcurrentLinkedQueue<Waiter>();
+		// the clients who cache the document and when their lease was granted
+		Map<SocketChannel, Long> cachingClients = new ConcurrentHashMap<SocketChannel, Long>();
+
+		boolean isLeased() {
+			return owner != null || !readers.isEmpty();
+		}
+
+		// true if no other client than this one holds a read lease
+		boolean onlyReader(SocketChannel client) {
+			return readers.isEmpty() || (readers.size() == 1 && readers.containsKey(client));
+		}
+	}
+
+	private final ConcurrentHashMap<Document, LockState> states;
+	// documents with an owner or readers, whose leases may expire
+	private final Set<Document> leased;
+	// for each client, the documents it may hold, wait for or cache
+	private final ConcurrentHashMap<SocketChannel, Set<Document>> clientDocuments;
+
+	public LockManager() {
+		states = new ConcurrentHashMap<Document, LockState>();
+		leased = Collections.newSetFromMap(new ConcurrentHashMap<Document, Boolean>());
+		clientDocuments = new ConcurrentHashMap<SocketChannel, Set<Document>>();
+	}
+
+	/**
+	 * Monitor guarding the lock state of a document: hold it to make
+	 * several calls on the document atomic
+	 */
+	public Object getMonitor(Document document) {
+		return state(document);
+	}
+
+	/**
+	 * Grant a request now if possible, otherwise queue it
+	 * The owner of a document is granted its requests again (its lease
+	 * is renewed), and reading does not give it a read lease.
+	 * @param document
+	 * @param waiter the client and its request, a READ for a read lease
+	 * @return true if granted, false if queued
+	 */
+	public boolean acquire(Document document, Waiter waiter) {
+		SocketChannel client = waiter.getClient();
+		LockState state = state(document);
+		track(client, document);
+		synchronized (state) {
+			boolean granted;
+			if (state.owner != null) {
+				granted = state.owner == client;
+				if (granted && !waiter.isReader()) {
+					state.ownerExpiry = expiry();
+				}
+			}
+			else if (waiter.isReader()) {
+				granted = state.waiters.isEmpty();
+				if (granted) {
+					state.readers.put(client, expiry());
+				}
+			}
+			else {
+				granted = state.waiters.isEmpty() && state.onlyReader(client);
+				if (granted) {
+					setOwner(state, client);
+				}
+			}
+			if (granted) {
+				leased.add(document);
+			}
+			else {
+				state.waiters.add(waiter);
+			}
+			return granted;
+		}
+	}
+
+	public SocketChannel getOwner(Document document) {
+		LockState state = state(document);
+		synchronized (state) {
+			return state.owner;
+		}
+	}
+
+	public boolean isOwner(Document document, SocketChannel client) {
+		return getOwner(document) == client;
+	}
+
+	/**
+	 * Release the lock of a client and grant the waiting clients who may
+	 * now get the document
+	 * @return the waiters granted, in order (none if the client was not the owner)
+	 */
+	public List<Waiter> unlock(Document document, SocketChannel client) {
+		LockState state = state(document);
+		synchronized (state) {
+			if (state.owner != client) {
+				return Collections.emptyList();
+			}
+			setOwner(state, null);
+			return grantWaiters(document, state);
+		}
+	}
+
+	/**
+	 * Release the read lease of a client and grant the waiting clients who
+	 * may now get the document
+	 * @return the waiters granted, in order
+	 */
+	public List<Waiter> releaseRead(Document document, SocketChannel client) {
+		LockState state = state(document);
+		synchronized (state) {
+			if (state.readers.remove(client) == null) {
+				return Collections.emptyList();
+			}
+			return grantWaiters(document, state);
+		}
+	}
+
+	/**
+	 * Extend the lease of the owner, or of a reader, of a document
+	 * @param shared true for a read lease
+	 * @return false if the client does not hold the lease (anymore)
+	 */
+	public boolean renewLease(Document document, SocketChannel client, boolean shared) {
+		LockState state = state(document);
+		synchronized (state) {
+			if (shared) {
+				if (!state.readers.containsKey(client)) {
+					return false;
+				}
+				state.readers.put(client, expiry());
+			}
+			else {
+				if (state.owner != client) {
+					return false;
+				}
+				state.ownerExpiry = expiry();
+			}
+			return true;
+		}
+	}
+
+	/**
+	 * Take back the locks and read leases that have expired
+	 * @return for each document that changed, the waiters granted
+	 */
+	public Map<Document, List<Waiter>> expireLeases() {
+		long now = System.currentTimeMillis();
+		Map<Document, List<Waiter>> result = new HashMap<Document, List<Waiter>>();
+		for (Document document : leased) {
+			LockState state = state(document);
+			synchronized (state) {
+				boolean changed = false;
+				if (state.owner != null && state.ownerExpiry <= now) {
+					setOwner(state, null);
+					changed = true;
+				}
+				Iterator<Long> expiries = state.readers.values().iterator();
+				while (expiries.hasNext()) {
+					if (expiries.next() <= now) {
+						expiries.remove();
+						changed = true;
+					}
+				}
+				if (changed) {
+					result.put(document, grantWaiters(document, state));
+				}
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Release everything a disconnected client held or waited for
+	 * @return for each document that changed, the waiters granted
+	 */
+	public Map<Document, List<Waiter>> removeClient(SocketChannel client) {
+		Map<Document, List<Waiter>> result = new HashMap<Document, List<Waiter>>();
+		Set<Document> documents = clientDocuments.remove(client);
+		if (documents == null) {
+			return result;
+		}
+		for (Document document : documents) {
+			LockState state = state(document);
+			state.cachingClients.remove(client);
+			synchronized (state) {
+				boolean changed = state.readers.remove(client) != null;
+				if (state.owner == client) {
+					setOwner(state, null);
+					changed = true;
+				}
+				Iterator<Waiter> waiters = state.waiters.iterator();
+				while (waiters.hasNext()) {
+					if (waiters.next().getClient() == client) {
+						waiters.remove();
+						changed = true;
+					}
+				}
+				if (changed) {
+					result.put(document, grantWaiters(document, state));
+				}
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Remember that a client caches the current revision of a document,
+	 * its lease starts now
+	 */
+	public void addCachingClient(Document document, SocketChannel client) {
+		track(client, document);
+		state(document).cachingClients.put(client, System.currentTimeMillis());
+	}
+
+	/**
+	 * Forget the clients caching a document, which has a new revision
+	 * @return the clients whose lease may still be running
+	 */
+	public Set<SocketChannel> removeCachingClients(Document document) {
+		Set<SocketChannel> result = new HashSet<SocketChannel>();
+		// a lease starts on the client when it receives the reply, keep a margin
+		long oldestLease = System.currentTimeMillis() - 2 * I_NioEngine.LEASE_DURATION;
+		Map<SocketChannel, Long> clients = state(document).cachingClients;
+		for (Map.Entry<SocketChannel, Long> client : clients.entrySet()) {
+			// a client registered again meanwhile caches the new revision
+			if (clients.remove(client.getKey(), client.getValue()) && client.getValue() > oldestLease) {
+				result.add(client.getKey());
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Grant the waiters at the head of the queue of a free document:
+	 * all the readers up to the first writer, or that writer once
+	 * there are no readers left. Waiters that have disconnected are skipped.
+	 */
+	private List<Waiter> grantWaiters(Document document, LockState state) {
+		List<Waiter> granted = new LinkedList<Waiter>();
+		while (state.owner == null && !state.waiters.isEmpty()) {
+			Waiter waiter = state.waiters.peek();
+			if (!waiter.getClient().isOpen()) {
+				state.waiters.poll();
+				continue;
+			}
+			if (waiter.isReader()) {
+				state.readers.put(waiter.getClient(), expiry());
+			}
+			else if (state.onlyReader(waiter.getClient())) {
+				setOwner(state, waiter.getClient());
+			}
+			else {
+				break;
+			}
+			granted.add(state.waiters.poll());
+		}
+		if (state.isLeased()) {
+			leased.add(document);
+		}
+		else {
+			leased.remove(document);
+		}
+		return granted;
+	}
+
+	/**
+	 * Give the lock to a client, replacing its read lease if it has one
+	 */
+	private void setOwner(LockState state, SocketChannel client) {
+		state.owner = client;
+		if (client != null) {
+			state.ownerExpiry = expiry();
+			state.readers.remove(client);
+		}
+	}
+
+	private LockState state(Document document) {
+		LockState state = states.get(document);
+		if (state == null) {
+			LockState created = new LockState();
+			state = states.putIfAbsent(document, created);
+			if (state == null) {
+				state = created;
+			}
+		}
+		return state;
+	}
+
+	private void track(SocketChannel client, Document document) {
+		Set<Document> documents = clientDocuments.get(client);
+		if (documents == null) {
+			Set<Document> created = Collections.newSetFromMap(new ConcurrentHashMap<Document, Boolean>());
+			documents = clientDocuments.putIfAbsent(client, created);
+			if (documents == null) {
+				documents = created;
+			}
+		}
+		documents.add(document);
+	}
+
+	private static long expiry() {
+		return System.currentTimeMillis() + I_NioEngine.LEASE_DURATION;
+	}
+
+}
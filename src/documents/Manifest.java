@@ -0,0 +1,208 @@
+package documents;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Content of a revision of a document, as the list of the chunks it is
+ * made of. Chunk boundaries are found from the content itself (a rolling
+ * hash of the last bytes), so that an insertion or a removal only
+ * changes the chunks around it: revisions and documents that share
+ * most of their content share most of their chunks.
+ * Chunks are identified by the SHA-256 of their content.
+ * Encoded as:
+ * <pre>
+ * int    number of chunks
+ * then for each chunk:
+ * byte[] hash (HASH_LENGTH bytes)
+ * int    length
+ * </pre>
+ */
+public class Manifest {
+
+	public static final int HASH_LENGTH = 32;
+
+	// chunk sizes: a boundary is found every AVERAGE_CHUNK bytes on average
+	public static final int MIN_CHUNK = 2 * 1024;
+	public static final int AVERAGE_CHUNK = 8 * 1024;
+	public static final int MAX_CHUNK = 64 * 1024;
+
+	// a boundary follows the bytes whose hash has its top bits cleared
+	private static final int BOUNDARY_SHIFT = 64 - Integer.numberOfTrailingZeros(AVERAGE_CHUNK);
+	// random values of the bytes for the rolling hash (fixed: the server
+	// and the clients must cut the same boundaries)
+	private static final long[] GEAR = new long[256];
+	static {
+		Random random = new Random(0x5eedL);
+		for (int i = 0; i < GEAR.length; i++) {
+			GEAR[i] = random.nextLong();
+		}
+	}
+
+	public static class Chunk {
+
+		private final byte[] hash;
+		private final int length;
+
+		public Chunk(byte[] hash, int length) {
+			this.hash = hash;
+			this.length = length;
+		}
+
+		public byte[] getHash() {
+			return hash;
+		}
+
+		public int getLength() {
+			return length;
+		}
+
+		/**
+		 * @return the hash in hexadecimal, the key of the chunk
+		 */
+		public String getKey() {
+			return key(hash);
+		}
+	}
+
+	private final int revision;
+	private final List<Chunk> chunks;
+
+	public Manifest(int revision, List<Chunk> chunks) {
+		this.revision = revision;
+		this.chunks = Collections.unmodifiableList(chunks);
+	}
+
+	/**
+	 * Cut a content in chunks
+	 * @param revision the revision of the content
+	 * @param content from its position to its limit (not modified)
+	 */
+	public static Manifest of(int revision, ByteBuffer content) {
+		List<Chunk> chunks = new ArrayList<Chunk>();
+		MessageDigest digest = newDigest();
+		int start = content.position();
+		while (start < content.limit()) {
+			int end = nextBoundary(content, start);
+			chunks.add(new Chunk(hash(digest, content, start, end), end - start));
+			start = end;
+		}
+		return new Manifest(revision, chunks);
+	}
+
+	/**
+	 * End of the chunk starting at an offset: the first boundary at least
+	 * MIN_CHUNK bytes after it, at most MAX_CHUNK bytes after it, or the
+	 * end of the content
+	 * @param content the content, up to its limit
+	 * @param start the offset of the chunk in the buffer
+	 */
+	public static int nextBoundary(ByteBuffer content, int start) {
+		int limit = Math.min(content.limit(), start + MAX_CHUNK);
+		if (limit - start <= MIN_CHUNK) {
+			return limit;
+		}
+		long hash = 0;
+		for (int i = start + MIN_CHUNK; i < limit; i++) {
+			hash = (hash << 1) + GEAR[content.get(i) & 0xff];
+			if ((hash >>> BOUNDARY_SHIFT) == 0) {
+				return i + 1;
+			}
+		}
+		return limit;
+	}
+
+	/**
+	 * SHA-256 of a range of a buffer
+	 */
+	public static byte[] hash(MessageDigest digest, ByteBuffer content, int start, int end) {
+		ByteBuffer range = content.duplicate();
+		range.limit(end).position(start);
+		digest.reset();
+		digest.update(range);
+		return digest.digest();
+	}
+
+	public static MessageDigest newDigest() {
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			// every Java platform has SHA-256
+			throw new IllegalStateException(e);
+		}
+	}
+
+	public static String key(byte[] hash) {
+		StringBuilder key = new StringBuilder(hash.length * 2);
+		for (byte b : hash) {
+			key.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+		}
+		return key.toString();
+	}
+
+	public int getRevision() {
+		return revision;
+	}
+
+	public List<Chunk> getChunks() {
+		return chunks;
+	}
+
+	/**
+	 * @return the length of the content
+	 */
+	public long getLength() {
+		long length = 0;
+		for (Chunk chunk : chunks) {
+			length += chunk.getLength();
+		}
+		return length;
+	}
+
+	public ByteBuffer encode() {
+		ByteBuffer buffer = ByteBuffer.allocate(4 + chunks.size() * (HASH_LENGTH + 4));
+		buffer.putInt(chunks.size());
+		for (Chunk chunk : chunks) {
+			buffer.put(chunk.getHash());
+			buffer.putInt(chunk.getLength());
+		}
+		buffer.flip();
+		return buffer;
+	}
+
+	/**
+	 * @param revision the revision described
+	 * @param buffer an encoded manifest, from its position to its limit
+	 * @throws IOException if the manifest is malformed
+	 */
+	public static Manifest decode(int revision, ByteBuffer buffer) throws IOException {
+		buffer = buffer.duplicate();
+		try {
+			int count = buffer.getInt();
+			if (count < 0 || count > buffer.remaining() / (HASH_LENGTH + 4)) {
+				throw new IOException("invalid number of chunks " + count);
+			}
+			List<Chunk> chunks = new ArrayList<Chunk>(count);
+			for (int i = 0; i < count; i++) {
+				byte[] hash = new byte[HASH_LENGTH];
+				buffer.get(hash);
+				int length = buffer.getInt();
+				if (length <= 0 || length > MAX_CHUNK) {
+					throw new IOException("invalid chunk length " + length);
+				}
+				chunks.add(new Chunk(hash, length));
+			}
+			return new Manifest(revision, chunks);
+		} catch (BufferUnderflowException e) {
+			throw new IOException("truncated manifest");
+		}
+	}
+
+}
@@ -0,0 +1,96 @@
+package documents;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Read-only memory mappings of the documents files, kept within a
+ * resident memory budget. The least recently used mappings are dropped
+ * when the budget is exceeded; their pages are released once the
+ * mapping buffers are garbage collected.
+ */
+public class MappingCache {
+
+	public static final long DEFAULT_BUDGET = 256L * 1024 * 1024;
+
+	private final long budget;
+	private long residentBytes;
+	// access-ordered: the first entry is the coldest mapping
+	private final LinkedHashMap<Document, MappedByteBuffer> mappings;
+
+	/**
+	 * @param budget max number of mapped bytes
+	 */
+	public MappingCache(long budget) {
+		this.budget = budget;
+		mappings = new LinkedHashMap<Document, MappedByteBuffer>(16, 0.75f, true);
+	}
+
+	/**
+	 * Return a mapping of the whole document file, mapping it if needed
+	 * @param document
+	 * @return a read-only buffer positioned at the beginning of the file
+	 * @throws IOException if the file cannot be mapped
+	 */
+	public synchronized ByteBuffer map(Document document) throws IOException {
+		MappedByteBuffer mapping = mappings.get(document);
+		if (mapping == null) {
+			mapping = mapFile(document.getFile());
+			mappings.put(document, mapping);
+			residentBytes += mapping.capacity();
+			evict(document);
+		}
+		return mapping.duplicate();
+	}
+
+	/**
+	 * Forget the mapping of a document whose file has been replaced
+	 */
+	public synchronized void invalidate(Document document) {
+		MappedByteBuffer mapping = mappings.remove(document);
+		if (mapping != null) {
+			residentBytes -= mapping.capacity();
+		}
+	}
+
+	public synchronized long getResidentBytes() {
+		return residentBytes;
+	}
+
+	/**
+	 * Drop the coldest mappings until the budget is respected,
+	 * keeping the one just mapped
+	 */
+	private void evict(Document keep) {
+		Iterator<Map.Entry<Document, MappedByteBuffer>> entries = mappings.entrySet().iterator();
+		while (residentBytes > budget && entries.hasNext()) {
+			Map.Entry<Document, MappedByteBuffer> entry = entries.next();
+			if (entry.getKey() != keep) {
+				residentBytes -= entry.getValue().capacity();
+				entries.remove();
+			}
+		}
+	}
+
+	private static MappedByteBuffer mapFile(File file) throws IOException {
+		FileChannel fileChannel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+		try {
+			long size = fileChannel.size();
+			if (size > Integer.MAX_VALUE) {
+				throw new IOException(file + " is too large to be mapped");
+			}
+			// the mapping stays valid once the channel is closed
+			return fileChannel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+		} finally {
+			fileChannel.close();
+		}
+	}
+
+}
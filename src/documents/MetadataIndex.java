@@ -0,0 +1,197 @@
+package documents;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * Metadata of the documents of a directory, kept in a hidden file so that
+ * their revisions survive a restart of the server: the copies cached by
+ * the clients stay valid.
+ * A file whose size and modification time have not changed keeps its
+ * revision. Otherwise its checksum tells if it was really modified
+ * outside the server, and its revision is then incremented.
+ * Encoded as:
+ * <pre>
+ * int    format version
+ * int    number of documents
+ * then for each document:
+ * short  name length
+ * byte[] name (UTF-8)
+ * int    revision
+ * long   size
+ * int    CRC32 of the content
+ * long   modification time (ms)
+ * </pre>
+ */
+public class MetadataIndex {
+
+	public static final String FILE_NAME = ".index";
+
+	private static final int VERSION = 1;
+
+	private static class Entry {
+		int revision;
+		long size;
+		int checksum;
+		long modified;
+	}
+
+	private final File file;
+	private final File tmpFile;
+	// guarded by this
+	private final Map<String, Entry> entries;
+
+	private static final Logger logger = Logger.getLogger(MetadataIndex.class.getName());
+
+	/**
+	 * Load the index of a directory, empty if it has none (or if it
+	 * cannot be read: the revisions then start again from 1)
+	 */
+	public MetadataIndex(File directory) {
+		file = new File(directory, FILE_NAME);
+		tmpFile = new File(directory, FILE_NAME + ".tmp");
+		entries = new HashMap<String, Entry>();
+		if (file.exists()) {
+			try {
+				load();
+			} catch (IOException e) {
+				logger.log(Level.WARNING, "MetadataIndex: cannot read " + file + ": " + e.getMessage());
+				entries.clear();
+			}
+		}
+	}
+
+	/**
+	 * Revision of a document file at startup: the indexed one if the file
+	 * did not change, the next one if it did, 1 for a new file.
+	 * The index is updated accordingly.
+	 * @throws IOException if the file cannot be read
+	 */
+	public synchronized int revision(File documentFile) throws IOException {
+		String name = documentFile.getName();
+		Entry entry = entries.get(name);
+		if (entry == null) {
+			put(name, 1, documentFile);
+			return 1;
+		}
+		if (entry.size != documentFile.length() || entry.modified != documentFile.lastModified()) {
+			int checksum = checksum(documentFile);
+			if (checksum != entry.checksum) {
+				logger.log(Level.INFO, "MetadataIndex: " + name + " was modified outside the server");
+				entry.revision++;
+			}
+			entry.checksum = checksum;
+			entry.size = documentFile.length();
+			entry.modified = documentFile.lastModified();
+		}
+		return entry.revision;
+	}
+
+	/**
+	 * Index the revision of a document whose file has been written.
+	 * The checksum is only computed again if the file changed.
+	 * @throws IOException if the file cannot be read
+	 */
+	public synchronized void update(String name, int revision, File documentFile) throws IOException {
+		Entry entry = entries.get(name);
+		if (entry != null && entry.revision == revision && entry.size == documentFile.length()
+				&& entry.modified == documentFile.lastModified()) {
+			return;
+		}
+		put(name, revision, documentFile);
+	}
+
+	/**
+	 * Write the index on its file: a temporary file forced and renamed
+	 * over the previous index
+	 * @throws IOException
+	 */
+	public synchronized void save() throws IOException {
+		FileOutputStream fos = new FileOutputStream(tmpFile);
+		try {
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos));
+			out.writeInt(VERSION);
+			out.writeInt(entries.size());
+			for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+				byte[] name = entry.getKey().getBytes(StandardCharsets.UTF_8);
+				out.writeShort(name.length);
+				out.write(name);
+				out.writeInt(entry.getValue().revision);
+				out.writeLong(entry.getValue().size);
+				out.writeInt(entry.getValue().checksum);
+				out.writeLong(entry.getValue().modified);
+			}
+			out.flush();
+			fos.getFD().sync();
+		} finally {
+			fos.close();
+		}
+		Files.move(tmpFile.toPath(), file.toPath(),
+				StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	private void put(String name, int revision, File documentFile) throws IOException {
+		Entry entry = new Entry();
+		entry.revision = revision;
+		entry.size = documentFile.length();
+		entry.modified = documentFile.lastModified();
+		entry.checksum = checksum(documentFile);
+		entries.put(name, entry);
+	}
+
+	private void load() throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+		try {
+			if (in.readInt() != VERSION) {
+				throw new IOException("unknown format");
+			}
+			int count = in.readInt();
+			for (int i = 0; i < count; i++) {
+				byte[] name = new byte[in.readUnsignedShort()];
+				in.readFully(name);
+				Entry entry = new Entry();
+				entry.revision = in.readInt();
+				entry.size = in.readLong();
+				entry.checksum = in.readInt();
+				entry.modified = in.readLong();
+				entries.put(new String(name, StandardCharsets.UTF_8), entry);
+			}
+		} catch (EOFException e) {
+			throw new IOException("truncated index");
+		} finally {
+			in.close();
+		}
+	}
+
+	private static int checksum(File documentFile) throws IOException {
+		CRC32 crc = new CRC32();
+		byte[] buffer = new byte[64 * 1024];
+		InputStream in = new FileInputStream(documentFile);
+		try {
+			int count;
+			while ((count = in.read(buffer)) > 0) {
+				crc.update(buffer, 0, count);
+			}
+		} finally {
+			in.close();
+		}
+		return (int) crc.getValue();
+	}
+
+}
@@ -7,7 +7,8 @@ public class RevisionNumber {
 	
 	public static final int LENGTH = 8;
 	
-	private int number;
+	// incremented by the owner of the document, read from other threads
+	private volatile int number;
 	
 	public RevisionNumber(int n) {
 		number = n;
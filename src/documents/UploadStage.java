@@ -0,0 +1,112 @@
+package documents;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+
+/**
+ * New contents of the documents uploaded in chunks, staged in files until
+ * they are committed (see Document.replace): an upload never goes through
+ * the memory, and an interrupted one is resumed where it stopped while
+ * the document keeps the revision it was started from.
+ * Stored in the hidden directory UPLOADS_DIRECTORY, as name.revision
+ * where revision is the one the upload replaces. The staged files are
+ * not forced, their content is checked when committed.
+ * The uploads of a document are made by the owner of its lock, under
+ * its lock monitor.
+ */
+public class UploadStage {
+
+	public static final String UPLOADS_DIRECTORY = ".uploads";
+
+	private final File directory;
+
+	/**
+	 * @throws IOException if the directory cannot be created
+	 */
+	public UploadStage(File documentsDirectory) throws IOException {
+		directory = new File(documentsDirectory, UPLOADS_DIRECTORY);
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IOException("cannot create " + directory);
+		}
+	}
+
+	/**
+	 * Length staged so far for an upload, where it resumes. The uploads
+	 * of the document started from other revisions are dropped.
+	 */
+	public long getLength(Document document, int revision) {
+		File staged = getFile(document, revision);
+		File[] files = directory.listFiles();
+		if (files != null) {
+			String prefix = document.getName() + ".";
+			for (File file : files) {
+				if (file.getName().startsWith(prefix) && !file.equals(staged)
+						&& file.getName().substring(prefix.length()).matches("\\d+")) {
+					file.delete();
+				}
+			}
+		}
+		return staged.length();
+	}
+
+	/**
+	 * Stage a chunk of an upload. A chunk that does not start where the
+	 * staged content ends is not written, but the first one, which starts
+	 * the upload again.
+	 * @param offset where the chunk starts in the new content
+	 * @param bytes the chunk, from its position to its limit
+	 * @return the length staged
+	 * @throws IOException
+	 */
+	public long write(Document document, int revision, long offset, ByteBuffer bytes) throws IOException {
+		FileChannel channel = FileChannel.open(getFile(document, revision).toPath(),
+				StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+		try {
+			if (offset == 0) {
+				channel.truncate(0);
+			}
+			long length = channel.size();
+			if (offset != length) {
+				return length;
+			}
+			while (bytes.hasRemaining()) {
+				length += channel.write(bytes, length);
+			}
+			return length;
+		} finally {
+			channel.close();
+		}
+	}
+
+	/**
+	 * @return the SHA-256 of the content staged, read by pieces
+	 * @throws IOException
+	 */
+	public byte[] digest(Document document, int revision) throws IOException {
+		MessageDigest digest = Manifest.newDigest();
+		ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+		FileChannel channel = FileChannel.open(getFile(document, revision).toPath(), StandardOpenOption.READ);
+		try {
+			while (channel.read(buffer) > 0) {
+				buffer.flip();
+				digest.update(buffer);
+				buffer.clear();
+			}
+		} finally {
+			channel.close();
+		}
+		return digest.digest();
+	}
+
+	/**
+	 * @return the staged file of an upload, given to Document.replace
+	 */
+	public File getFile(Document document, int revision) {
+		return new File(directory, document.getName() + "." + revision);
+	}
+
+}
@@ -0,0 +1,54 @@
+package documents;
+
+import java.nio.channels.SocketChannel;
+
+import nioEngine.I_NioEngine;
+
+/**
+ * A client waiting for the lock on a document, with the request
+ * it is waiting on, to be answered once it gets the lock
+ */
+public class Waiter {
+
+	private final SocketChannel client;
+	private final int requestId;
+	private final int opcode;
+	private final int cachedRevision;
+
+	/**
+	 * @param client
+	 * @param requestId id of the waiting request, 0 if none
+	 * @param opcode code of the waiting request
+	 * @param cachedRevision revision of the document cached by the client, 0 if none
+	 */
+	public Waiter(SocketChannel client, int requestId, int opcode, int cachedRevision) {
+		this.client = client;
+		this.requestId = requestId;
+		this.opcode = opcode;
+		this.cachedRevision = cachedRevision;
+	}
+
+	public SocketChannel getClient() {
+		return client;
+	}
+
+	public int getRequestId() {
+		return requestId;
+	}
+
+	public int getOpcode() {
+		return opcode;
+	}
+
+	public int getCachedRevision() {
+		return cachedRevision;
+	}
+
+	/**
+	 * @return true if the client waits for a read lease, false for the lock
+	 */
+	public boolean isReader() {
+		return opcode == I_NioEngine.READ;
+	}
+
+}
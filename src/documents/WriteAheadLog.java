@@ -0,0 +1,496 @@
+package documents;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only log of the changes made to the documents of a directory.
+ * A change is durable once its record is forced to the log: the writers
+ * waiting for their records share a single force (group commit), and
+ * the document files are brought up to date in the background
+ * (checkpoint), after which the log is dropped.
+ * A record sets the content of a document from an offset to its end,
+ * so that appends are logged without the content they keep:
+ * <pre>
+ * int    length of the record after this field
+ * int    CRC32 of the record after this field
+ * short  name length
+ * byte[] name (UTF-8)
+ * int    revision
+ * long   offset from which the content is replaced
+ * byte[] new content from the offset
+ * </pre>
+ * A content replaced by a whole file (see Document.replace) is logged
+ * with the offset REPLACED and the path of the file, relative to the
+ * directory, as content: the records of the document before it are not
+ * replayed, and the file is renamed over the document's if it was not.
+ * Checkpoints rename the log aside and start a new one: the records of
+ * the old log are dropped once the documents they changed are forced
+ * and their revisions saved in the MetadataIndex.
+ */
+public class WriteAheadLog {
+
+	public static final String FILE_NAME = ".wal";
+	private static final String OLD_FILE_NAME = ".wal.old";
+
+	// time (ms) between checkpoints, and log size starting one at once
+	public static final long CHECKPOINT_INTERVAL = 5 * 1000;
+	public static final long CHECKPOINT_SIZE = 64L * 1024 * 1024;
+
+	// offset of the records of the contents replaced by a file
+	private static final long REPLACED = -1;
+
+	private static final int HEADER_LENGTH = 4 + 4 + 2 + 4 + 8;
+
+	private final File directory;
+	private final File file;
+	private final File oldFile;
+	// revisions of the documents written on their files
+	private final MetadataIndex index;
+
+	// the current log (guarded by this)
+	private FileChannel channel;
+	// bytes written since the log was opened, over all the files (guarded by this)
+	private long written;
+	// value of written when the current file was started (guarded by this)
+	private long fileStart;
+	// bytes known to be forced (guarded by this)
+	private long durable;
+	// true while a writer forces the log for the others (guarded by this)
+	private boolean forcing;
+	// documents changed by the records of the current file (guarded by this)
+	private Set<Document> dirty;
+	// set if a logged change could not be applied nor cancelled, no
+	// record is accepted after it (guarded by this)
+	private IOException failure;
+
+	// documents changed by the records of the old file, not forced yet
+	// (guarded by checkpointLock)
+	private Set<Document> checkpointing;
+	private final Object checkpointLock = new Object();
+	private final ScheduledExecutorService checkpointer;
+
+	private static final Logger logger = Logger.getLogger(WriteAheadLog.class.getName());
+
+	/**
+	 * Open the log of a directory, after replaying the records a previous
+	 * run did not checkpoint on the documents files
+	 * @param directory
+	 * @param index the index given the revisions of the documents written
+	 * @throws IOException if the log cannot be replayed or created
+	 */
+	public WriteAheadLog(File directory, MetadataIndex index) throws IOException {
+		this.directory = directory;
+		this.index = index;
+		file = new File(directory, FILE_NAME);
+		oldFile = new File(directory, OLD_FILE_NAME);
+		replay();
+		channel = open(file);
+		dirty = new HashSet<Document>();
+		checkpointing = Collections.emptySet();
+		checkpointer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "WriteAheadLog-checkpoint");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		checkpointer.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				checkpointQuietly();
+			}
+		}, CHECKPOINT_INTERVAL, CHECKPOINT_INTERVAL, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Write the record of a change, without forcing it.
+	 * The record is written before the change is applied on the document,
+	 * under the document's monitor: a checkpoint reads the pending content
+	 * under the same monitor (see Document.checkpoint), so it sees the
+	 * change once the record is in the log.
+	 * @param document the changed document
+	 * @param revision its new revision
+	 * @param offset the offset from which the content is replaced
+	 * @param content the new content from the offset
+	 * @return the position to give to sync
+	 * @throws IOException
+	 */
+	public long append(Document document, int revision, long offset, byte[] content) throws IOException {
+		byte[] name = document.getName().getBytes(StandardCharsets.UTF_8);
+		ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH + name.length);
+		header.putInt(header.capacity() - 4 + content.length);
+		header.putInt(0);
+		header.putShort((short) name.length);
+		header.put(name);
+		header.putInt(revision);
+		header.putLong(offset);
+		CRC32 crc = new CRC32();
+		crc.update(header.array(), 8, header.capacity() - 8);
+		crc.update(content);
+		header.putInt(4, (int) crc.getValue());
+		header.flip();
+		ByteBuffer[] record = new ByteBuffer[] { header, ByteBuffer.wrap(content) };
+		boolean checkpointNeeded;
+		long position;
+		synchronized (this) {
+			if (failure != null) {
+				throw new IOException("the log is stopped after a failure", failure);
+			}
+			long length = header.remaining() + content.length;
+			long start = channel.size();
+			try {
+				long count = 0;
+				while (count < length) {
+					count += channel.write(record);
+				}
+			} catch (IOException e) {
+				// do not leave a partial record before the next ones
+				channel.truncate(start);
+				throw e;
+			}
+			written += length;
+			position = written;
+			dirty.add(document);
+			checkpointNeeded = written - fileStart > CHECKPOINT_SIZE
+					&& written - length - fileStart <= CHECKPOINT_SIZE;
+		}
+		if (checkpointNeeded) {
+			checkpointer.execute(new Runnable() {
+				@Override
+				public void run() {
+					checkpointQuietly();
+				}
+			});
+		}
+		return position;
+	}
+
+	/**
+	 * Write and force the record cancelling a logged append that could not
+	 * be applied: it cuts the content back to its length before the append,
+	 * at the previous revision, so that the append is undone by the replay.
+	 * If this record cannot be written either, the log stops (fail-stop):
+	 * the append could be replayed after a crash, so no other change is
+	 * accepted before a restart.
+	 * @param revision the revision before the append
+	 * @param length the length of the content before the append
+	 * @throws IOException if the record cannot be written, the log is then stopped
+	 */
+	public void cancelAppend(Document document, int revision, long length) throws IOException {
+		try {
+			sync(append(document, revision, length, new byte[0]));
+		} catch (IOException e) {
+			synchronized (this) {
+				if (failure == null) {
+					failure = e;
+				}
+			}
+			logger.log(Level.SEVERE, "WriteAheadLog: cannot cancel a change of " + document.getName()
+					+ ", the log is stopped: " + e.getMessage());
+			throw e;
+		}
+	}
+
+	/**
+	 * Write the record of a content replaced by a file, without forcing it.
+	 * The file must be renamed over the document's once the record is forced.
+	 * @param replacement the file, in the directory
+	 * @return the position to give to sync
+	 * @throws IOException
+	 */
+	public long replace(Document document, int revision, File replacement) throws IOException {
+		String path = directory.toPath().relativize(replacement.toPath()).toString();
+		return append(document, revision, REPLACED, path.getBytes(StandardCharsets.UTF_8));
+	}
+
+	/**
+	 * Wait until the log is forced up to a position. The first writer
+	 * to arrive forces the log for everything written so far, the writers
+	 * arriving meanwhile wait for it and are covered by the next force.
+	 * @param position returned by append
+	 * @throws IOException if the log cannot be forced
+	 */
+	public void sync(long position) throws IOException {
+		FileChannel target;
+		long end;
+		synchronized (this) {
+			while (durable < position && forcing) {
+				waitForce();
+			}
+			if (durable >= position) {
+				return;
+			}
+			forcing = true;
+			target = channel;
+			end = written;
+		}
+		boolean forced = false;
+		try {
+			target.force(false);
+			forced = true;
+		} finally {
+			synchronized (this) {
+				forcing = false;
+				if (forced && end > durable) {
+					durable = end;
+				}
+				notifyAll();
+			}
+		}
+	}
+
+	/**
+	 * Bring the documents files up to date and drop the records of the
+	 * changes they now hold
+	 * @throws IOException if a document cannot be written, the records
+	 * are kept and the documents written again by the next checkpoint
+	 */
+	public void checkpoint() throws IOException {
+		synchronized (checkpointLock) {
+			if (!oldFile.exists()) {
+				synchronized (this) {
+					if (written == fileStart) {
+						return;
+					}
+					while (forcing) {
+						waitForce();
+					}
+					// the records of the old file are durable, the new one starts empty
+					channel.force(false);
+					durable = written;
+					channel.close();
+					if (!file.renameTo(oldFile)) {
+						channel = open(file);
+						throw new IOException("cannot rename " + file);
+					}
+					channel = open(file);
+					fileStart = written;
+					checkpointing = dirty;
+					dirty = new HashSet<Document>();
+				}
+			}
+			for (Document document : checkpointing) {
+				document.checkpoint();
+				// a replacement (see Document.replace) changes the revision and the file at once
+				synchronized (document) {
+					index.update(document.getName(), document.getRevision().value(), document.getFile());
+				}
+			}
+			index.save();
+			forceDirectory();
+			if (!oldFile.delete()) {
+				throw new IOException("cannot delete " + oldFile);
+			}
+			checkpointing = Collections.emptySet();
+		}
+	}
+
+	/**
+	 * Stop the checkpoints and write the documents files a last time
+	 */
+	public void close() {
+		checkpointer.shutdownNow();
+		checkpointQuietly();
+		synchronized (this) {
+			try {
+				channel.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	private void checkpointQuietly() {
+		try {
+			checkpoint();
+		} catch (IOException e) {
+			logger.log(Level.WARNING, "WriteAheadLog: checkpoint failed: " + e.getMessage());
+		}
+	}
+
+	private void waitForce() throws InterruptedIOException {
+		try {
+			wait();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("interrupted while forcing the log");
+		}
+	}
+
+	/**
+	 * Apply the records left by a previous run on the documents files,
+	 * oldest first, force the files, index their revisions and drop the
+	 * records. A record cut short by a crash, and the ones after it, were
+	 * never acknowledged.
+	 * A first pass finds the last replacement of each document, the
+	 * records before it are not applied.
+	 */
+	private void replay() throws IOException {
+		Map<String, RandomAccessFile> files = new HashMap<String, RandomAccessFile>();
+		Map<String, Integer> revisions = new HashMap<String, Integer>();
+		Map<String, Integer> replacements = new HashMap<String, Integer>();
+		int oldCount = replay(oldFile, 0, replacements, null, null);
+		replay(file, oldCount, replacements, null, null);
+		try {
+			int count = replay(oldFile, 0, replacements, files, revisions)
+					+ replay(file, oldCount, replacements, files, revisions);
+			for (RandomAccessFile target : files.values()) {
+				target.getChannel().force(false);
+			}
+			if (count > 0) {
+				logger.log(Level.INFO, "WriteAheadLog: replayed " + count + " changes");
+			}
+		} finally {
+			for (RandomAccessFile target : files.values()) {
+				target.close();
+			}
+		}
+		if (!revisions.isEmpty()) {
+			for (Map.Entry<String, Integer> revision : revisions.entrySet()) {
+				index.update(revision.getKey(), revision.getValue(), new File(directory, revision.getKey()));
+			}
+			index.save();
+		}
+		forceDirectory();
+		oldFile.delete();
+		file.delete();
+	}
+
+	/**
+	 * Read the records of a log
+	 * @param first number of the first record, counted over both logs
+	 * @param replacements number of the last replacement record of each
+	 * document, filled when files is null
+	 * @param files the documents files written, null to only find the replacements
+	 * @param revisions the revisions of the documents written
+	 * @return the number of records read
+	 */
+	private int replay(File log, int first, Map<String, Integer> replacements,
+			Map<String, RandomAccessFile> files, Map<String, Integer> revisions) throws IOException {
+		if (!log.exists()) {
+			return 0;
+		}
+		int count = 0;
+		RandomAccessFile input = new RandomAccessFile(log, "r");
+		try {
+			while (true) {
+				byte[] record;
+				int checksum;
+				try {
+					int length = input.readInt();
+					checksum = input.readInt();
+					if (length < HEADER_LENGTH - 8 || length - 4 > input.length() - input.getFilePointer()) {
+						break;
+					}
+					record = new byte[length - 4];
+					input.readFully(record);
+				} catch (EOFException e) {
+					break;
+				}
+				CRC32 crc = new CRC32();
+				crc.update(record);
+				if ((int) crc.getValue() != checksum) {
+					logger.log(Level.WARNING, "WriteAheadLog: corrupted record in " + log + ", ignoring the rest");
+					break;
+				}
+				ByteBuffer buffer = ByteBuffer.wrap(record);
+				byte[] name = new byte[buffer.getShort()];
+				buffer.get(name);
+				int revision = buffer.getInt();
+				long offset = buffer.getLong();
+				String documentName = new String(name, StandardCharsets.UTF_8);
+				int number = first + count++;
+				if (files == null) {
+					if (offset == REPLACED) {
+						replacements.put(documentName, number);
+					}
+					continue;
+				}
+				Integer replacement = replacements.get(documentName);
+				if (replacement != null && number < replacement) {
+					continue;
+				}
+				revisions.put(documentName, revision);
+				if (offset == REPLACED) {
+					replaceFile(documentName, new String(record, buffer.position(), buffer.remaining(),
+							StandardCharsets.UTF_8), files);
+					continue;
+				}
+				RandomAccessFile target = files.get(documentName);
+				if (target == null) {
+					target = new RandomAccessFile(new File(directory, documentName), "rw");
+					files.put(documentName, target);
+				}
+				target.seek(offset);
+				target.write(record, buffer.position(), buffer.remaining());
+				target.setLength(offset + buffer.remaining());
+			}
+		} finally {
+			input.close();
+		}
+		return count;
+	}
+
+	/**
+	 * Rename the file replacing a document over it, unless it was already
+	 */
+	private void replaceFile(String documentName, String path, Map<String, RandomAccessFile> files)
+			throws IOException {
+		RandomAccessFile target = files.remove(documentName);
+		if (target != null) {
+			target.close();
+		}
+		File documentFile = new File(directory, documentName);
+		File replacement = new File(directory, path);
+		if (replacement.exists()) {
+			Files.move(replacement.toPath(), documentFile.toPath(),
+					StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		}
+		files.put(documentName, new RandomAccessFile(documentFile, "rw"));
+	}
+
+	/**
+	 * Make the renames in the directory durable, where the platform allows it
+	 */
+	void forceDirectory() {
+		try {
+			FileChannel directoryChannel = FileChannel.open(directory.toPath(), StandardOpenOption.READ);
+			try {
+				directoryChannel.force(true);
+			} finally {
+				directoryChannel.close();
+			}
+		} catch (IOException e) {
+			// not supported (Windows), the files themselves are forced
+		}
+	}
+
+	private static FileChannel open(File file) throws IOException {
+		return FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+				StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+	}
+
+}
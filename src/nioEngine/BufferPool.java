@@ -0,0 +1,134 @@
+package nioEngine;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Pool of the direct buffers the engine reads frames into and encodes
+ * frame headers in, by size classes of powers of two from MIN_CLASS_SIZE
+ * to MAX_CLASS_SIZE: once the pool holds the buffers the traffic needs,
+ * the steady state allocates none. Each class keeps at most a budget of
+ * free bytes, the buffers released beyond it are dropped.
+ * Larger frames get heap buffers of their exact size, never pooled.
+ * Safe to use from any thread; the free lists are bounded arrays, taking
+ * or giving a buffer back allocates nothing.
+ */
+public class BufferPool {
+
+	public static final int MIN_CLASS_SIZE = 256;
+	public static final int MAX_CLASS_SIZE = 1024 * 1024;
+	// free bytes kept per size class
+	public static final long DEFAULT_CLASS_BUDGET = 4 * 1024 * 1024;
+
+	private static final int MIN_CLASS_SHIFT = Integer.numberOfTrailingZeros(MIN_CLASS_SIZE);
+
+	private final List<ArrayBlockingQueue<PooledBuffer>> classes;
+	// buffers handed out, and those of them that had to be allocated
+	private final AtomicLong acquisitions = new AtomicLong();
+	private final AtomicLong allocations = new AtomicLong();
+	private final AtomicLong allocatedBytes = new AtomicLong();
+	// allocations too large for the pool
+	private final AtomicLong unpooledAllocations = new AtomicLong();
+
+	public BufferPool() {
+		this(DEFAULT_CLASS_BUDGET);
+	}
+
+	/**
+	 * @param classBudget free bytes kept per size class, at least one
+	 * buffer is kept in each class
+	 */
+	public BufferPool(long classBudget) {
+		int count = Integer.numberOfTrailingZeros(MAX_CLASS_SIZE) - MIN_CLASS_SHIFT + 1;
+		classes = new ArrayList<ArrayBlockingQueue<PooledBuffer>>(count);
+		for (int i = 0; i < count; i++) {
+			long capacity = Math.max(1, classBudget / (MIN_CLASS_SIZE << i));
+			classes.add(new ArrayBlockingQueue<PooledBuffer>((int) Math.min(capacity, Integer.MAX_VALUE)));
+		}
+	}
+
+	/**
+	 * Take a buffer of at least size bytes, limited to size, with one
+	 * reference
+	 */
+	PooledBuffer acquire(int size) {
+		acquisitions.incrementAndGet();
+		PooledBuffer buffer;
+		if (size > MAX_CLASS_SIZE) {
+			unpooledAllocations.incrementAndGet();
+			allocations.incrementAndGet();
+			allocatedBytes.addAndGet(size);
+			buffer = new PooledBuffer(null, -1, ByteBuffer.allocate(size));
+		}
+		else {
+			int sizeClass = sizeClass(size);
+			buffer = classes.get(sizeClass).poll();
+			if (buffer == null) {
+				int capacity = MIN_CLASS_SIZE << sizeClass;
+				allocations.incrementAndGet();
+				allocatedBytes.addAndGet(capacity);
+				buffer = new PooledBuffer(this, sizeClass, ByteBuffer.allocateDirect(capacity));
+			}
+		}
+		buffer.reset(size);
+		return buffer;
+	}
+
+	/**
+	 * Give back a buffer whose references are all released
+	 */
+	void recycle(PooledBuffer buffer) {
+		classes.get(buffer.sizeClass).offer(buffer);
+	}
+
+	private static int sizeClass(int size) {
+		if (size <= MIN_CLASS_SIZE) {
+			return 0;
+		}
+		return 32 - Integer.numberOfLeadingZeros(size - 1) - MIN_CLASS_SHIFT;
+	}
+
+	/**
+	 * @return the number of buffers handed out
+	 */
+	public long getAcquisitions() {
+		return acquisitions.get();
+	}
+
+	/**
+	 * @return the number of buffers allocated, pooled or not
+	 */
+	public long getAllocations() {
+		return allocations.get();
+	}
+
+	/**
+	 * @return the bytes of the buffers allocated, pooled or not
+	 */
+	public long getAllocatedBytes() {
+		return allocatedBytes.get();
+	}
+
+	/**
+	 * @return the number of heap buffers allocated for frames larger than
+	 * MAX_CLASS_SIZE
+	 */
+	public long getUnpooledAllocations() {
+		return unpooledAllocations.get();
+	}
+
+	/**
+	 * @return the number of free buffers in the pool
+	 */
+	public int getFreeBuffers() {
+		int free = 0;
+		for (ArrayBlockingQueue<PooledBuffer> sizeClass : classes) {
+			free += sizeClass.size();
+		}
+		return free;
+	}
+
+}
@@ -0,0 +1,150 @@
+package nioEngine;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+/**
+ * Per-connection state, attached to the SelectionKey of each channel.
+ * Holds the framing state machine so that partial frames of different
+ * connections never interfere with each other, and the queue of frames
+ * waiting to be written on the channel. The queue holds ByteBuffers and
+ * PooledBuffers, written with gathering writes and the latter released
+ * once written, and FileRegions, transferred from their file.
+ * Only the thread of the serving SelectorLoop accesses it, other threads
+ * go through commands (see @code SelectorLoop.execute).
+ */
+class ChannelContext {
+
+	static enum ReadState {READ_SIZE, READ_CONTENT};
+
+	// max number of buffers given to a single gathering write
+	private static final int MAX_GATHER = 64;
+
+	final SocketChannel channel;
+	// the reactor serving the channel
+	final SelectorLoop loop;
+	// null until the loop has registered the channel
+	SelectionKey key;
+
+	ReadState readState;
+	// partial 4-byte length header of the frame being read
+	final ByteBuffer sizeBuffer;
+	// partial body of the frame being read (null while reading the header)
+	PooledBuffer inBuffer;
+
+	// ByteBuffers, PooledBuffers and FileRegions waiting to be written,
+	// the head may be partially written
+	final Deque<Object> outQueue;
+	// number of bytes still in outQueue
+	long pendingBytes;
+	// false between crossing the high watermark and draining below the low one
+	// (read by producer threads)
+	volatile boolean writable;
+	// true while the handler has suspended reading (see NioEngine.setReading)
+	boolean readingSuspended;
+	// the codec negotiated with the other end, null until then
+	// (read by producer threads)
+	volatile I_Codec codec;
+
+	private final ByteBuffer[] gatherArray;
+
+	ChannelContext(SocketChannel channel, SelectorLoop loop) {
+		this.channel = channel;
+		this.loop = loop;
+		readState = ReadState.READ_SIZE;
+		sizeBuffer = ByteBuffer.allocate(4);
+		outQueue = new ArrayDeque<Object>();
+		writable = true;
+		gatherArray = new ByteBuffer[MAX_GATHER];
+	}
+
+	/**
+	 * Queue buffers or file regions to be written
+	 * @return true if the queue was empty before
+	 */
+	boolean enqueue(Object... items) {
+		boolean wasEmpty = outQueue.isEmpty();
+		for (Object item : items) {
+			outQueue.addLast(item);
+			pendingBytes += remaining(item);
+		}
+		return wasEmpty;
+	}
+
+	/**
+	 * Fill the gathering array with the buffers at the head of the queue,
+	 * up to the first file region
+	 * @return the number of buffers to write
+	 */
+	int gather() {
+		int count = 0;
+		for (Object item : outQueue) {
+			if (count == MAX_GATHER || item instanceof FileRegion) {
+				break;
+			}
+			gatherArray[count++] = item instanceof PooledBuffer ? ((PooledBuffer) item).buffer() : (ByteBuffer) item;
+		}
+		return count;
+	}
+
+	ByteBuffer[] gatherArray() {
+		return gatherArray;
+	}
+
+	/**
+	 * Account for written bytes and drop the fully written items
+	 */
+	void written(long count, int gathered) {
+		pendingBytes -= count;
+		while (!outQueue.isEmpty() && remaining(outQueue.peekFirst()) == 0) {
+			close(outQueue.removeFirst());
+		}
+		for (int i = 0; i < gathered; i++) {
+			gatherArray[i] = null;
+		}
+	}
+
+	/**
+	 * Drop the queue and the partial frame of a closed channel
+	 */
+	void release() {
+		for (Object item : outQueue) {
+			close(item);
+		}
+		outQueue.clear();
+		if (inBuffer != null) {
+			inBuffer.release();
+			inBuffer = null;
+		}
+		pendingBytes = 0;
+		if (codec != null) {
+			codec.release();
+		}
+	}
+
+	private static long remaining(Object item) {
+		if (item instanceof FileRegion) {
+			return ((FileRegion) item).remaining();
+		}
+		if (item instanceof PooledBuffer) {
+			return ((PooledBuffer) item).buffer().remaining();
+		}
+		return ((ByteBuffer) item).remaining();
+	}
+
+	/**
+	 * Free a written or dropped item
+	 */
+	private static void close(Object item) {
+		if (item instanceof FileRegion) {
+			((FileRegion) item).close();
+		}
+		else if (item instanceof PooledBuffer) {
+			((PooledBuffer) item).release();
+		}
+	}
+
+}
@@ -0,0 +1,26 @@
+package nioEngine;
+
+/**
+ * Operation on a channel, posted by any thread to the SelectorLoop
+ * serving the channel and executed by the loop thread
+ */
+class Command {
+
+	static enum Type {REGISTER, SEND, CLOSE, INTEREST, READING};
+
+	final Type type;
+	final ChannelContext context;
+	// SEND: the ByteBuffers, PooledBuffers and FileRegions to queue
+	final Object[] items;
+	// REGISTER: the initial interest set, INTEREST: the operations to add (>0)
+	// or remove (<0), READING: 1 to resume reading, 0 to suspend it
+	final int ops;
+
+	Command(Type type, ChannelContext context, Object[] items, int ops) {
+		this.type = type;
+		this.context = context;
+		this.items = items;
+		this.ops = ops;
+	}
+
+}
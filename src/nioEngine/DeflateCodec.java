@@ -0,0 +1,181 @@
+package nioEngine;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Deflate codec (raw deflate, without zlib header). The deflater and the
+ * inflater of a connection are reset and reused from frame to frame, as
+ * are the arrays through which direct buffers are fed to them: a frame
+ * allocates nothing.
+ */
+public class DeflateCodec implements I_Codec {
+
+	public static final String NAME = "deflate";
+
+	// size of the pieces of direct buffers copied through arrays
+	private static final int PIECE_SIZE = 64 * 1024;
+	// given to the deflater and inflater once done, to drop their input
+	private static final byte[] NO_INPUT = new byte[0];
+
+	private final int level;
+	// guarded by this
+	private Deflater deflater;
+	private byte[] deflaterInput;
+	private byte[] deflaterOutput;
+	private boolean released;
+	// guarded by inflaterLock: the engine thread decompresses while
+	// another thread compresses
+	private Inflater inflater;
+	private byte[] inflaterInput;
+	private byte[] inflaterOutput;
+	private final Object inflaterLock = new Object();
+
+	public DeflateCodec() {
+		this(Deflater.DEFAULT_COMPRESSION);
+	}
+
+	/**
+	 * @param level the compression level, 1 (fastest) to 9 (smallest)
+	 */
+	public DeflateCodec(int level) {
+		this.level = level;
+	}
+
+	@Override
+	public String getName() {
+		return NAME;
+	}
+
+	@Override
+	public I_Codec newInstance() {
+		return new DeflateCodec(level);
+	}
+
+	@Override
+	public boolean compress(ByteBuffer input, ByteBuffer output) {
+		input = input.duplicate();
+		synchronized (this) {
+			if (released) {
+				return false;
+			}
+			if (deflater == null) {
+				deflater = new Deflater(level, true);
+			}
+			deflater.reset();
+			try {
+				if (input.hasArray()) {
+					deflater.setInput(input.array(), input.arrayOffset() + input.position(), input.remaining());
+					deflater.finish();
+				}
+				while (!deflater.finished()) {
+					if (deflater.needsInput()) {
+						// a mapped file or direct buffer: fed by pieces
+						if (deflaterInput == null) {
+							deflaterInput = new byte[PIECE_SIZE];
+						}
+						int count = Math.min(deflaterInput.length, input.remaining());
+						input.get(deflaterInput, 0, count);
+						deflater.setInput(deflaterInput, 0, count);
+						if (!input.hasRemaining()) {
+							deflater.finish();
+						}
+					}
+					if (!output.hasRemaining()) {
+						// not worth it
+						return false;
+					}
+					if (output.hasArray()) {
+						int count = deflater.deflate(output.array(), output.arrayOffset() + output.position(),
+								output.remaining());
+						output.position(output.position() + count);
+					}
+					else {
+						if (deflaterOutput == null) {
+							deflaterOutput = new byte[PIECE_SIZE];
+						}
+						int count = deflater.deflate(deflaterOutput, 0, Math.min(deflaterOutput.length, output.remaining()));
+						output.put(deflaterOutput, 0, count);
+					}
+				}
+				return true;
+			} finally {
+				// the input array is not referenced once the frame is compressed
+				deflater.setInput(NO_INPUT);
+			}
+		}
+	}
+
+	@Override
+	public void decompress(ByteBuffer input, ByteBuffer output) throws IOException {
+		input = input.duplicate();
+		synchronized (inflaterLock) {
+			if (inflater == null) {
+				inflater = new Inflater(true);
+			}
+			inflater.reset();
+			try {
+				if (input.hasArray()) {
+					inflater.setInput(input.array(), input.arrayOffset() + input.position(), input.remaining());
+					input.position(input.limit());
+				}
+				while (output.hasRemaining()) {
+					if (inflater.needsInput()) {
+						if (!input.hasRemaining()) {
+							break;
+						}
+						// a direct frame: fed by pieces
+						if (inflaterInput == null) {
+							inflaterInput = new byte[PIECE_SIZE];
+						}
+						int count = Math.min(inflaterInput.length, input.remaining());
+						input.get(inflaterInput, 0, count);
+						inflater.setInput(inflaterInput, 0, count);
+					}
+					int count;
+					if (output.hasArray()) {
+						count = inflater.inflate(output.array(), output.arrayOffset() + output.position(),
+								output.remaining());
+						output.position(output.position() + count);
+					}
+					else {
+						if (inflaterOutput == null) {
+							inflaterOutput = new byte[PIECE_SIZE];
+						}
+						count = inflater.inflate(inflaterOutput, 0, Math.min(inflaterOutput.length, output.remaining()));
+						output.put(inflaterOutput, 0, count);
+					}
+					if (count == 0 && (inflater.finished() || inflater.needsDictionary())) {
+						break;
+					}
+				}
+			} catch (DataFormatException e) {
+				throw new IOException("corrupted payload: " + e.getMessage());
+			} finally {
+				inflater.setInput(NO_INPUT);
+			}
+			if (output.hasRemaining()) {
+				throw new IOException("payload shorter than announced");
+			}
+		}
+	}
+
+	@Override
+	public void release() {
+		synchronized (this) {
+			released = true;
+			if (deflater != null) {
+				deflater.end();
+			}
+		}
+		synchronized (inflaterLock) {
+			if (inflater != null) {
+				inflater.end();
+			}
+		}
+	}
+
+}
@@ -0,0 +1,250 @@
+package nioEngine;
+
+import java.lang.reflect.Method;
+import java.nio.channels.SocketChannel;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Stage between the engine and a handler, running the handler on worker
+ * threads so that slow handlers (disk I/O) never hold a reactor up.
+ * The callbacks of a channel run one at a time, in the order the engine
+ * made them; callbacks of different channels run in parallel, the handler
+ * orders them itself where needed (for instance per document).
+ * A client whose messages pile up faster than they are handled stops
+ * being read until its backlog is halved.
+ */
+public class Dispatcher implements I_RecvMsgHandler, I_ChannelStateHandler {
+
+	// number of queued callbacks of a channel over which it stops being read
+	public static final int DEFAULT_MAX_QUEUED = 64;
+
+	/**
+	 * Callbacks of one channel, run in order by at most one worker at a time
+	 */
+	private class Connection implements Runnable {
+
+		final SocketChannel channel;
+		final Queue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+		// callbacks queued and not run yet
+		final AtomicInteger queued = new AtomicInteger();
+		// true while a worker runs or is about to run the callbacks
+		final AtomicBoolean scheduled = new AtomicBoolean();
+		// true while reading the channel is suspended (guarded by this)
+		boolean suspended;
+
+		Connection(SocketChannel channel) {
+			this.channel = channel;
+		}
+
+		void execute(Runnable task) {
+			tasks.add(task);
+			if (queued.incrementAndGet() > maxQueued) {
+				updateReading();
+			}
+			if (scheduled.compareAndSet(false, true)) {
+				try {
+					executor.execute(this);
+				} catch (RejectedExecutionException e) {
+					// the dispatcher has been shut down, the callbacks are dropped
+				}
+			}
+		}
+
+		@Override
+		public void run() {
+			do {
+				Runnable task;
+				while ((task = tasks.poll()) != null) {
+					try {
+						task.run();
+					} catch (RuntimeException e) {
+						System.out.println("Exception in handler " + e);
+						e.printStackTrace();
+					}
+					if (queued.decrementAndGet() <= maxQueued / 2) {
+						updateReading();
+					}
+				}
+				scheduled.set(false);
+				// a callback may have been queued after the last poll
+			} while (!tasks.isEmpty() && scheduled.compareAndSet(false, true));
+		}
+
+		/**
+		 * Suspend reading over maxQueued callbacks, resume at half of it.
+		 * Changes are made under the lock so that the engine applies them
+		 * in order.
+		 */
+		private synchronized void updateReading() {
+			if (engine == null) {
+				return;
+			}
+			int count = queued.get();
+			if (!suspended && count > maxQueued) {
+				suspended = true;
+				engine.setReading(channel, false);
+			}
+			else if (suspended && count <= maxQueued / 2) {
+				suspended = false;
+				engine.setReading(channel, true);
+			}
+		}
+	}
+
+	private final I_RecvMsgHandler handler;
+	private final ExecutorService executor;
+	private final ConcurrentHashMap<SocketChannel, Connection> connections;
+	private I_NioEngine engine;
+	private int maxQueued = DEFAULT_MAX_QUEUED;
+
+	/**
+	 * @param handler the handler, also notified of the channel states if
+	 * it implements @code I_ChannelStateHandler
+	 * @param executor the workers, shut down with the dispatcher
+	 */
+	public Dispatcher(I_RecvMsgHandler handler, ExecutorService executor) {
+		this.handler = handler;
+		this.executor = executor;
+		connections = new ConcurrentHashMap<SocketChannel, Connection>();
+	}
+
+	/**
+	 * @param engine the engine calling the dispatcher, told to stop reading
+	 * the clients with too many queued messages
+	 */
+	public void setEngine(I_NioEngine engine) {
+		this.engine = engine;
+	}
+
+	/**
+	 * @param maxQueued number of queued callbacks of a channel over which
+	 * it stops being read
+	 */
+	public void setMaxQueued(int maxQueued) {
+		if (maxQueued < 1) {
+			throw new IllegalArgumentException("invalid queue size " + maxQueued);
+		}
+		this.maxQueued = maxQueued;
+	}
+
+	/**
+	 * The message is handed over to the worker as is, retained until the
+	 * handler returns. The frame buffer of a callback dropped by the
+	 * shutdown is not given back to the pool, only garbage collected.
+	 */
+	@Override
+	public void receivedCB(final Message message, final SocketChannel socketChannel) {
+		message.retain();
+		connection(socketChannel).execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					handler.receivedCB(message, socketChannel);
+				} finally {
+					message.release();
+				}
+			}
+		});
+	}
+
+	@Override
+	public void writableCB(final SocketChannel socketChannel) {
+		if (handler instanceof I_ChannelStateHandler) {
+			connection(socketChannel).execute(new Runnable() {
+				@Override
+				public void run() {
+					((I_ChannelStateHandler) handler).writableCB(socketChannel);
+				}
+			});
+		}
+	}
+
+	/**
+	 * Called once per channel, after its other callbacks: the handler is
+	 * told once they have all run
+	 */
+	@Override
+	public void disconnectedCB(final SocketChannel socketChannel) {
+		final Connection connection = connection(socketChannel);
+		connection.execute(new Runnable() {
+			@Override
+			public void run() {
+				connections.remove(socketChannel, connection);
+				if (handler instanceof I_ChannelStateHandler) {
+					((I_ChannelStateHandler) handler).disconnectedCB(socketChannel);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Stop the workers, dropping the callbacks not run yet
+	 */
+	public void shutdown() {
+		executor.shutdownNow();
+	}
+
+	private Connection connection(SocketChannel socketChannel) {
+		Connection connection = connections.get(socketChannel);
+		if (connection == null) {
+			Connection created = new Connection(socketChannel);
+			connection = connections.putIfAbsent(socketChannel, created);
+			if (connection == null) {
+				connection = created;
+			}
+		}
+		return connection;
+	}
+
+	/**
+	 * Pool of platform threads. Its queue is not bounded, the dispatcher
+	 * bounds the callbacks queued by each client instead.
+	 * @param threads number of worker threads
+	 */
+	public static ExecutorService newPlatformPool(int threads) {
+		final AtomicInteger count = new AtomicInteger();
+		return new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+				new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "Dispatcher-worker-" + count.getAndIncrement());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	/**
+	 * One virtual thread per callback, if the runtime has them (Java 21)
+	 * @return the executor, or null if virtual threads are not available
+	 */
+	public static ExecutorService newVirtualThreadExecutor() {
+		try {
+			Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+			return (ExecutorService) factory.invoke(null);
+		} catch (Exception e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Virtual threads if available, a pool of platform threads otherwise
+	 * @param threads number of platform threads
+	 */
+	public static ExecutorService newExecutor(int threads) {
+		ExecutorService executor = newVirtualThreadExecutor();
+		return executor != null ? executor : newPlatformPool(threads);
+	}
+
+}
@@ -0,0 +1,64 @@
+package nioEngine;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * A region of a file sent as a message payload. The engine transfers it
+ * with FileChannel.transferTo (sendfile where available), so the content
+ * never goes through the Java heap.
+ */
+public class FileRegion {
+
+	private final FileChannel fileChannel;
+	private long position;
+	private final long end;
+
+	/**
+	 * @param fileChannel the file, closed by the engine once the region is sent
+	 * @param position start of the region
+	 * @param count length of the region
+	 */
+	public FileRegion(FileChannel fileChannel, long position, long count) {
+		this.fileChannel = fileChannel;
+		this.position = position;
+		this.end = position + count;
+	}
+
+	public long remaining() {
+		return end - position;
+	}
+
+	/**
+	 * Transfer as much of the region as the target accepts
+	 * @return the number of bytes transferred
+	 * @throws IOException if the file is shorter than the region
+	 */
+	long transferTo(WritableByteChannel target) throws IOException {
+		long transferred = fileChannel.transferTo(position, end - position, target);
+		if (transferred == 0 && fileChannel.size() < end) {
+			throw new IOException("file truncated during transfer");
+		}
+		position += transferred;
+		return transferred;
+	}
+
+	/**
+	 * Map the rest of the region, to read it through the heap
+	 * @throws IOException
+	 */
+	ByteBuffer map() throws IOException {
+		return fileChannel.map(FileChannel.MapMode.READ_ONLY, position, end - position);
+	}
+
+	void close() {
+		try {
+			fileChannel.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+}
@@ -0,0 +1,17 @@
+package nioEngine;
+
+import java.nio.channels.SocketChannel;
+
+/**
+ * Optional interface for message handlers that want to be notified
+ * of channel state changes
+ */
+public interface I_ChannelStateHandler {
+
+	// callback called when a channel has drained below its low watermark
+	public void writableCB(SocketChannel socketChannel);
+
+	// callback called once a channel has been closed, by either side
+	public void disconnectedCB(SocketChannel socketChannel);
+
+}
@@ -0,0 +1,49 @@
+package nioEngine;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Compression codec of the frames payloads, negotiated per connection
+ * (see I_NioEngine.setCompression). Each connection gets its own
+ * instance, which keeps its compressor state from frame to frame.
+ * An instance may compress from several threads and decompress from the
+ * engine thread at the same time.
+ */
+public interface I_Codec {
+	
+	/**
+	 * @return the name of the codec, announced in the HELLO handshake
+	 */
+	public String getName();
+	
+	/**
+	 * @return a new instance of the codec, for a connection
+	 */
+	public I_Codec newInstance();
+	
+	/**
+	 * Compress a payload into a buffer given by the engine, which keeps
+	 * room for its own header before the output's position
+	 * @param input from its position to its limit (not modified)
+	 * @param output receives the compressed bytes from its position,
+	 * heap or direct
+	 * @return false if the compressed bytes do not fit before the output's
+	 * limit (not worth it), the output is then left in any state
+	 */
+	public boolean compress(ByteBuffer input, ByteBuffer output);
+	
+	/**
+	 * Decompress a payload
+	 * @param input from its position to its limit, heap or direct
+	 * @param output receives exactly the original bytes, heap or direct
+	 * @throws IOException if the input is corrupted or its length wrong
+	 */
+	public void decompress(ByteBuffer input, ByteBuffer output) throws IOException;
+	
+	/**
+	 * Free the resources of the instance, once its connection is closed
+	 */
+	public void release();
+	
+}
@@ -17,8 +17,59 @@ public interface I_NioEngine extends Runnable {
 	public static final int UPLOAD			= 4; // to upload a document
 	public static final int ALREADY_LOCKED	= 5; // to tell client the document is locked
 	public static final int DOCUMENTS_LIST	= 6; // to communicate the documents list
+	public static final int UNKNOWN_DOCUMENT	= 7; // to tell client the requested document does not exist
+	public static final int COMMIT			= 8; // to upload a document and unlock it, acknowledged with the new revision
+	public static final int NOT_LOCKED		= 9; // to tell client it does not own the lock on the document
+	public static final int STALE_REVISION	= 10; // to reject a delta whose base is not the current revision
+	public static final int INVALIDATE		= 11; // to tell client a document it caches has a new revision
+	public static final int NOT_MODIFIED	= 12; // to answer a download of the revision client caches (sent in the request)
+	public static final int READ			= 13; // to download a document with a shared read lease (released by UNLOCK, FLAG_SHARED)
+	public static final int RENEW			= 14; // to renew the lease on a lock (or a read lease, FLAG_SHARED)
+	public static final int HISTORY			= 15; // to download a past revision of a document (0 for the current one)
+	public static final int MANIFEST		= 16; // to get the list of the chunks of a revision (see documents.Manifest)
+	public static final int CHUNKS			= 17; // to get chunks by hash: for each hash, an int length (-1 if unknown) and the bytes
+	public static final int HELLO			= 18; // to negotiate the compression codec, handled by the engines (see setCompression)
+	public static final int RANGE_READ		= 19; // to read a range of a document (payload long offset, int length) without its lock, at the revision
+													// of the message (0 for the current one); answered with the bytes of the range, fewer at its end
+	public static final int UPLOAD_CHUNK	= 20; // to stage a range of the new content of a locked document (payload long offset and the bytes,
+													// nothing to ask where to resume); answered with the staged length (long)
+	public static final int INVALID_REQUEST	= 21; // to reject a request the server cannot serve (malformed, too large), payload the reason (UTF-8)
 
-	public static final String nameContentSeparator = "//";
+	// message flags
+	public static final int FLAG_DELTA		= 1; // the payload is a delta against the revision of the message
+	public static final int FLAG_SHARED		= 2; // the message is about a read lease, not the lock
+	public static final int FLAG_COMPRESSED	= 4; // the payload is an int length followed by the compressed bytes (set by the engine)
+	public static final int FLAG_STAGED		= 8; // the content is the one staged by UPLOAD_CHUNK, the payload its long length and SHA-256
+
+	// default per-channel outbound watermarks (see setWriteWatermarks)
+	public static final long DEFAULT_LOW_WATERMARK	= 64 * 1024;
+	public static final long DEFAULT_HIGH_WATERMARK	= 1024 * 1024;
+
+	// payload length from which frames are compressed (see setCompression)
+	public static final int DEFAULT_COMPRESSION_THRESHOLD	= 1024;
+
+	// streamed transfers (RANGE_READ, UPLOAD_CHUNK): length of a chunk,
+	// and number of chunks a transfer keeps in flight
+	public static final int CHUNK_SIZE		= 256 * 1024;
+	public static final int STREAM_WINDOW	= 4;
+
+	// max length of a RANGE_READ
+	public static final int MAX_RANGE_LENGTH	= 16 * 1024 * 1024;
+
+	// max length of a CHUNKS answer: the chunks of a larger revision are
+	// asked in batches
+	public static final int MAX_CHUNKS_LENGTH	= 16 * 1024 * 1024;
+
+	// default max length of a received frame (see setMaxFrameSize): larger
+	// contents go through RANGE_READ and UPLOAD_CHUNK
+	public static final int DEFAULT_MAX_FRAME_SIZE	= 64 * 1024 * 1024;
+
+	// time (ms) during which a client may read a document it received from its cache,
+	// unless it is told the document changed (INVALIDATE), and duration of the leases
+	// on locks: a lock that is not renewed (RENEW) is given to the next client
+	public static final long LEASE_DURATION	= 30 * 1000;
+
+	// separates the names in a DOCUMENTS_LIST payload
 	public static final String documentsSeparator = "//";
 	
 	/**
@@ -56,23 +107,70 @@ public interface I_NioEngine extends Runnable {
 
 
 	/**
-	 * Send data on the client channel (for client-side engine)
-	 * @param the data that should be sent  
+	 * Send a message on the client channel (for client-side engine)
+	 * @param the message that should be sent  
 	 */
-	public void send(byte[] data);
+	public void send(Message message);
 	
 	
 	/**
 	 * Send data on the given channel (for server-side engine)
 	 * @param the key of the channel on which data that should be sent
-	 * @param the data that should be sent
+	 * @param the message that should be sent
 	 */
-	public void send(SocketChannel socketChannel, byte[] data);
+	public void send(SocketChannel socketChannel, Message message);
 	
-	public void sendToAll(Set<SocketChannel> socketChannels, byte[] data);
+	public void sendToAll(Set<SocketChannel> socketChannels, Message message);
 	
 	public boolean isInitialized();
 	
+	/**
+	 * Tell if a channel can be fed more data (server-side engine).
+	 * A channel stops being writable when its outbound queue exceeds the
+	 * high watermark, and becomes writable again once drained below the
+	 * low watermark; reading from it is suspended in between.
+	 * A handler implementing @code I_ChannelStateHandler is notified
+	 * when the channel becomes writable again.
+	 * @param the channel
+	 */
+	public boolean isWritable(SocketChannel socketChannel);
+	
+	/**
+	 * Set the per-channel outbound watermarks
+	 * @param low number of queued bytes under which a channel becomes writable again
+	 * @param high number of queued bytes over which a channel stops being writable
+	 */
+	public void setWriteWatermarks(long low, long high);
+	
+	/**
+	 * Suspend or resume reading from a channel, so that a handler that
+	 * processes messages asynchronously can stop a client from sending
+	 * more than it keeps up with. Independent of the watermarks: reading
+	 * resumes once both allow it. May be called from any thread.
+	 * @param the channel
+	 * @param false to suspend reading, true to resume it
+	 */
+	public void setReading(SocketChannel socketChannel, boolean reading);
+	
+	/**
+	 * Compress the payloads of the frames once a codec is negotiated with
+	 * the other end: a client-side engine offers its codecs in a HELLO
+	 * message when it connects, a server-side engine answers with the
+	 * first of them it knows. Frames with a shorter payload, or that do
+	 * not get smaller, are sent as they are. Must be called before the
+	 * initialization.
+	 * @param threshold payload length from which frames are compressed
+	 * @param codecs the codecs, by order of preference
+	 */
+	public void setCompression(int threshold, I_Codec... codecs);
+	
+	/**
+	 * Set the max length of the frames received, checked before reading
+	 * a frame: the connection of a peer announcing a longer one is closed
+	 * @param maxFrameSize length in bytes, not counting the length field
+	 */
+	public void setMaxFrameSize(int maxFrameSize);
+	
 	
 	/**
 	 * Close the client channel
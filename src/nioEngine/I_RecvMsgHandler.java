@@ -5,6 +5,6 @@ import java.nio.channels.SocketChannel;
 public interface I_RecvMsgHandler {
 	
 	// callback called when an entire message has been received
-	public void receivedCB(byte[] data, SocketChannel socketChannel);
+	public void receivedCB(Message message, SocketChannel socketChannel);
 
 }
\ No newline at end of file
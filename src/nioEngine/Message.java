@@ -0,0 +1,281 @@
+package nioEngine;
+
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+/**
+ * A protocol message, sent as a binary frame:
+ * <pre>
+ * int    frame length (bytes after this field)
+ * byte   protocol version
+ * byte   opcode
+ * short  flags
+ * int    request id
+ * int    revision number
+ * short  name length
+ * int    payload length
+ * byte[] name (UTF-8)
+ * byte[] payload
+ * </pre>
+ * A received message's payload is a slice of the frame buffer, it is never
+ * copied nor converted to a String by the engine. The frame buffer comes
+ * from the engine's BufferPool and is reused once the receive callback
+ * returns: a handler keeping the message (or its payload) longer must
+ * retain it, and release it once done.
+ * A message to send may take its payload from a file region instead.
+ */
+public class Message {
+
+	public static final byte VERSION = 1;
+	// header length, not counting the frame length field
+	public static final int HEADER_LENGTH = 18;
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+	private static final byte[] NO_NAME = new byte[0];
+
+	private final int opcode;
+	private final int flags;
+	private final int requestId;
+	private final String name;
+	private final int revision;
+	private final ByteBuffer payload;
+	private final FileRegion fileRegion;
+	// the pooled frame buffer of a received message, null otherwise
+	private PooledBuffer buffer;
+
+	public Message(int opcode, String name) {
+		this(opcode, 0, 0, name, 0, (ByteBuffer) null);
+	}
+
+	public Message(int opcode, String name, int revision) {
+		this(opcode, 0, 0, name, revision, (ByteBuffer) null);
+	}
+
+	public Message(int opcode, String name, int revision, ByteBuffer payload) {
+		this(opcode, 0, 0, name, revision, payload);
+	}
+
+	/**
+	 * @param opcode one of the @code I_NioEngine communication codes
+	 * @param flags
+	 * @param requestId
+	 * @param name document name, may be null
+	 * @param revision document revision number
+	 * @param payload message content, from its position to its limit
+	 * (not copied), may be null
+	 */
+	public Message(int opcode, int flags, int requestId, String name, int revision, ByteBuffer payload) {
+		this.opcode = opcode;
+		this.flags = flags;
+		this.requestId = requestId;
+		this.name = name == null ? "" : name;
+		this.revision = revision;
+		this.payload = payload == null ? EMPTY : payload;
+		this.fileRegion = null;
+	}
+
+	/**
+	 * Message whose payload is sent straight from a file
+	 * @param fileRegion the payload, at most 2 GB
+	 */
+	public Message(int opcode, int flags, int requestId, String name, int revision, FileRegion fileRegion) {
+		if (fileRegion.remaining() > Integer.MAX_VALUE) {
+			throw new IllegalArgumentException("file region too large");
+		}
+		this.opcode = opcode;
+		this.flags = flags;
+		this.requestId = requestId;
+		this.name = name == null ? "" : name;
+		this.revision = revision;
+		this.payload = EMPTY;
+		this.fileRegion = fileRegion;
+	}
+
+	public int getOpcode() {
+		return opcode;
+	}
+
+	public int getFlags() {
+		return flags;
+	}
+
+	public boolean hasFlag(int flag) {
+		return (flags & flag) != 0;
+	}
+
+	public int getRequestId() {
+		return requestId;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public int getRevision() {
+		return revision;
+	}
+
+	/**
+	 * @return a read-only view of the payload
+	 */
+	public ByteBuffer getPayload() {
+		return payload.asReadOnlyBuffer();
+	}
+
+	public int getPayloadLength() {
+		if (fileRegion != null) {
+			return (int) fileRegion.remaining();
+		}
+		return payload.remaining();
+	}
+
+	/**
+	 * Copy the payload to a new array
+	 */
+	public byte[] getPayloadBytes() {
+		byte[] bytes = new byte[payload.remaining()];
+		payload.duplicate().get(bytes);
+		return bytes;
+	}
+
+	/**
+	 * Encode the message as a frame
+	 * @return the frame header (including the name) and the payload
+	 * @throws IllegalStateException if the payload is a file region
+	 */
+	public ByteBuffer[] encode() {
+		if (fileRegion != null) {
+			throw new IllegalStateException("file region payload");
+		}
+		return new ByteBuffer[] { encodeHeader(), payload.duplicate() };
+	}
+
+	/**
+	 * Keep the payload of a received message past its receive callback,
+	 * until release is called. No-op for other messages.
+	 */
+	public void retain() {
+		if (buffer != null) {
+			buffer.retain();
+		}
+	}
+
+	/**
+	 * Give back a payload retained with retain
+	 * @throws IllegalStateException if released more times than retained
+	 */
+	public void release() {
+		if (buffer != null) {
+			buffer.release();
+		}
+	}
+
+	FileRegion getFileRegion() {
+		return fileRegion;
+	}
+
+	/**
+	 * Same message with other flags and payload
+	 */
+	Message withPayload(int flags, ByteBuffer payload) {
+		return new Message(opcode, flags, requestId, name, revision, payload);
+	}
+
+	/**
+	 * Same message with other flags and a payload of the pool, handed
+	 * over with its reference
+	 */
+	Message withPayload(int flags, PooledBuffer payload) {
+		Message message = new Message(opcode, flags, requestId, name, revision, payload.buffer());
+		message.buffer = payload;
+		return message;
+	}
+
+	/**
+	 * Encode the frame length, header and name
+	 */
+	ByteBuffer encodeHeader() {
+		byte[] nameBytes = name.getBytes(UTF8);
+		ByteBuffer header = ByteBuffer.allocate(4 + HEADER_LENGTH + nameBytes.length);
+		encodeHeader(header, nameBytes);
+		header.flip();
+		return header;
+	}
+
+	/**
+	 * Encode the frame length, header and name in a buffer of the pool,
+	 * released once written
+	 */
+	PooledBuffer encodeHeader(BufferPool pool) {
+		byte[] nameBytes = name.isEmpty() ? NO_NAME : name.getBytes(UTF8);
+		PooledBuffer header = pool.acquire(4 + HEADER_LENGTH + nameBytes.length);
+		encodeHeader(header.buffer(), nameBytes);
+		header.buffer().flip();
+		return header;
+	}
+
+	private void encodeHeader(ByteBuffer header, byte[] nameBytes) {
+		int payloadLength = getPayloadLength();
+		header.putInt(HEADER_LENGTH + nameBytes.length + payloadLength);
+		header.put(VERSION);
+		header.put((byte) opcode);
+		header.putShort((short) flags);
+		header.putInt(requestId);
+		header.putInt(revision);
+		header.putShort((short) nameBytes.length);
+		header.putInt(payloadLength);
+		header.put(nameBytes);
+	}
+
+	/**
+	 * Decode a received frame of the pool, the payload is a slice of it
+	 * @param frame the frame (without its length field), positioned at the header
+	 * @throws ProtocolException if the frame is malformed
+	 */
+	static Message decode(PooledBuffer frame) throws ProtocolException {
+		Message message = decode(frame.buffer());
+		message.buffer = frame;
+		return message;
+	}
+
+	/**
+	 * Decode a received frame (without its length field)
+	 * @param frame the frame, positioned at the header
+	 * @throws ProtocolException if the frame is malformed
+	 */
+	static Message decode(ByteBuffer frame) throws ProtocolException {
+		if (frame.remaining() < HEADER_LENGTH) {
+			throw new ProtocolException("frame too short: " + frame.remaining());
+		}
+		byte version = frame.get();
+		if (version != VERSION) {
+			throw new ProtocolException("unsupported protocol version " + version);
+		}
+		int opcode = frame.get() & 0xff;
+		int flags = frame.getShort() & 0xffff;
+		int requestId = frame.getInt();
+		int revision = frame.getInt();
+		int nameLength = frame.getShort() & 0xffff;
+		int payloadLength = frame.getInt();
+		if (payloadLength < 0 || nameLength + payloadLength != frame.remaining()) {
+			throw new ProtocolException("inconsistent frame lengths");
+		}
+		String name = "";
+		if (nameLength > 0) {
+			// the frame may be a direct buffer
+			byte[] nameBytes = new byte[nameLength];
+			frame.get(nameBytes);
+			name = new String(nameBytes, UTF8);
+		}
+		ByteBuffer payload = frame.slice();
+		return new Message(opcode, flags, requestId, name, revision, payload);
+	}
+
+	public String toString() {
+		return "Message[" + opcode + ", " + name + ", rev " + revision
+				+ ", " + getPayloadLength() + " bytes]";
+	}
+
+}
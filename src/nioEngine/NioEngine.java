@@ -3,40 +3,84 @@ package nioEngine;
 import java.io.IOException;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
+import java.net.ProtocolException;
 import java.nio.ByteBuffer;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.FileChannel;
 import java.nio.channels.SocketChannel;
 import java.nio.channels.spi.SelectorProvider;
-import java.util.Iterator;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 import documents.Document;
 
 
+/**
+ * NIO engine. A client-side engine runs a single selector loop.
+ * A server-side engine runs an accept loop in the engine thread and shares
+ * the accepted connections among several selector loops (reactors), each
+ * in its own thread, picking the least loaded one.
+ * Handlers may hence be called concurrently for different connections.
+ */
 public class NioEngine implements I_NioEngine {
 
-	private static enum ReadState {READ_SIZE, READ_CONTENT};
-
 	private I_RecvMsgHandler handler;
 
 	private ServerSocketChannel	serverChannel;
 	private SocketChannel 		clientChannel;
-	private Selector selector;
+	private Selector acceptSelector;
+
+	private final int reactorsNumber;
+	private SelectorLoop[] loops;
+	private Map<SocketChannel, ChannelContext> contexts;
+
+	// per-channel outbound watermarks, in bytes
+	private long lowWatermark = DEFAULT_LOW_WATERMARK;
+	private long highWatermark = DEFAULT_HIGH_WATERMARK;
+
+	// the codecs offered or accepted, by order of preference
+	private I_Codec[] codecs = new I_Codec[0];
+	private int compressionThreshold = DEFAULT_COMPRESSION_THRESHOLD;
+	// payload bytes of the compressed frames, sent and received, before and after compression
+	private final AtomicLong uncompressedBytes = new AtomicLong();
+	private final AtomicLong compressedBytes = new AtomicLong();
+
+	// buffers of the frames received and of the headers sent
+	private final BufferPool bufferPool = new BufferPool();
+	private int maxFrameSize = DEFAULT_MAX_FRAME_SIZE;
 
-	private ByteBuffer outBuffer;
-	private ByteBuffer inBuffer;
-	private ByteBuffer sizeBuffer;
-	private ReadState readState;
+	private volatile boolean initialized;
+
+	/**
+	 * Engine with one reactor per available core (server-side)
+	 */
+	public NioEngine() {
+		this(Runtime.getRuntime().availableProcessors());
+	}
 
-	private boolean initialized;
+	/**
+	 * @param reactorsNumber number of selector loops serving the accepted
+	 * connections (server-side)
+	 */
+	public NioEngine(int reactorsNumber) {
+		if (reactorsNumber < 1) {
+			throw new IllegalArgumentException("at least one reactor is needed");
+		}
+		this.reactorsNumber = reactorsNumber;
+		contexts = new ConcurrentHashMap<SocketChannel, ChannelContext>();
+	}
 
 	@Override
 	public void InitializeAsServer(InetAddress hostAddress, int port,
 			I_RecvMsgHandler handler) throws IOException {
 		this.handler = handler;
-		selector = SelectorProvider.provider().openSelector();
+		acceptSelector = SelectorProvider.provider().openSelector();
 
 		// Create a new non-blocking server socket channel
 		serverChannel = ServerSocketChannel.open();
@@ -44,61 +88,60 @@ public class NioEngine implements I_NioEngine {
 		serverChannel.socket().bind(new InetSocketAddress(hostAddress, port));
 
 		// Be notified when connection requests arrive
-		serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+		serverChannel.register(acceptSelector, SelectionKey.OP_ACCEPT);
+
+		loops = new SelectorLoop[reactorsNumber];
+		for (int i = 0; i < reactorsNumber; i++) {
+			loops[i] = new SelectorLoop(this);
+		}
 
-		readState = ReadState.READ_SIZE;
 		initialized = true;
-		System.out.println("Server initialized");
+		System.out.println("Server initialized (" + reactorsNumber + " reactors)");
 	}
 
 	@Override
 	public void InitializeAsClient(InetAddress hostAddress, int port,
 			I_RecvMsgHandler handler) throws IOException {
 		this.handler = handler;
-		selector = SelectorProvider.provider().openSelector();
+		loops = new SelectorLoop[] { new SelectorLoop(this) };
 
 		clientChannel = SocketChannel.open();
 		clientChannel.configureBlocking(false);
 		clientChannel.socket().setTcpNoDelay(true);
 		clientChannel.connect(new InetSocketAddress(hostAddress, port));
 
-		clientChannel.register(selector, SelectionKey.OP_CONNECT);
+		ChannelContext context = new ChannelContext(clientChannel, loops[0]);
+		contexts.put(clientChannel, context);
+		loops[0].register(context, SelectionKey.OP_CONNECT);
 
-		readState = ReadState.READ_SIZE;
 		initialized = true;
 		System.out.println("Client initialized");
 	}
 
+	/**
+	 * Client-side, run the selector loop.
+	 * Server-side, start the reactors then run the accept loop.
+	 */
 	@Override
 	public void mainloop() {
-		while (true) {
+		if (serverChannel == null) {
+			loops[0].run();
+			return;
+		}
+		for (int i = 0; i < loops.length; i++) {
+			Thread reactor = new Thread(loops[i], "NioEngine-reactor-" + i);
+			reactor.setDaemon(true);
+			reactor.start();
+		}
+		while (initialized) {
 			try {
-				// Wait for an event one of the registered channels
-				selector.select();
-
-				Iterator<SelectionKey> keyIterator = selector.selectedKeys().iterator();
-				while (keyIterator.hasNext()) {
-
-					SelectionKey key = (SelectionKey) keyIterator.next();
-					keyIterator.remove();
-
-					if (!key.isValid()) { continue; }
-
-					// Handle the event					
-					if (key.isConnectable()){
-						handleConnect(key);
-					}
-					else if (key.isAcceptable()){
-						handleAccept(key);
-					}
-					else if (key.isReadable()){
-						handleRead(key);
-					}
-					else if (key.isWritable()){
-						handleWrite(key);
-					}
-
+				// Wait for connection requests
+				acceptSelector.select();
+				acceptSelector.selectedKeys().clear();
+				if (!initialized) {
+					break;
 				}
+				handleAccept();
 			}
 			catch (Exception e){
 				System.out.println("Exception in NioEngine " + e);
@@ -106,137 +149,226 @@ public class NioEngine implements I_NioEngine {
 		}
 	}
 
-	// Basic Accept Handling
-	private void handleAccept(SelectionKey key) throws IOException {
-		ServerSocketChannel serverSocketChannel = (ServerSocketChannel) key.channel();
-
-		// Accept the connection and make it non-blocking
-		SocketChannel socketChannel = serverSocketChannel.accept();
-		socketChannel.configureBlocking(false);
-		socketChannel.finishConnect();
-
-		// Register the new SocketChannel with our Selector, indicating
-		// we'd like to be notified when there's data waiting to be read
-		socketChannel.register(selector, SelectionKey.OP_READ);
+	// Accept every pending connection and hand it over to a reactor
+	private void handleAccept() throws IOException {
+		SocketChannel socketChannel;
+		while ((socketChannel = serverChannel.accept()) != null) {
+			// make it non-blocking
+			socketChannel.configureBlocking(false);
+			socketChannel.socket().setTcpNoDelay(true);
+
+			// Register the new SocketChannel with the least loaded reactor,
+			// indicating we'd like to be notified when there's data waiting
+			// to be read. Each connection gets its own framing state
+			SelectorLoop loop = leastLoadedLoop();
+			ChannelContext context = new ChannelContext(socketChannel, loop);
+			contexts.put(socketChannel, context);
+			loop.register(context, SelectionKey.OP_READ);
+		}
 	}
 
-	public void handleConnect(SelectionKey key) throws IOException{
-		while (!clientChannel.finishConnect()) {
-			try {
-				Thread.sleep(300);
-			} catch (InterruptedException e) {}
+	private SelectorLoop leastLoadedLoop() {
+		SelectorLoop best = loops[0];
+		for (int i = 1; i < loops.length; i++) {
+			if (loops[i].channelCount() < best.channelCount()) {
+				best = loops[i];
+			}
 		}
+		return best;
+	}
 
-		key.interestOps(SelectionKey.OP_READ);
-		System.out.println("Connection...");
+	@Override
+	public void send(Message message) {
+		send(clientChannel, message);
 	}
 
-	private void handleRead(SelectionKey key) throws IOException {
-		SocketChannel socketChannel = (SocketChannel) key.channel();
+	/**
+	 * Queue a message on the channel. May be called from any thread, the
+	 * frame is written by the reactor serving the channel as soon as it
+	 * gets the command (at once when called from the reactor thread).
+	 * The payload is not copied, the caller must not modify it afterwards.
+	 * Neither must it be the payload of a received message, unless that
+	 * message stays retained until the frame is written.
+	 */
+	@Override
+	public void send(SocketChannel socketChannel, Message message) {
+		ChannelContext context = contexts.get(socketChannel);
+		if (context == null) {
+			if (message.getFileRegion() != null) {
+				message.getFileRegion().close();
+			}
+			return;
+		}
+		// the header, and a compressed payload, are encoded in pooled
+		// buffers, released once written
+		PooledBuffer compressed = compress(context, message);
+		if (compressed != null) {
+			if (message.getFileRegion() != null) {
+				message.getFileRegion().close();
+			}
+			Message framed = message.withPayload(message.getFlags() | FLAG_COMPRESSED, compressed.buffer());
+			context.loop.send(context, framed.encodeHeader(bufferPool), compressed);
+		}
+		else if (message.getFileRegion() != null) {
+			context.loop.send(context, message.encodeHeader(bufferPool), message.getFileRegion());
+		}
+		else {
+			context.loop.send(context, message.encodeHeader(bufferPool), message.getPayload());
+		}
+	}
 
-		// Attempt to read off the channel
-		sizeBuffer = ByteBuffer.allocate(4);
-		sizeBuffer.clear();
-		int size = 0;
-		int numBytesRead = 0;
+	/**
+	 * Compress the payload of a message if a codec is negotiated and the
+	 * payload is long enough, on the calling thread. A file region is read
+	 * through a mapping, and sent as is if it does not compress.
+	 * @return the compressed payload, an int length followed by the codec
+	 * output, in a buffer of the pool; null to send the message as is
+	 */
+	private PooledBuffer compress(ChannelContext context, Message message) {
+		I_Codec codec = context.codec;
+		// the int length leaves nothing to gain on tiny payloads
+		if (codec == null || message.getPayloadLength() < Math.max(compressionThreshold, 8)
+				|| message.hasFlag(FLAG_COMPRESSED)) {
+			return null;
+		}
+		ByteBuffer payload = message.getPayload();
+		if (message.getFileRegion() != null) {
+			try {
+				payload = message.getFileRegion().map();
+			} catch (IOException | RuntimeException e) {
+				return null;
+			}
+		}
+		int length = payload.remaining();
+		// worth it only if fewer bytes: the codec gets one less than the
+		// payload after the length
+		PooledBuffer framed = bufferPool.acquire(length - 1);
+		ByteBuffer output = framed.buffer();
+		output.position(4);
+		if (!codec.compress(payload, output)) {
+			framed.release();
+			return null;
+		}
+		output.limit(output.position());
+		output.putInt(0, length);
+		output.position(0);
+		uncompressedBytes.addAndGet(length);
+		compressedBytes.addAndGet(output.remaining());
+		return framed;
+	}
 
+	/**
+	 * Decompress the payload of a received message (engine thread) into
+	 * a buffer of the pool, released like a received frame
+	 * @throws ProtocolException if no codec was negotiated or the payload is corrupted
+	 */
+	Message decompress(ChannelContext context, Message message) throws ProtocolException {
+		I_Codec codec = context.codec;
+		if (codec == null) {
+			throw new ProtocolException("compressed frame without codec");
+		}
+		ByteBuffer payload = message.getPayload();
+		if (payload.remaining() < 4) {
+			throw new ProtocolException("compressed payload too short");
+		}
+		int length = payload.getInt();
+		// bounded like a frame: a small frame cannot make the engine allocate any size
+		if (length < 0 || length > maxFrameSize) {
+			throw new ProtocolException("invalid payload length " + length);
+		}
+		PooledBuffer output = bufferPool.acquire(length);
 		try {
+			codec.decompress(payload, output.buffer());
+		} catch (IOException e) {
+			output.release();
+			throw new ProtocolException(e.getMessage());
+		}
+		uncompressedBytes.addAndGet(length);
+		compressedBytes.addAndGet(payload.limit());
+		output.buffer().flip();
+		return message.withPayload(message.getFlags() & ~FLAG_COMPRESSED, output);
+	}
 
-			if (readState == ReadState.READ_SIZE)
-			{
-				numBytesRead = socketChannel.read(sizeBuffer);
-
-				if (sizeBuffer.remaining() == 0)
-				{
-					sizeBuffer.rewind();
-					size = sizeBuffer.getInt();
-					inBuffer = ByteBuffer.allocate(size);
-					readState = ReadState.READ_CONTENT;
-				}
-
-				if (numBytesRead == -1){
-					System.out.println("An error occured while reading the message size\n");
-					key.channel().close();
-					key.cancel();
-					return;
-				}
-			}
+	/**
+	 * A client-side channel is connected: offer the codecs
+	 */
+	void connected(ChannelContext context) {
+		if (codecs.length == 0) {
+			return;
+		}
+		StringBuilder names = new StringBuilder();
+		for (I_Codec codec : codecs) {
+			names.append(codec.getName()).append(documentsSeparator);
+		}
+		context.loop.send(context, (Object[]) new Message(HELLO, 0, 0, null, 0,
+				ByteBuffer.wrap(names.toString().getBytes(StandardCharsets.UTF_8))).encode());
+	}
 
-			if (readState == ReadState.READ_CONTENT)
-			{
-				inBuffer.clear();
-				numBytesRead = socketChannel.read(inBuffer);
-
-				if (inBuffer.remaining() == 0) {
-					inBuffer.rewind();
-					//Process the received data, we are now sure that everything has been read
-//					System.out.println("message READ = "+ new String(inBuffer.array()));
-					handler.receivedCB(inBuffer.array(), socketChannel);
-					readState = ReadState.READ_SIZE;
-				}
-				if (numBytesRead == -1){
-					System.out.println("An error occured while reading the message content\n");
-					key.channel().close();
-					key.cancel();
-					return;
+	/**
+	 * Handle a HELLO message (engine thread). Server-side, pick the first
+	 * codec offered that this engine knows and answer with its name
+	 * (empty if none), the frames sent from then on may be compressed.
+	 * Client-side, use the codec the server picked.
+	 */
+	void hello(ChannelContext context, Message message) {
+		String[] names = new String(message.getPayloadBytes(), StandardCharsets.UTF_8).split(documentsSeparator);
+		I_Codec chosen = null;
+		for (String name : names) {
+			for (I_Codec codec : codecs) {
+				if (chosen == null && codec.getName().equals(name)) {
+					chosen = codec;
 				}
 			}
-
 		}
-		catch (IOException e) {
-			// The remote forcibly closed the connection, cancel the selection key and close the channel.
-			System.out.println("An error occured while reading the message (catch)\n"+e);
-			key.cancel();
-			socketChannel.close();
-			return;
+		if (serverChannel != null) {
+			// answered before the codec is set: the answer precedes the compressed frames
+			context.loop.send(context, (Object[]) new Message(HELLO, 0, 0, null, 0,
+					ByteBuffer.wrap((chosen == null ? "" : chosen.getName()).getBytes(StandardCharsets.UTF_8))).encode());
+		}
+		if (chosen != null && context.codec == null) {
+			context.codec = chosen.newInstance();
 		}
 	}
 
-	private void handleWrite(SelectionKey key) throws IOException {
-		SocketChannel socketChannel = (SocketChannel) key.channel();
-		//outBuffer contains the data to write
-		try {
-			outBuffer.clear();
-			while (outBuffer.hasRemaining()) {
-				socketChannel.write(outBuffer);
-			}
-//			System.out.println("message WRITTEN = " + new String(outBuffer.array()));
-			key.interestOps(SelectionKey.OP_READ);
-		} catch (IOException e) {
-			// The channel has been closed
-			key.cancel();
-			socketChannel.close();
-			return;
-		}		
+	/**
+	 * @return the payload bytes of the compressed frames, before compression
+	 * divided by after, in both directions (1 if none)
+	 */
+	public double getCompressionRatio() {
+		long compressed = compressedBytes.get();
+		return compressed == 0 ? 1 : (double) uncompressedBytes.get() / compressed;
 	}
 
-	@Override
-	public void send(byte[] data) {
-		int length = data.length;
-		outBuffer = ByteBuffer.allocate(length + 4);
-		outBuffer.putInt(length);
-		outBuffer.put(data);
-		SelectionKey key = clientChannel.keyFor(selector);
-		// Indicate we want to select OP_WRITE from now
-		key.interestOps(SelectionKey.OP_WRITE);
-		selector.wakeup();
+	public long getCompressedBytes() {
+		return compressedBytes.get();
 	}
 
+	public long getUncompressedBytes() {
+		return uncompressedBytes.get();
+	}
+
+	/**
+	 * @return the pool of the frame buffers, with its allocation counters
+	 */
+	public BufferPool getBufferPool() {
+		return bufferPool;
+	}
+
+	/**
+	 * Queue a message on several channels. The frame is encoded once and
+	 * shared by the channels queues. A file region payload cannot be shared.
+	 */
 	@Override
-	public void send(SocketChannel socketChannel, byte[] data) {
-		// Put the data we want to send in outBuffer
-		int length = data.length;
-		outBuffer = ByteBuffer.allocate(length + 4);
-		outBuffer.putInt(length);
-		outBuffer.put(data);
-		SelectionKey key = socketChannel.keyFor(selector);
-		// Indicate we want to select OP_WRITE from now
-		key.interestOps(SelectionKey.OP_WRITE);
-	}
-
-	public void sendToAll(Set<SocketChannel> socketChannels, byte[] data) {
+	public void sendToAll(Set<SocketChannel> socketChannels, Message message) {
+		if (message.getFileRegion() != null) {
+			throw new IllegalArgumentException("cannot send a file region to several channels");
+		}
+		ByteBuffer[] frame = message.encode();
 		for (SocketChannel sc : socketChannels){
-			send(sc, data);
+			ChannelContext context = contexts.get(sc);
+			if (context != null) {
+				context.loop.send(context, frame[0].duplicate(), frame[1].duplicate());
+			}
 		}
 	}
 
@@ -244,13 +376,21 @@ public class NioEngine implements I_NioEngine {
 	public void terminate() {
 		initialized = false;
 		try {
-			if (clientChannel != null) {
-				clientChannel.keyFor(selector).cancel();
-				clientChannel.close();
+			if (serverChannel != null) {
+				serverChannel.close();
+				acceptSelector.wakeup();
 			}
 		} catch (IOException e) {
 			e.printStackTrace();
 		}
+		for (ChannelContext context : contexts.values()) {
+			context.loop.close(context);
+		}
+		if (loops != null) {
+			for (SelectorLoop loop : loops) {
+				loop.wakeup();
+			}
+		}
 	}
 
 	@Override
@@ -261,26 +401,135 @@ public class NioEngine implements I_NioEngine {
 	public boolean isInitialized() {
 		return initialized;
 	}
+
+	@Override
+	public boolean isWritable(SocketChannel socketChannel) {
+		ChannelContext context = contexts.get(socketChannel);
+		return context != null && context.writable;
+	}
+
+	@Override
+	public void setWriteWatermarks(long low, long high) {
+		if (low < 0 || high < low) {
+			throw new IllegalArgumentException("invalid watermarks " + low + "/" + high);
+		}
+		lowWatermark = low;
+		highWatermark = high;
+	}
+
+	@Override
+	public void setCompression(int threshold, I_Codec... codecs) {
+		if (threshold < 0) {
+			throw new IllegalArgumentException("invalid threshold " + threshold);
+		}
+		compressionThreshold = threshold;
+		this.codecs = codecs.clone();
+	}
+
+	@Override
+	public void setMaxFrameSize(int maxFrameSize) {
+		if (maxFrameSize < Message.HEADER_LENGTH) {
+			throw new IllegalArgumentException("invalid max frame size " + maxFrameSize);
+		}
+		this.maxFrameSize = maxFrameSize;
+	}
+
+	@Override
+	public void setReading(SocketChannel socketChannel, boolean reading) {
+		ChannelContext context = contexts.get(socketChannel);
+		if (context != null) {
+			context.loop.reading(context, reading);
+		}
+	}
+
+	I_RecvMsgHandler handler() {
+		return handler;
+	}
+
+	BufferPool bufferPool() {
+		return bufferPool;
+	}
+
+	int maxFrameSize() {
+		return maxFrameSize;
+	}
+
+	long lowWatermark() {
+		return lowWatermark;
+	}
+
+	long highWatermark() {
+		return highWatermark;
+	}
+
+	/**
+	 * Forget a closed channel
+	 * @return true if the channel was known
+	 */
+	boolean removeContext(ChannelContext context) {
+		return contexts.remove(context.channel) != null;
+	}
 	
 	/**
-	 * Make a message containing the code, the document name, a separator
-	 * and the document content
+	 * Make a message containing the code, the document name, its revision
+	 * number and its content. The content is not copied: it is sent
+	 * straight from the document's file when it holds the current content.
+	 * Such a message must be sent exactly once.
 	 * @param code
 	 * @param doc
 	 * @return
-	 * @throws IOException
+	 * @throws IOException if the document file cannot be opened
 	 */
-	public static byte[] wholeMessage(int code, Document doc) throws IOException {
-		byte[] name = doc.getName().getBytes();
-		byte[] data = doc.getData();
-		int nameLength = name.length;
-		int dataLength = data.length;
-		byte[] dataToSend = new byte[nameLength + dataLength + 3];
-		System.arraycopy(String.valueOf(code).getBytes(), 0, dataToSend, 0, 1);
-		System.arraycopy(name, 0, dataToSend, 1, nameLength);
-		System.arraycopy(I_NioEngine.nameContentSeparator.getBytes(), 0, dataToSend, 1+nameLength, 2);
-		System.arraycopy(data, 0, dataToSend, 3+nameLength, data.length);
-		return dataToSend;
-	}
-
-}
\ No newline at end of file
+	public static Message wholeMessage(int code, Document doc) throws IOException {
+		return wholeMessage(code, 0, doc);
+	}
+
+	/**
+	 * Same as wholeMessage(code, doc), for the request of the given id
+	 */
+	public static Message wholeMessage(int code, int requestId, Document doc) throws IOException {
+		// read before the content, which is hence never older
+		int revision = doc.getRevision().value();
+		if (doc.getFile() != null && doc.isWritten()) {
+			FileChannel fileChannel = FileChannel.open(doc.getFile().toPath(), StandardOpenOption.READ);
+			return new Message(code, 0, requestId, doc.getName(), revision,
+					new FileRegion(fileChannel, 0, fileChannel.size()));
+		}
+		return new Message(code, 0, requestId, doc.getName(), revision,
+				ByteBuffer.wrap(doc.getData()));
+	}
+
+	/**
+	 * Build a message with a range of the content of a document, cut at
+	 * its end, sent like wholeMessage without copy
+	 * @param offset start of the range, not negative
+	 * @param length max length of the range, not negative
+	 * @throws IOException if the document file cannot be opened
+	 * @throws IllegalArgumentException if the offset or the length is negative
+	 */
+	public static Message rangeMessage(int code, int requestId, Document doc, long offset, int length)
+			throws IOException {
+		if (offset < 0 || length < 0) {
+			throw new IllegalArgumentException("invalid range [" + offset + ", +" + length + "]");
+		}
+		int revision = doc.getRevision().value();
+		if (doc.getFile() != null && doc.isWritten()) {
+			FileChannel fileChannel = FileChannel.open(doc.getFile().toPath(), StandardOpenOption.READ);
+			try {
+				long start = Math.min(offset, fileChannel.size());
+				return new Message(code, 0, requestId, doc.getName(), revision,
+						new FileRegion(fileChannel, start, Math.min(length, fileChannel.size() - start)));
+			} catch (IOException | RuntimeException e) {
+				// the region is not handed over to the engine, which would close it
+				fileChannel.close();
+				throw e;
+			}
+		}
+		ByteBuffer content = doc.getContent();
+		int start = (int) Math.min(offset, content.limit());
+		content.position(start);
+		content.limit(start + Math.min(length, content.limit() - start));
+		return new Message(code, 0, requestId, doc.getName(), revision, content.slice());
+	}
+
+}
@@ -0,0 +1,62 @@
+package nioEngine;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A buffer of a BufferPool, reference counted: handed out with one
+ * reference, it goes back to its pool when the last one is released.
+ * A buffer too large for the pool has no pool and is left to the garbage
+ * collector instead.
+ */
+class PooledBuffer {
+
+	// null if the buffer is not pooled
+	private final BufferPool pool;
+	// index of the size class in the pool
+	final int sizeClass;
+	private final ByteBuffer buffer;
+	private final AtomicInteger references;
+
+	PooledBuffer(BufferPool pool, int sizeClass, ByteBuffer buffer) {
+		this.pool = pool;
+		this.sizeClass = sizeClass;
+		this.buffer = buffer;
+		references = new AtomicInteger();
+	}
+
+	/**
+	 * Hand the buffer out, cleared and limited to the size asked for,
+	 * with one reference
+	 */
+	void reset(int size) {
+		buffer.clear();
+		buffer.limit(size);
+		references.set(1);
+	}
+
+	ByteBuffer buffer() {
+		return buffer;
+	}
+
+	void retain() {
+		references.incrementAndGet();
+	}
+
+	/**
+	 * Drop a reference, the last one gives the buffer back to its pool
+	 * @throws IllegalStateException if all the references were already released
+	 */
+	void release() {
+		int left = references.decrementAndGet();
+		if (left == 0) {
+			if (pool != null) {
+				pool.recycle(this);
+			}
+		}
+		else if (left < 0) {
+			throw new IllegalStateException("buffer released more times than retained");
+		}
+	}
+
+}
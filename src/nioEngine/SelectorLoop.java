@@ -0,0 +1,397 @@
+package nioEngine;
+
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.spi.SelectorProvider;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * One reactor: a selector and the loop reading and writing the channels
+ * registered on it. A client-side engine has a single loop, a server-side
+ * engine shares its accepted connections among several loops.
+ * 
+ * Channels and their contexts are only touched by the loop thread.
+ * Other threads post commands (register, send, close, interest change)
+ * to a lock-free queue that the loop drains on each iteration; a single
+ * wakeup is issued for all the commands posted while the loop is busy.
+ */
+class SelectorLoop implements Runnable {
+
+	private final NioEngine engine;
+	private final Selector selector;
+	// commands posted by other threads (multi-producer, single consumer)
+	private final Queue<Command> commands;
+	// true when a wakeup has been issued and the loop has not drained yet
+	private final AtomicBoolean wakeupPending;
+	// number of channels served by this loop
+	private final AtomicInteger channelCount;
+	private volatile Thread loopThread;
+
+	SelectorLoop(NioEngine engine) throws IOException {
+		this.engine = engine;
+		selector = SelectorProvider.provider().openSelector();
+		commands = new ConcurrentLinkedQueue<Command>();
+		wakeupPending = new AtomicBoolean();
+		channelCount = new AtomicInteger();
+	}
+
+	int channelCount() {
+		return channelCount.get();
+	}
+
+	/**
+	 * Hand a channel over to this loop
+	 * @param context the channel context
+	 * @param ops the initial interest set
+	 */
+	void register(ChannelContext context, int ops) {
+		channelCount.incrementAndGet();
+		execute(new Command(Command.Type.REGISTER, context, null, ops));
+	}
+
+	/**
+	 * Queue ByteBuffers, PooledBuffers and FileRegions on a channel of this loop
+	 */
+	void send(ChannelContext context, Object... items) {
+		execute(new Command(Command.Type.SEND, context, items, 0));
+	}
+
+	/**
+	 * Close a channel of this loop
+	 */
+	void close(ChannelContext context) {
+		execute(new Command(Command.Type.CLOSE, context, null, 0));
+	}
+
+	/**
+	 * Add (ops > 0) or remove (ops < 0) operations of a channel interest set
+	 */
+	void interest(ChannelContext context, int ops) {
+		execute(new Command(Command.Type.INTEREST, context, null, ops));
+	}
+
+	/**
+	 * Suspend or resume reading a channel for its handler. Always posted,
+	 * even from the loop thread, so that the changes take effect in the
+	 * order they are made.
+	 */
+	void reading(ChannelContext context, boolean reading) {
+		post(new Command(Command.Type.READING, context, null, reading ? 1 : 0));
+	}
+
+	/**
+	 * Run a command: directly when called from the loop thread,
+	 * otherwise post it and wake the selector up if no wakeup is pending
+	 */
+	private void execute(Command command) {
+		if (Thread.currentThread() == loopThread) {
+			run(command);
+			return;
+		}
+		post(command);
+	}
+
+	private void post(Command command) {
+		commands.add(command);
+		if (wakeupPending.compareAndSet(false, true)) {
+			selector.wakeup();
+		}
+	}
+
+	void wakeup() {
+		selector.wakeup();
+	}
+
+	@Override
+	public void run() {
+		loopThread = Thread.currentThread();
+		while (engine.isInitialized()) {
+			try {
+				// Wait for an event one of the registered channels
+				selector.select();
+				// commands posted from now on need a new wakeup
+				wakeupPending.set(false);
+				runCommands();
+
+				Iterator<SelectionKey> keyIterator = selector.selectedKeys().iterator();
+				while (keyIterator.hasNext()) {
+
+					SelectionKey key = (SelectionKey) keyIterator.next();
+					keyIterator.remove();
+
+					if (!key.isValid()) { continue; }
+
+					// Handle the event
+					if (key.isConnectable()){
+						handleConnect(key);
+					}
+					else {
+						if (key.isReadable()){
+							handleRead(key);
+						}
+						if (key.isValid() && key.isWritable()){
+							handleWrite(key);
+						}
+					}
+
+				}
+			}
+			catch (Exception e){
+				System.out.println("Exception in NioEngine " + e);
+			}
+		}
+		runCommands();
+		try {
+			selector.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	private void runCommands() {
+		Command command;
+		while ((command = commands.poll()) != null) {
+			run(command);
+		}
+	}
+
+	private void run(Command command) {
+		ChannelContext context = command.context;
+		try {
+			switch (command.type) {
+			case REGISTER:
+				context.key = context.channel.register(selector, command.ops, context);
+				if (!context.outQueue.isEmpty() && context.channel.isConnected()) {
+					// frames may have been queued before the registration
+					flush(context);
+				}
+				break;
+			case SEND:
+				queue(context, command.items);
+				break;
+			case CLOSE:
+				closeChannel(context);
+				break;
+			case INTEREST:
+				if (context.key != null && context.key.isValid()) {
+					int ops = context.key.interestOps();
+					context.key.interestOps(command.ops > 0 ? ops | command.ops : ops & ~(-command.ops));
+				}
+				break;
+			case READING:
+				context.readingSuspended = command.ops == 0;
+				if (context.key != null && context.key.isValid()) {
+					int ops = context.key.interestOps();
+					// reading also waits for the write queue to drain
+					context.key.interestOps(!context.readingSuspended && context.writable ?
+							ops | SelectionKey.OP_READ : ops & ~SelectionKey.OP_READ);
+				}
+				break;
+			}
+		} catch (CancelledKeyException e) {
+			// the channel has been closed meanwhile
+		} catch (IOException e) {
+			System.out.println("Exception in NioEngine " + e);
+			closeChannel(context);
+		}
+	}
+
+	private void handleConnect(SelectionKey key) throws IOException {
+		SocketChannel socketChannel = (SocketChannel) key.channel();
+		while (!socketChannel.finishConnect()) {
+			try {
+				Thread.sleep(300);
+			} catch (InterruptedException e) {}
+		}
+
+		ChannelContext context = (ChannelContext) key.attachment();
+		key.interestOps(SelectionKey.OP_READ);
+		System.out.println("Connection...");
+		engine.connected(context);
+		// frames may have been queued before the connection was established
+		flush(context);
+	}
+
+	private void handleRead(SelectionKey key) throws IOException {
+		SocketChannel socketChannel = (SocketChannel) key.channel();
+		ChannelContext context = (ChannelContext) key.attachment();
+		int numBytesRead = 0;
+
+		try {
+			// Consume everything available: a single read may end a frame
+			// started in a previous call and contain several other ones
+			while (key.isValid()) {
+				if (context.readState == ChannelContext.ReadState.READ_SIZE)
+				{
+					numBytesRead = socketChannel.read(context.sizeBuffer);
+					if (context.sizeBuffer.hasRemaining()) {
+						break;
+					}
+					context.sizeBuffer.flip();
+					int size = context.sizeBuffer.getInt();
+					context.sizeBuffer.clear();
+					// checked before allocating: a bogus length cannot exhaust the memory
+					if (size < 0 || size > engine.maxFrameSize()) {
+						System.out.println("Invalid message size " + size + "\n");
+						closeChannel(context);
+						return;
+					}
+					context.inBuffer = engine.bufferPool().acquire(size);
+					context.readState = ChannelContext.ReadState.READ_CONTENT;
+				}
+
+				if (context.readState == ChannelContext.ReadState.READ_CONTENT)
+				{
+					ByteBuffer inBuffer = context.inBuffer.buffer();
+					if (inBuffer.hasRemaining()) {
+						numBytesRead = socketChannel.read(inBuffer);
+						if (inBuffer.hasRemaining()) {
+							break;
+						}
+					}
+					//Process the received data, we are now sure that everything has been read
+					PooledBuffer frame = context.inBuffer;
+					inBuffer.flip();
+					context.inBuffer = null;
+					context.readState = ChannelContext.ReadState.READ_SIZE;
+					Message decompressed = null;
+					try {
+						Message message = Message.decode(frame);
+						if (message.hasFlag(I_NioEngine.FLAG_COMPRESSED)) {
+							message = decompressed = engine.decompress(context, message);
+						}
+						if (message.getOpcode() == I_NioEngine.HELLO) {
+							engine.hello(context, message);
+						}
+						else {
+							engine.handler().receivedCB(message, socketChannel);
+						}
+					} finally {
+						// back to the pool unless the handler retained the message
+						frame.release();
+						if (decompressed != null) {
+							decompressed.release();
+						}
+					}
+					if ((key.interestOps() & SelectionKey.OP_READ) == 0) {
+						// reading has been suspended by the handler or its replies
+						return;
+					}
+				}
+			}
+
+			if (numBytesRead == -1){
+				System.out.println("Connection closed by the remote host");
+				closeChannel(context);
+				return;
+			}
+		}
+		catch (ProtocolException e) {
+			System.out.println("Malformed message " + e.getMessage());
+			closeChannel(context);
+			return;
+		}
+		catch (IOException e) {
+			// The remote forcibly closed the connection, cancel the selection key and close the channel.
+			System.out.println("An error occured while reading the message (catch)\n"+e);
+			closeChannel(context);
+			return;
+		}
+	}
+
+	private void handleWrite(SelectionKey key) {
+		flush((ChannelContext) key.attachment());
+	}
+
+	/**
+	 * Queue buffers or file regions and try to write them at once
+	 */
+	private void queue(ChannelContext context, Object[] items) {
+		boolean wasEmpty = context.enqueue(items);
+		if (context.key == null || !context.key.isValid()) {
+			// not registered yet, written once registered
+			return;
+		}
+		if (context.writable && context.pendingBytes > engine.highWatermark()) {
+			// slow consumer: stop reading its requests until it catches up
+			context.writable = false;
+			context.key.interestOps(context.key.interestOps() & ~SelectionKey.OP_READ);
+		}
+		if (wasEmpty && context.channel.isConnected()) {
+			flush(context);
+		}
+	}
+
+	/**
+	 * Write as much of the channel's queue as the socket accepts, without
+	 * blocking the selector thread. OP_WRITE stays registered only while
+	 * a partial write is pending.
+	 */
+	private void flush(ChannelContext context) {
+		SelectionKey key = context.key;
+		try {
+			while (!context.outQueue.isEmpty()) {
+				long written;
+				if (context.outQueue.peekFirst() instanceof FileRegion) {
+					// send the file content straight from the file
+					written = ((FileRegion) context.outQueue.peekFirst()).transferTo(context.channel);
+					context.written(written, 0);
+				}
+				else {
+					int gathered = context.gather();
+					written = context.channel.write(context.gatherArray(), 0, gathered);
+					context.written(written, gathered);
+				}
+				if (written == 0) {
+					// the socket buffer is full, wait for the next OP_WRITE
+					break;
+				}
+			}
+		} catch (IOException e) {
+			// The channel has been closed
+			closeChannel(context);
+			return;
+		}
+		int ops = key.interestOps();
+		key.interestOps(context.outQueue.isEmpty() ?
+				ops & ~SelectionKey.OP_WRITE : ops | SelectionKey.OP_WRITE);
+		if (!context.writable && context.pendingBytes <= engine.lowWatermark()) {
+			// drained: accept requests from this client again
+			context.writable = true;
+			if (!context.readingSuspended) {
+				key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+			}
+			if (engine.handler() instanceof I_ChannelStateHandler) {
+				((I_ChannelStateHandler) engine.handler()).writableCB(context.channel);
+			}
+		}
+	}
+
+	private void closeChannel(ChannelContext context) {
+		if (context.key != null) {
+			context.key.cancel();
+		}
+		context.release();
+		try {
+			context.channel.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		if (engine.removeContext(context)) {
+			channelCount.decrementAndGet();
+			if (engine.handler() instanceof I_ChannelStateHandler) {
+				((I_ChannelStateHandler) engine.handler()).disconnectedCB(context.channel);
+			}
+		}
+	}
+
+}
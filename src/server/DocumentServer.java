@@ -1,62 +1,217 @@
 package server;
 
+import java.io.File;
 import java.io.IOException;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
 import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import nioEngine.DeflateCodec;
+import nioEngine.Dispatcher;
+import nioEngine.I_ChannelStateHandler;
 import nioEngine.I_NioEngine;
 import nioEngine.I_RecvMsgHandler;
+import nioEngine.Message;
 import nioEngine.NioEngine;
+import documents.ChunkStore;
+import documents.Delta;
 import documents.Document;
 import documents.DocumentsSet;
+import documents.LockManager;
+import documents.Manifest;
+import documents.UploadStage;
+import documents.Waiter;
 
 /**
  * This class contains the server methods to manage documents
+ * The handlers run on worker threads (see Dispatcher), so that disk I/O
+ * does not hold the reactors up. The requests of a client are handled in
+ * order, requests on the same document are serialized on its lock
+ * monitor, requests on different documents run in parallel.
  * TODO failures
  */
-public class DocumentServer implements I_RecvMsgHandler {
+public class DocumentServer implements I_RecvMsgHandler, I_ChannelStateHandler {
+	
+	/**
+	 * Reply held back while its client is not writable.
+	 * Documents are kept by reference and only encoded when sent,
+	 * so a slow client does not make the server buffer their content.
+	 */
+	private static class PendingReply {
+		int code;
+		int requestId;
+		Document document;
+		int cachedRevision;
+		Message message;
+	}
+	
+	/**
+	 * Replies held back for a slow client, in order, guarded by itself.
+	 * They are sent outside of the lock, by one thread at a time.
+	 */
+	private static class HeldReplies {
+		final Queue<PendingReply> replies = new LinkedList<PendingReply>();
+		// true while a thread sends the replies
+		boolean draining;
+		// true once dropped from pendingReplies, the replies go to a new one
+		boolean removed;
+	}
 	
 	private I_NioEngine nioEngine;
 	private Thread threadEngine;
+	// runs the handlers off the reactor threads
+	private Dispatcher dispatcher;
 	private DocumentsSet documentsSet;
+	private LockManager lockManager;
+	// past revisions of the documents
+	private ChunkStore history;
+	// contents uploaded in chunks
+	private UploadStage uploads;
+	// for each slow client, the replies waiting for it to drain its queue
+	private ConcurrentHashMap<SocketChannel, HeldReplies> pendingReplies;
+	// frees the documents whose leases have expired
+	private ScheduledExecutorService leaseTimer;
+	
+	// a client stops being fed past WRITE_HIGH_WATERMARK queued bytes
+	private static final long WRITE_LOW_WATERMARK = 256 * 1024;
+	private static final long WRITE_HIGH_WATERMARK = 4 * 1024 * 1024;
+	// platform threads running the handlers, per core, when there are no virtual threads
+	private static final int WORKERS_PER_CORE = 4;
+	// largest document sent whole, its frame (header and name included)
+	// fits the default maximum frame size of the clients
+	private static final long MAX_DOCUMENT_SIZE = I_NioEngine.DEFAULT_MAX_FRAME_SIZE - Message.HEADER_LENGTH - 0xffff;
 	
 	private static final Logger logger = Logger.getLogger(DocumentServer.class.getName());
 	
 	public DocumentServer() throws UnknownHostException, IOException {
+		this(".", I_NioEngine.port, Runtime.getRuntime().availableProcessors());
+	}
+	
+	/**
+	 * Server running its handlers on virtual threads when available,
+	 * otherwise on WORKERS_PER_CORE platform threads per core
+	 * @param directory the directory containing the documents
+	 * @param port the listening port
+	 * @param reactorsNumber number of engine threads serving the clients
+	 */
+	public DocumentServer(String directory, int port, int reactorsNumber) 
+			throws UnknownHostException, IOException {
+		this(directory, port, reactorsNumber, Dispatcher.newExecutor(
+				WORKERS_PER_CORE * Runtime.getRuntime().availableProcessors()));
+	}
+	
+	/**
+	 * @param directory the directory containing the documents
+	 * @param port the listening port
+	 * @param reactorsNumber number of engine threads serving the clients
+	 * @param workers the threads running the handlers, shut down on close
+	 */
+	public DocumentServer(String directory, int port, int reactorsNumber, ExecutorService workers) 
+			throws UnknownHostException, IOException {
 		logger.log(Level.INFO, "DocumentServer creation");
-		documentsSet = new DocumentsSet(".");
-		nioEngine = new NioEngine();
-		nioEngine.InitializeAsServer(InetAddress.getByName("localhost"), I_NioEngine.port, this);
+		documentsSet = new DocumentsSet(directory);
+		lockManager = documentsSet.getLockManager();
+		history = documentsSet.getHistory();
+		uploads = documentsSet.getUploads();
+		pendingReplies = new ConcurrentHashMap<SocketChannel, HeldReplies>();
+		nioEngine = new NioEngine(reactorsNumber);
+		nioEngine.setWriteWatermarks(WRITE_LOW_WATERMARK, WRITE_HIGH_WATERMARK);
+		nioEngine.setCompression(I_NioEngine.DEFAULT_COMPRESSION_THRESHOLD, new DeflateCodec());
+		dispatcher = new Dispatcher(this, workers);
+		dispatcher.setEngine(nioEngine);
+		nioEngine.InitializeAsServer(InetAddress.getByName("localhost"), port, dispatcher);
 		threadEngine = new Thread(nioEngine);
 		threadEngine.start();
+		leaseTimer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "DocumentServer-leases");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		leaseTimer.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				expireLeases();
+			}
+		}, 1, 1, TimeUnit.SECONDS);
 	}
 
+	/**
+	 * Every reply carries the id of the request it answers, so that
+	 * clients can keep several requests in flight: a request waiting
+	 * for a lock is answered after the ones that follow it.
+	 */
 	@Override
-	public void receivedCB(byte[] data, SocketChannel socketChannel) {
-		String stringData = new String(data);
-		int code = Integer.valueOf(stringData.substring(0,1));
-		String dataContent = stringData.substring(1);
-		switch (code) {
+	public void receivedCB(Message message, SocketChannel socketChannel) {
+		int requestId = message.getRequestId();
+		switch (message.getOpcode()) {
 		case I_NioEngine.DOWNLOAD:
-			downloadDocument(dataContent, socketChannel);
+			downloadDocument(message.getName(), socketChannel, requestId, message.getRevision());
 			break;
 		case I_NioEngine.DOWNLOAD_LOCKED:
-			downloadLockedDocument(dataContent, socketChannel);
+			downloadLockedDocument(message.getName(), socketChannel, requestId, message.getRevision());
+			break;
+		case I_NioEngine.READ:
+			readDocument(message.getName(), socketChannel, requestId, message.getRevision());
 			break;
 		case I_NioEngine.LOCK:
-			lockDocument(dataContent, socketChannel);
+			lockDocument(message.getName(), socketChannel, requestId);
 			break;
 		case I_NioEngine.UPLOAD:
-			uploadDocument(dataContent, socketChannel);
+			uploadDocument(message, socketChannel);
 			break;
 		case I_NioEngine.UNLOCK:
-			unlockDocument(dataContent, socketChannel);
+			if (message.hasFlag(I_NioEngine.FLAG_SHARED)) {
+				releaseRead(message.getName(), socketChannel);
+			}
+			else {
+				unlockDocument(message.getName(), socketChannel);
+			}
+			break;
+		case I_NioEngine.COMMIT:
+			commitDocument(message, socketChannel);
+			break;
+		case I_NioEngine.RENEW:
+			renewLease(message.getName(), socketChannel, requestId,
+					message.hasFlag(I_NioEngine.FLAG_SHARED));
 			break;
 		case I_NioEngine.DOCUMENTS_LIST:
-			sendDocumentsList(socketChannel);
+			sendDocumentsList(socketChannel, requestId);
+			break;
+		case I_NioEngine.HISTORY:
+			sendRevision(message.getName(), socketChannel, requestId, message.getRevision());
+			break;
+		case I_NioEngine.MANIFEST:
+			sendManifest(message.getName(), socketChannel, requestId, message.getRevision());
+			break;
+		case I_NioEngine.CHUNKS:
+			sendChunks(message, socketChannel);
+			break;
+		case I_NioEngine.RANGE_READ:
+			sendRange(message, socketChannel);
+			break;
+		case I_NioEngine.UPLOAD_CHUNK:
+			stageUpload(message, socketChannel);
+			break;
 		default:
 			logger.log(Level.SEVERE, "server received unexpected message");
 			break;
@@ -68,35 +223,10 @@ public class DocumentServer implements I_RecvMsgHandler {
 	 * Send the document's revision number to the client
 	 * @param document
 	 * @param socketChannel
+	 * @param requestId
 	 */
-	private void lockDocument(Document document, SocketChannel socketChannel) {
-		// if the document is not locked
-		// send document's revision number and a lock
-		if (documentsSet.getOwner(document) == null) {
-			// format: LOCK<document_name><separator><revision_number>
-			nioEngine.send(socketChannel, new String(
-					I_NioEngine.LOCK
-					+ document.getName()
-					+ I_NioEngine.nameContentSeparator
-					+ document.getRevision().toString()
-					).getBytes());
-			documentsSet.setOwner(document, socketChannel);
-		}
-		// if the document is locked by the particular client
-		else if (documentsSet.getOwner(document) == socketChannel){
-			nioEngine.send(socketChannel, new String(
-					I_NioEngine.LOCK
-					+ document.getName()
-					+ I_NioEngine.nameContentSeparator
-					+ document.getRevision().toString()
-					).getBytes());
-		}
-		// if the document is locked by an other client, add the client to the waiters queue
-		else {
-			nioEngine.send(socketChannel, new String(I_NioEngine.ALREADY_LOCKED
-					+ document.getName()).getBytes());
-			documentsSet.addWaitingClient(document, socketChannel);
-		}
+	private void lockDocument(Document document, SocketChannel socketChannel, int requestId) {
+		acquire(document, new Waiter(socketChannel, requestId, I_NioEngine.LOCK, 0));
 	}
 
 	/**
@@ -104,12 +234,13 @@ public class DocumentServer implements I_RecvMsgHandler {
 	 * Send the document's revision number to the client
 	 * @param url
 	 * @param socketChannel
+	 * @param requestId
 	 */
-	private void lockDocument(String url, SocketChannel socketChannel) {
+	private void lockDocument(String url, SocketChannel socketChannel, int requestId) {
 		logger.log(Level.INFO, "DocumentServer: lock "+url);
-		Document document = documentsSet.getDocument(url);
+		Document document = getDocument(url, socketChannel, requestId);
 		if (document != null) {
-			lockDocument(document, socketChannel);
+			lockDocument(document, socketChannel, requestId);
 		}
 	}
 
@@ -125,15 +256,162 @@ public class DocumentServer implements I_RecvMsgHandler {
 		if (document == null) {
 			return;
 		}
-		if (documentsSet.getOwner(document) == socketChannel){
-			// change document owner
-			SocketChannel localSocketChannel = documentsSet.updateOwner(document);
-			if (localSocketChannel != null) {
-				lockDocument(document, localSocketChannel);
+		grantLocks(document, lockManager.unlock(document, socketChannel));
+	}
+	
+	/**
+	 * Save the content uploaded by the owner of a document and unlock it
+	 * in the same step, so that the next owner gets the new revision.
+	 * The client is answered with the new revision number, NOT_LOCKED
+	 * if it does not own the lock, STALE_REVISION if the content is a
+	 * delta that does not apply to the current revision, or
+	 * INVALID_REQUEST if it cannot be decoded or saved (the document
+	 * then stays locked).
+	 * @param message the document name and content
+	 * @param socketChannel
+	 */
+	private void commitDocument(Message message, SocketChannel socketChannel) {
+		logger.log(Level.INFO, "DocumentServer: commit "+message.getName());
+		int requestId = message.getRequestId();
+		Document document = getDocument(message.getName(), socketChannel, requestId);
+		if (document == null) {
+			return;
+		}
+		List<Waiter> granted;
+		// the lock cannot expire while the content is saved
+		synchronized (lockManager.getMonitor(document)) {
+			if (!lockManager.isOwner(document, socketChannel)) {
+				reply(socketChannel, new Message(I_NioEngine.NOT_LOCKED, 0, requestId,
+						document.getName(), document.getRevision().value(), (ByteBuffer) null));
+				return;
+			}
+			if (!saveContent(document, message, socketChannel)) {
+				return;
+			}
+			invalidateCaches(document, socketChannel);
+			lockManager.addCachingClient(document, socketChannel);
+			reply(socketChannel, new Message(I_NioEngine.COMMIT, 0, requestId,
+					document.getName(), document.getRevision().value(), (ByteBuffer) null));
+			granted = lockManager.unlock(document, socketChannel);
+		}
+		grantLocks(document, granted);
+	}
+	
+	/**
+	 * Release the read lease of a client
+	 * @param url
+	 * @param socketChannel
+	 */
+	private void releaseRead(String url, SocketChannel socketChannel) {
+		Document document = documentsSet.getDocument(url);
+		if (document != null) {
+			grantLocks(document, lockManager.releaseRead(document, socketChannel));
+		}
+	}
+	
+	/**
+	 * Extend the lease of a client on a lock or a read lease, and answer
+	 * with the revision, or NOT_LOCKED if the client lost it
+	 */
+	private void renewLease(String url, SocketChannel socketChannel, int requestId, boolean shared) {
+		Document document = getDocument(url, socketChannel, requestId);
+		if (document == null) {
+			return;
+		}
+		int code = lockManager.renewLease(document, socketChannel, shared)
+				? I_NioEngine.RENEW : I_NioEngine.NOT_LOCKED;
+		reply(socketChannel, new Message(code, shared ? I_NioEngine.FLAG_SHARED : 0, requestId,
+				document.getName(), document.getRevision().value(), (ByteBuffer) null));
+	}
+	
+	/**
+	 * Take back the locks and read leases of the clients who did not
+	 * renew them in time (e.g. a client that hangs), and give them to
+	 * the waiting clients
+	 */
+	private void expireLeases() {
+		for (Map.Entry<Document, List<Waiter>> expired : lockManager.expireLeases().entrySet()) {
+			logger.log(Level.INFO, "DocumentServer: lease expired on "+expired.getKey().getName());
+			grantLocks(expired.getKey(), expired.getValue());
+		}
+	}
+	
+	private void grantLocks(Document document, List<Waiter> waiters) {
+		for (Waiter waiter : waiters) {
+			grantLock(document, waiter);
+		}
+	}
+	
+	/**
+	 * Answer the request of a waiting client that just got the lock
+	 * or a read lease
+	 * @param document
+	 * @param waiter the new owner or reader
+	 */
+	private void grantLock(Document document, Waiter waiter) {
+		if (isTooLarge(document, waiter)) {
+			// grown past a frame while the client waited: give the grant back
+			List<Waiter> next = giveBack(document, waiter.getClient(), waiter.isReader());
+			replyTooLarge(waiter.getClient(), waiter.getRequestId(), document);
+			grantLocks(document, next);
+		}
+		else if (waiter.getOpcode() == I_NioEngine.DOWNLOAD || waiter.getOpcode() == I_NioEngine.READ) {
+			replyDocument(waiter.getClient(), waiter.getOpcode(), waiter.getRequestId(), document,
+					waiter.getCachedRevision());
+		}
+		else {
+			replyLock(waiter.getClient(), waiter.getRequestId(), document);
+		}
+	}
+	
+	/**
+	 * Take back the lock or the read lease just granted to a client whose
+	 * request cannot be answered
+	 * @return the waiters granted in its place, to be answered
+	 */
+	private List<Waiter> giveBack(Document document, SocketChannel client, boolean reader) {
+		return reader ? lockManager.releaseRead(document, client) : lockManager.unlock(document, client);
+	}
+	
+	/**
+	 * Answer a request for the lock or a read lease if it can be granted
+	 * now, otherwise queue the client behind the holders of the document
+	 * and notify it. The notification is sent before the document can
+	 * be granted to the client.
+	 */
+	private void acquire(Document document, Waiter waiter) {
+		if (isTooLarge(document, waiter)) {
+			replyTooLarge(waiter.getClient(), waiter.getRequestId(), document);
+			return;
+		}
+		synchronized (lockManager.getMonitor(document)) {
+			if (lockManager.acquire(document, waiter)) {
+				grantLock(document, waiter);
+			}
+			else {
+				reply(waiter.getClient(), new Message(I_NioEngine.ALREADY_LOCKED, 0, waiter.getRequestId(),
+						document.getName(), 0, (ByteBuffer) null));
 			}
 		}
 	}
 
+	/**
+	 * @return true if the waiter asks for the whole document and the
+	 * document does not fit a frame
+	 */
+	private static boolean isTooLarge(Document document, Waiter waiter) {
+		return (waiter.getOpcode() == I_NioEngine.DOWNLOAD || waiter.getOpcode() == I_NioEngine.READ)
+				&& document.getSize() > MAX_DOCUMENT_SIZE;
+	}
+	
+	/**
+	 * Refuse to send a document whole, it does not fit a frame
+	 */
+	private void replyTooLarge(SocketChannel socketChannel, int requestId, Document document) {
+		replyInvalid(socketChannel, requestId, document.getName(), "document of " + document.getSize()
+				+ " bytes, too large to be sent whole: read it by ranges (RANGE_READ)");
+	}
+
 	private void createDocument(String url) {
 		logger.log(Level.INFO, "DocumentServer: create "+url);
 		// TODO complete
@@ -149,73 +427,619 @@ public class DocumentServer implements I_RecvMsgHandler {
 	 * Otherwise the client is added to the waiting queue and notified
 	 * @param url
 	 * @param socketChannel
+	 * @param requestId
+	 * @param cachedRevision revision cached by the client, not sent again
 	 */
-	private void downloadDocument(String url, SocketChannel socketChannel) {
+	private void downloadDocument(String url, SocketChannel socketChannel, int requestId, int cachedRevision) {
 		logger.log(Level.INFO, "DocumentServer: download "+url);
-		Document document = documentsSet.getDocument(url);
+		Document document = getDocument(url, socketChannel, requestId);
+		if (document == null) {
+			return;
+		}
+		acquire(document, new Waiter(socketChannel, requestId, I_NioEngine.DOWNLOAD, cachedRevision));
+	}
+	
+	/**
+	 * Send a document to a client with a read lease: any number of clients
+	 * may read it at the same time, unless a client holds or waits for the lock
+	 * @param url
+	 * @param socketChannel
+	 * @param requestId
+	 * @param cachedRevision revision cached by the client, not sent again
+	 */
+	private void readDocument(String url, SocketChannel socketChannel, int requestId, int cachedRevision) {
+		logger.log(Level.INFO, "DocumentServer: read "+url);
+		Document document = getDocument(url, socketChannel, requestId);
+		if (document == null) {
+			return;
+		}
+		acquire(document, new Waiter(socketChannel, requestId, I_NioEngine.READ, cachedRevision));
+	}
+	
+	/**
+	 * Send a document to a client who already has the lock on it
+	 * @param url
+	 * @param socketChannel
+	 * @param requestId
+	 * @param cachedRevision revision cached by the client, not sent again
+	 */
+	private void downloadLockedDocument(String url, SocketChannel socketChannel, int requestId,
+			int cachedRevision) {
+		logger.log(Level.INFO, "DocumentServer: download (locked) "+url);
+		Document document = getDocument(url, socketChannel, requestId);
+		if (document == null) {
+			return;
+		}
+		if (document.getSize() > MAX_DOCUMENT_SIZE) {
+			replyTooLarge(socketChannel, requestId, document);
+		}
+		else if (lockManager.isOwner(document, socketChannel)) {
+			replyDocument(socketChannel, I_NioEngine.DOWNLOAD_LOCKED, requestId, document, cachedRevision);
+		}
+	}
+	
+	/**
+	 * Get back a document and save physically the changes
+	 * @param message the document name and content
+	 * @param socketChannel
+	 */
+	private void uploadDocument(Message message, SocketChannel socketChannel) {
+		logger.log(Level.INFO, "DocumentServer: upload "+message.getName());
+		Document document = documentsSet.getDocument(message.getName());
+		if (document == null) {
+			return;
+		}
+		synchronized (lockManager.getMonitor(document)) {
+			if (lockManager.isOwner(document, socketChannel)) {
+				if (saveContent(document, message, socketChannel)) {
+					invalidateCaches(document, socketChannel);
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Send a range of a document, at the revision of the request (the
+	 * current one for revision 0), STALE_REVISION if it changed. No lock
+	 * is taken: a client reading a document by ranges (pages of a viewer,
+	 * chunks of a download) checks that they all have the same revision.
+	 * The range is sent from the file without copy, or from the content
+	 * waiting for a checkpoint.
+	 * @param message the document name, revision, and the range: long offset, int length
+	 */
+	private void sendRange(Message message, SocketChannel socketChannel) {
+		int requestId = message.getRequestId();
+		Document document = getDocument(message.getName(), socketChannel, requestId);
+		if (document == null) {
+			return;
+		}
+		ByteBuffer range = message.getPayload();
+		if (range.remaining() < 12) {
+			logger.log(Level.WARNING, "DocumentServer: malformed range of " + message.getName());
+			replyInvalid(socketChannel, requestId, message.getName(), "malformed range");
+			return;
+		}
+		long offset = range.getLong();
+		int length = Math.min(range.getInt(), I_NioEngine.MAX_RANGE_LENGTH);
+		if (offset < 0) {
+			logger.log(Level.WARNING, "DocumentServer: negative range offset " + offset + " of " + message.getName());
+			replyInvalid(socketChannel, requestId, message.getName(), "negative range offset " + offset);
+			return;
+		}
+		if (length < 0) {
+			logger.log(Level.WARNING, "DocumentServer: negative range length " + length + " of " + message.getName());
+			replyInvalid(socketChannel, requestId, message.getName(), "negative range length " + length);
+			return;
+		}
+		logger.log(Level.INFO, "DocumentServer: range "+message.getName()+" ["+offset+", +"+length+"]");
+		// the revision and the content cannot change while the range is taken
+		synchronized (lockManager.getMonitor(document)) {
+			if (message.getRevision() != 0 && message.getRevision() != document.getRevision().value()) {
+				replyStale(socketChannel, requestId, document);
+				return;
+			}
+			try {
+				reply(socketChannel, NioEngine.rangeMessage(I_NioEngine.RANGE_READ, requestId,
+						document, offset, length));
+			} catch (IOException e) {
+				logger.log(Level.WARNING, "DocumentServer: cannot read " + document.getName() + ": " + e.getMessage());
+				replyStale(socketChannel, requestId, document);
+			}
+		}
+	}
+	
+	/**
+	 * Stage a chunk of the new content of a document uploaded by the
+	 * owner of its lock, or tell it where to resume if the message has no
+	 * chunk. The client is answered with the staged length, NOT_LOCKED if it
+	 * does not own the lock, or STALE_REVISION if the upload does not
+	 * start from the current revision. The upload is then committed like
+	 * any content (see saveContent).
+	 * @param message the document name, the revision the upload starts from,
+	 * and the chunk: long offset and the bytes
+	 */
+	private void stageUpload(Message message, SocketChannel socketChannel) {
+		int requestId = message.getRequestId();
+		Document document = getDocument(message.getName(), socketChannel, requestId);
 		if (document == null) {
 			return;
 		}
-		if (documentsSet.getOwner(document) == null || documentsSet.getOwner(document) == socketChannel) {
-			documentsSet.setOwner(document, socketChannel);
+		synchronized (lockManager.getMonitor(document)) {
+			if (!lockManager.isOwner(document, socketChannel)) {
+				reply(socketChannel, new Message(I_NioEngine.NOT_LOCKED, 0, requestId,
+						document.getName(), document.getRevision().value(), (ByteBuffer) null));
+				return;
+			}
+			int revision = message.getRevision();
+			if (revision != document.getRevision().value()) {
+				replyStale(socketChannel, requestId, document);
+				return;
+			}
 			try {
-				nioEngine.send(socketChannel, NioEngine.wholeMessage(I_NioEngine.DOWNLOAD, document));
+				ByteBuffer chunk = message.getPayload();
+				long length;
+				if (chunk.remaining() < 8) {
+					length = uploads.getLength(document, revision);
+				}
+				else {
+					length = uploads.write(document, revision, chunk.getLong(), chunk);
+				}
+				ByteBuffer payload = ByteBuffer.allocate(8);
+				payload.putLong(length).flip();
+				reply(socketChannel, new Message(I_NioEngine.UPLOAD_CHUNK, 0, requestId,
+						document.getName(), revision, payload));
 			} catch (IOException e) {
-				e.printStackTrace();
+				logger.log(Level.WARNING, "DocumentServer: upload rejected for "
+						+ document.getName() + ": " + e.getMessage());
+				replyStale(socketChannel, requestId, document);
 			}
 		}
+	}
+	
+	/**
+	 * Save the content of an upload: the whole content, the content staged
+	 * by UPLOAD_CHUNK, or a delta against the revision of the message.
+	 * A delta that only appends bytes is logged and applied without the
+	 * content it keeps, a staged content replaces the file without being read.
+	 * Returns once the change is durable. The new revision is added to
+	 * the history, after the previous one if it was not there yet.
+	 * Must be called under the lock monitor of the document.
+	 * @return false if the delta or the staged content does not apply to
+	 * the current revision
+	 * @throws IOException if the delta is malformed or the change could
+	 * not be saved
+	 */
+	private boolean saveContent(Document document, Message message) throws IOException {
+		if (message.hasFlag(I_NioEngine.FLAG_STAGED)) {
+			return replaceContent(document, message);
+		}
+		if (!message.hasFlag(I_NioEngine.FLAG_DELTA)) {
+			archive(document, 0);
+			document.update(message.getPayloadBytes());
+			archive(document, 0);
+			return true;
+		}
+		if (message.getRevision() != document.getRevision().value()) {
+			return false;
+		}
+		Delta delta = Delta.decode(message.getPayload());
+		archive(document, 0);
+		if (delta.isAppend() && delta.getBaseLength() == document.getSize()) {
+			document.append(delta.getAppended());
+		}
 		else {
-			nioEngine.send(socketChannel, new String(I_NioEngine.ALREADY_LOCKED
-					+ document.getName()).getBytes());
-			documentsSet.addWaitingClient(document, socketChannel);
+			document.update(delta.apply(document.getContent()));
 		}
+		archive(document, delta.getUnchangedPrefix());
+		return true;
 	}
 	
 	/**
-	 * Send a document to a client who already has the lock on it
-	 * @param url
-	 * @param socketChannel
+	 * Save the content of an upload and answer STALE_REVISION if it does
+	 * not apply to the current revision, INVALID_REQUEST if it cannot be
+	 * decoded, applied or saved. The document stays locked on a failure.
+	 * Must be called under the lock monitor of the document.
+	 * @return true if the content was saved
 	 */
-	private void downloadLockedDocument(String url, SocketChannel socketChannel) {
-		logger.log(Level.INFO, "DocumentServer: download (locked) "+url);
-		Document document = documentsSet.getDocument(url);
+	private boolean saveContent(Document document, Message message, SocketChannel socketChannel) {
+		try {
+			if (saveContent(document, message)) {
+				return true;
+			}
+			replyStale(socketChannel, message.getRequestId(), document);
+		} catch (IOException | RuntimeException e) {
+			logger.log(Level.WARNING, "DocumentServer: change rejected for "
+					+ document.getName() + ": " + e);
+			replyInvalid(socketChannel, message.getRequestId(), document.getName(), "change rejected: " + e);
+		}
+		return false;
+	}
+	
+	/**
+	 * Replace a document by the content staged for the revision of the
+	 * message, if it has the length and the SHA-256 of the payload
+	 * @return false if the staged content is not the one expected
+	 */
+	private boolean replaceContent(Document document, Message message) throws IOException {
+		int revision = message.getRevision();
+		ByteBuffer expected = message.getPayload();
+		if (revision != document.getRevision().value() || expected.remaining() != 8 + Manifest.HASH_LENGTH) {
+			return false;
+		}
+		File staged = uploads.getFile(document, revision);
+		// an empty content has no chunk
+		staged.createNewFile();
+		byte[] hash = new byte[Manifest.HASH_LENGTH];
+		long length = expected.getLong();
+		expected.get(hash);
+		if (staged.length() != length || !Arrays.equals(uploads.digest(document, revision), hash)) {
+			// resent from the start by the next upload
+			staged.delete();
+			return false;
+		}
+		archive(document, 0);
+		document.replace(staged);
+		archive(document, 0);
+		return true;
+	}
+	
+	/**
+	 * Add the current revision of a document to the history. A failure
+	 * only leaves a hole in the history, the change is saved anyway.
+	 * @param unchangedPrefix number of bytes shared with the previous revision
+	 */
+	private void archive(Document document, long unchangedPrefix) {
+		try {
+			history.archive(document, unchangedPrefix);
+		} catch (IOException e) {
+			logger.log(Level.WARNING, "DocumentServer: revision " + document.getRevision().value()
+					+ " of " + document.getName() + " not archived: " + e.getMessage());
+		}
+	}
+	
+	/**
+	 * Send a past revision of a document (the current one for revision 0),
+	 * UNKNOWN_DOCUMENT if the history does not have it
+	 */
+	private void sendRevision(String url, SocketChannel socketChannel, int requestId, int revision) {
+		logger.log(Level.INFO, "DocumentServer: history "+url+" revision "+revision);
+		Document document = getDocument(url, socketChannel, requestId);
 		if (document == null) {
 			return;
 		}
-		if (documentsSet.getOwner(document).equals(socketChannel)) {
+		try {
+			Manifest manifest = getManifest(document, revision);
+			if (manifest == null) {
+				replyUnknownRevision(socketChannel, requestId, url);
+				return;
+			}
+			if (manifest.getLength() > MAX_DOCUMENT_SIZE) {
+				replyInvalid(socketChannel, requestId, url, "revision of " + manifest.getLength()
+						+ " bytes, too large to be sent whole: read its MANIFEST and CHUNKS");
+				return;
+			}
+			reply(socketChannel, new Message(I_NioEngine.HISTORY, 0, requestId, url,
+					manifest.getRevision(), ByteBuffer.wrap(history.read(manifest))));
+		} catch (IOException e) {
+			logger.log(Level.WARNING, "DocumentServer: cannot read the history of " + url + ": " + e.getMessage());
+			replyUnknownRevision(socketChannel, requestId, url);
+		}
+	}
+	
+	/**
+	 * Send the list of the chunks of a revision of a document (the current
+	 * one for revision 0), so that the client only asks for the chunks it
+	 * does not have
+	 */
+	private void sendManifest(String url, SocketChannel socketChannel, int requestId, int revision) {
+		Document document = getDocument(url, socketChannel, requestId);
+		if (document == null) {
+			return;
+		}
+		try {
+			Manifest manifest = getManifest(document, revision);
+			if (manifest == null) {
+				replyUnknownRevision(socketChannel, requestId, url);
+				return;
+			}
+			reply(socketChannel, new Message(I_NioEngine.MANIFEST, 0, requestId, url,
+					manifest.getRevision(), manifest.encode()));
+		} catch (IOException e) {
+			logger.log(Level.WARNING, "DocumentServer: cannot read the history of " + url + ": " + e.getMessage());
+			replyUnknownRevision(socketChannel, requestId, url);
+		}
+	}
+	
+	/**
+	 * Send the chunks whose hashes are in the payload, in the same order,
+	 * or INVALID_REQUEST if they do not fit MAX_CHUNKS_LENGTH
+	 */
+	private void sendChunks(Message message, SocketChannel socketChannel) {
+		ByteBuffer hashes = message.getPayload();
+		List<byte[]> chunks = new LinkedList<byte[]>();
+		long length = 0;
+		while (hashes.remaining() >= Manifest.HASH_LENGTH) {
+			byte[] hash = new byte[Manifest.HASH_LENGTH];
+			hashes.get(hash);
+			byte[] chunk;
 			try {
-				nioEngine.send(socketChannel, NioEngine.wholeMessage(I_NioEngine.DOWNLOAD_LOCKED, document));
+				chunk = history.getChunk(hash);
 			} catch (IOException e) {
-				e.printStackTrace();
+				logger.log(Level.WARNING, "DocumentServer: " + e.getMessage());
+				chunk = null;
+			}
+			chunks.add(chunk);
+			length += 4 + (chunk == null ? 0 : chunk.length);
+			if (length > I_NioEngine.MAX_CHUNKS_LENGTH) {
+				replyInvalid(socketChannel, message.getRequestId(), message.getName(), "chunks of more than "
+						+ I_NioEngine.MAX_CHUNKS_LENGTH + " bytes requested: ask for them in batches");
+				return;
+			}
+		}
+		ByteBuffer payload = ByteBuffer.allocate((int) length);
+		for (byte[] chunk : chunks) {
+			if (chunk == null) {
+				payload.putInt(-1);
+			}
+			else {
+				payload.putInt(chunk.length);
+				payload.put(chunk);
 			}
 		}
+		payload.flip();
+		reply(socketChannel, new Message(I_NioEngine.CHUNKS, 0, message.getRequestId(),
+				message.getName(), 0, payload));
 	}
 	
 	/**
-	 * Get back a document and save physically the changes
-	 * @param dataContent
+	 * Manifest of a revision, the current one (archived if needed) for
+	 * revision 0
+	 * @return null if the history does not have the revision
+	 */
+	private Manifest getManifest(Document document, int revision) throws IOException {
+		synchronized (lockManager.getMonitor(document)) {
+			if (revision == 0 || revision == document.getRevision().value()) {
+				return history.archive(document, 0);
+			}
+		}
+		return history.getManifest(document.getName(), revision);
+	}
+	
+	private void replyUnknownRevision(SocketChannel socketChannel, int requestId, String url) {
+		reply(socketChannel, new Message(I_NioEngine.UNKNOWN_DOCUMENT, 0, requestId,
+				url, 0, (ByteBuffer) null));
+	}
+	
+	/**
+	 * Tell the clients caching a document that it has a new revision,
+	 * so that they stop reading their copy
+	 * @param document
+	 * @param uploader the client who made the new revision
+	 */
+	private void invalidateCaches(Document document, SocketChannel uploader) {
+		Set<SocketChannel> clients = lockManager.removeCachingClients(document);
+		clients.remove(uploader);
+		if (clients.isEmpty()) {
+			return;
+		}
+		Message invalidation = new Message(I_NioEngine.INVALIDATE, document.getName(),
+				document.getRevision().value());
+		// clients with replies held back get it after them
+		Set<SocketChannel> writableClients = new HashSet<SocketChannel>();
+		for (SocketChannel client : clients) {
+			if (pendingReplies.containsKey(client)) {
+				reply(client, invalidation);
+			}
+			else {
+				writableClients.add(client);
+			}
+		}
+		nioEngine.sendToAll(writableClients, invalidation);
+	}
+	
+	/**
+	 * Tell a client its delta was not applied, with the current revision
+	 */
+	private void replyStale(SocketChannel socketChannel, int requestId, Document document) {
+		reply(socketChannel, new Message(I_NioEngine.STALE_REVISION, 0, requestId,
+				document.getName(), document.getRevision().value(), (ByteBuffer) null));
+	}
+	
+	/**
+	 * Reject a request the server cannot serve
+	 * @param reason told to the client
+	 */
+	private void replyInvalid(SocketChannel socketChannel, int requestId, String url, String reason) {
+		reply(socketChannel, new Message(I_NioEngine.INVALID_REQUEST, 0, requestId, url, 0,
+				ByteBuffer.wrap(reason.getBytes(StandardCharsets.UTF_8))));
+	}
+	
+	private void sendDocumentsList(SocketChannel socketChannel, int requestId) {
+		reply(socketChannel, new Message(I_NioEngine.DOCUMENTS_LIST, 0, requestId, null, 0,
+				ByteBuffer.wrap(documentsSet.getDocumentsList().getBytes())));
+	}
+	
+	/**
+	 * Find a requested document, tell the client if it does not exist
+	 * @return the document, null if it does not exist
+	 */
+	private Document getDocument(String url, SocketChannel socketChannel, int requestId) {
+		Document document = documentsSet.getDocument(url);
+		if (document == null) {
+			reply(socketChannel, new Message(I_NioEngine.UNKNOWN_DOCUMENT, 0, requestId,
+					url, 0, (ByteBuffer) null));
+		}
+		return document;
+	}
+	
+	/**
+	 * Send the current revision of a document with its lock, the client
+	 * then caches this revision
+	 */
+	private void replyLock(SocketChannel socketChannel, int requestId, Document document) {
+		lockManager.addCachingClient(document, socketChannel);
+		reply(socketChannel, new Message(I_NioEngine.LOCK, 0, requestId,
+				document.getName(), document.getRevision().value(), (ByteBuffer) null));
+	}
+	
+	/**
+	 * Send a message to a client, or hold it back if the client
+	 * is not consuming its replies fast enough
 	 * @param socketChannel
+	 * @param message
 	 */
-	private void uploadDocument(String dataContent, SocketChannel socketChannel) {
-		logger.log(Level.INFO, "DocumentServer: upload "+dataContent);
-		String[] strings = dataContent.split(I_NioEngine.nameContentSeparator);
-		Document document = documentsSet.getDocument(strings[0]);
-		if (document != null) {
-			if (documentsSet.getOwner(document) == socketChannel) {
-				document.setData(strings[1].getBytes());
-				document.update(); // write changes on physical file
+	private void reply(SocketChannel socketChannel, Message message) {
+		PendingReply pendingReply = new PendingReply();
+		pendingReply.message = message;
+		reply(socketChannel, pendingReply);
+	}
+	
+	/**
+	 * Send a document to a client, or hold it back if the client
+	 * is not consuming its replies fast enough
+	 * The client then caches the document
+	 * @param socketChannel
+	 * @param code
+	 * @param requestId
+	 * @param document
+	 * @param cachedRevision revision cached by the client: if it is still
+	 * the current one when the reply is sent, NOT_MODIFIED is sent instead
+	 */
+	private void replyDocument(SocketChannel socketChannel, int code, int requestId, Document document,
+			int cachedRevision) {
+		lockManager.addCachingClient(document, socketChannel);
+		PendingReply pendingReply = new PendingReply();
+		pendingReply.code = code;
+		pendingReply.requestId = requestId;
+		pendingReply.document = document;
+		pendingReply.cachedRevision = cachedRevision;
+		reply(socketChannel, pendingReply);
+	}
+	
+	/**
+	 * Send a reply at once if the client is writable and has no reply
+	 * held back, otherwise queue it behind them. No lock shared between
+	 * the clients is held while the reply is encoded and sent.
+	 */
+	private void reply(SocketChannel socketChannel, PendingReply pendingReply) {
+		while (true) {
+			HeldReplies held = pendingReplies.get(socketChannel);
+			if (held == null) {
+				if (nioEngine.isWritable(socketChannel)) {
+					send(socketChannel, pendingReply);
+					return;
+				}
+				HeldReplies created = new HeldReplies();
+				held = pendingReplies.putIfAbsent(socketChannel, created);
+				if (held == null) {
+					held = created;
+				}
+			}
+			synchronized (held) {
+				if (held.removed) {
+					continue;
+				}
+				held.replies.add(pendingReply);
 			}
+			// the client may have drained meanwhile, with no writableCB to come
+			if (nioEngine.isWritable(socketChannel)) {
+				drain(socketChannel, held);
+			}
+			return;
 		}
 	}
 	
-	private void sendDocumentsList(SocketChannel socketChannel) {
-		nioEngine.send(socketChannel, (String.valueOf(I_NioEngine.DOCUMENTS_LIST)
-				+ documentsSet.getDocumentsList()).getBytes());
+	/**
+	 * Send the replies held back for a client while it is writable, unless
+	 * another thread is sending them. The lock of the client's replies is
+	 * only held to take the next one.
+	 */
+	private void drain(SocketChannel socketChannel, HeldReplies held) {
+		synchronized (held) {
+			if (held.draining || held.removed) {
+				return;
+			}
+			held.draining = true;
+		}
+		while (true) {
+			PendingReply next;
+			synchronized (held) {
+				next = nioEngine.isWritable(socketChannel) ? held.replies.poll() : null;
+				if (next == null) {
+					held.draining = false;
+					if (held.replies.isEmpty()) {
+						held.removed = true;
+						pendingReplies.remove(socketChannel, held);
+					}
+					return;
+				}
+			}
+			send(socketChannel, next);
+		}
+	}
+	
+	private void send(SocketChannel socketChannel, PendingReply pendingReply) {
+		if (pendingReply.message != null) {
+			nioEngine.send(socketChannel, pendingReply.message);
+			return;
+		}
+		Document document = pendingReply.document;
+		if (document.getRevision().value() == pendingReply.cachedRevision) {
+			int flags = pendingReply.code == I_NioEngine.READ ? I_NioEngine.FLAG_SHARED : 0;
+			nioEngine.send(socketChannel, new Message(I_NioEngine.NOT_MODIFIED, flags, pendingReply.requestId,
+					document.getName(), pendingReply.cachedRevision, (ByteBuffer) null));
+			return;
+		}
+		try {
+			nioEngine.send(socketChannel, NioEngine.wholeMessage(pendingReply.code,
+					pendingReply.requestId, pendingReply.document));
+		} catch (IOException e) {
+			logger.log(Level.WARNING, "DocumentServer: cannot read " + document.getName() + ": " + e.getMessage());
+			replyInvalid(socketChannel, pendingReply.requestId, document.getName(),
+					"cannot read the document: " + e.getMessage());
+			// DOWNLOAD_LOCKED is sent to the owner, its lock was not granted by this request
+			if (pendingReply.code != I_NioEngine.DOWNLOAD_LOCKED) {
+				grantLocks(document, giveBack(document, socketChannel, pendingReply.code == I_NioEngine.READ));
+			}
+		}
+	}
+	
+	/**
+	 * A slow client has drained its queue: send the replies held back for it
+	 */
+	@Override
+	public void writableCB(SocketChannel socketChannel) {
+		HeldReplies held = pendingReplies.get(socketChannel);
+		if (held != null) {
+			drain(socketChannel, held);
+		}
+	}
+
+	/**
+	 * A client has disconnected: its locks and read leases are given to the
+	 * waiting clients, and its own requests are dropped
+	 */
+	@Override
+	public void disconnectedCB(SocketChannel socketChannel) {
+		HeldReplies held = pendingReplies.remove(socketChannel);
+		if (held != null) {
+			synchronized (held) {
+				held.removed = true;
+				held.replies.clear();
+			}
+		}
+		for (Map.Entry<Document, List<Waiter>> released : lockManager.removeClient(socketChannel).entrySet()) {
+			logger.log(Level.INFO, "DocumentServer: released "+released.getKey().getName()+" on disconnect");
+			grantLocks(released.getKey(), released.getValue());
+		}
 	}
 
 	public void close() {
 		logger.log(Level.INFO, "DocumentServer close");
+		leaseTimer.shutdownNow();
 		nioEngine.terminate();
+		dispatcher.shutdown();
+		documentsSet.close();
 	}
 	
 	
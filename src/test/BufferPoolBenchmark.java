@@ -0,0 +1,162 @@
+package test;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.atomic.AtomicLong;
+
+import nioEngine.BufferPool;
+import nioEngine.I_NioEngine;
+import nioEngine.I_RecvMsgHandler;
+import nioEngine.Message;
+import nioEngine.NioEngine;
+
+/**
+ * Allocations of an engine in steady state: clients send requests with
+ * a payload and the server answers each with a payload of the same
+ * length. After a warm-up, the frame buffers should all come from the
+ * pool; the bytes still allocated by the reactor thread per message
+ * (message objects, buffer views, commands) are reported alongside.
+ * Then checks that a frame longer than the max frame size closes the
+ * connection without being allocated.
+ * Usage: BufferPoolBenchmark [clients] [payloadSize] [seconds]
+ */
+public class BufferPoolBenchmark {
+
+	private static final int PORT = 9096;
+	private static final int MAX_FRAME_SIZE = 1024 * 1024;
+
+	public static void main(String[] args) throws Exception {
+		int clients = args.length > 0 ? Integer.parseInt(args[0]) : 16;
+		int payloadSize = args.length > 1 ? Integer.parseInt(args[1]) : 16 * 1024;
+		int seconds = args.length > 2 ? Integer.parseInt(args[2]) : 5;
+
+		final NioEngine server = new NioEngine(1);
+		server.setMaxFrameSize(MAX_FRAME_SIZE);
+		final ByteBuffer reply = ByteBuffer.allocate(payloadSize);
+		final AtomicLong messages = new AtomicLong();
+		server.InitializeAsServer(InetAddress.getByName("localhost"), PORT, new I_RecvMsgHandler() {
+			@Override
+			public void receivedCB(Message message, SocketChannel socketChannel) {
+				messages.incrementAndGet();
+				server.send(socketChannel, new Message(I_NioEngine.DOWNLOAD, 0, message.getRequestId(),
+						message.getName(), 0, reply.duplicate()));
+			}
+		});
+		Thread engineThread = new Thread(server);
+		engineThread.setDaemon(true);
+		engineThread.start();
+		InetSocketAddress address = new InetSocketAddress(InetAddress.getByName("localhost"), PORT);
+
+		run(address, clients, payloadSize, 1);
+		BufferPool pool = server.getBufferPool();
+		long acquisitions = pool.getAcquisitions();
+		long allocations = pool.getAllocations();
+		long allocatedBytes = pool.getAllocatedBytes();
+		long received = messages.get();
+		long reactorBytes = reactorAllocatedBytes();
+		run(address, clients, payloadSize, seconds);
+		received = messages.get() - received;
+
+		System.out.println(String.format("%d messages in %d s (%.0f/s): %d buffers taken from the pool, "
+				+ "%d allocated (%d bytes), %d pooled in all",
+				received, seconds, received / (double) seconds, pool.getAcquisitions() - acquisitions,
+				pool.getAllocations() - allocations, pool.getAllocatedBytes() - allocatedBytes,
+				pool.getFreeBuffers()));
+		if (reactorBytes >= 0) {
+			System.out.println(String.format("reactor thread: %.0f bytes allocated per message",
+					(reactorAllocatedBytes() - reactorBytes) / (double) received));
+		}
+
+		// a frame announced longer than the max is refused before allocating it
+		allocatedBytes = pool.getAllocatedBytes();
+		SocketChannel channel = SocketChannel.open(address);
+		ByteBuffer length = ByteBuffer.allocate(4);
+		length.putInt(MAX_FRAME_SIZE + 1).flip();
+		channel.write(length);
+		if (channel.read(ByteBuffer.allocate(1)) != -1) {
+			throw new IllegalStateException("oversized frame accepted");
+		}
+		channel.close();
+		if (pool.getAllocatedBytes() != allocatedBytes) {
+			throw new IllegalStateException("oversized frame allocated");
+		}
+		System.out.println("OK, oversized frame refused");
+		server.terminate();
+		System.exit(0);
+	}
+
+	/**
+	 * Clients sending requests of payloadSize bytes, one at a time
+	 */
+	private static void run(final InetSocketAddress address, int clients, final int payloadSize, int seconds)
+			throws InterruptedException {
+		final long end = System.currentTimeMillis() + seconds * 1000L;
+		Thread[] threads = new Thread[clients];
+		for (int i = 0; i < clients; i++) {
+			final String name = "doc" + i;
+			threads[i] = new Thread() {
+				public void run() {
+					try {
+						SocketChannel channel = SocketChannel.open(address);
+						channel.socket().setTcpNoDelay(true);
+						// encoded once: the clients' allocations stay out of the measure
+						ByteBuffer[] request = new Message(I_NioEngine.UPLOAD, 0, 1, name, 0,
+								ByteBuffer.allocate(payloadSize)).encode();
+						ByteBuffer size = ByteBuffer.allocate(4);
+						ByteBuffer frame = ByteBuffer.allocate(Message.HEADER_LENGTH + name.length() + payloadSize);
+						while (System.currentTimeMillis() < end) {
+							for (ByteBuffer buffer : request) {
+								buffer.rewind();
+							}
+							while (request[request.length - 1].hasRemaining()) {
+								channel.write(request);
+							}
+							size.clear();
+							readFully(channel, size);
+							frame.clear();
+							frame.limit(size.getInt(0));
+							readFully(channel, frame);
+						}
+						channel.close();
+					} catch (IOException e) {
+						e.printStackTrace();
+					}
+				}
+			};
+			threads[i].start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+	}
+
+	private static void readFully(SocketChannel channel, ByteBuffer buffer) throws IOException {
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer) < 0) {
+				throw new IOException("connection closed");
+			}
+		}
+	}
+
+	/**
+	 * @return the bytes allocated so far by the reactor thread, -1 if the
+	 * runtime does not tell
+	 */
+	private static long reactorAllocatedBytes() {
+		java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		if (!(threads instanceof com.sun.management.ThreadMXBean)) {
+			return -1;
+		}
+		for (Thread thread : Thread.getAllStackTraces().keySet()) {
+			if (thread.getName().equals("NioEngine-reactor-0")) {
+				return ((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes(thread.getId());
+			}
+		}
+		return -1;
+	}
+
+}
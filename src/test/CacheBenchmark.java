@@ -0,0 +1,84 @@
+package test;
+
+import java.util.Random;
+
+import clients.Cache;
+import clients.I_EvictionPolicy;
+import clients.LruPolicy;
+import clients.WTinyLfuPolicy;
+
+/**
+ * Hit rate of the client cache eviction policies on a skewed workload:
+ * Zipf-distributed requests mixed with scans of documents read once.
+ * Usage: CacheBenchmark [documents] [cachedDocuments] [requests]
+ */
+public class CacheBenchmark {
+
+	private static final int DOCUMENT_SIZE = 1024;
+
+	public static void main(String[] args) {
+		int documents = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+		int cachedDocuments = args.length > 1 ? Integer.parseInt(args[1]) : 500;
+		int requests = args.length > 2 ? Integer.parseInt(args[2]) : 1000000;
+
+		run("LRU", new LruPolicy(), documents, cachedDocuments, requests);
+		run("W-TinyLFU", new WTinyLfuPolicy(Integer.highestOneBit(cachedDocuments * 4) * 2),
+				documents, cachedDocuments, requests);
+	}
+
+	private static void run(String name, I_EvictionPolicy policy, int documents,
+			int cachedDocuments, int requests) {
+		Cache cache = new Cache((long) cachedDocuments * DOCUMENT_SIZE, policy);
+		double[] cumulative = zipf(documents, 0.9);
+		Random random = new Random(42);
+		byte[] content = new byte[DOCUMENT_SIZE];
+		int scanned = documents;
+		long start = System.nanoTime();
+		for (int i = 0; i < requests; i++) {
+			String url;
+			if (i % 10 < 2) {
+				// one-hit documents
+				url = "doc" + (scanned++);
+			}
+			else {
+				url = "doc" + sample(cumulative, random.nextDouble());
+			}
+			if (!cache.exists(url)) {
+				cache.addCachedDocument(url, content, 1);
+			}
+		}
+		long elapsed = System.nanoTime() - start;
+		System.out.println(String.format("%-10s hit rate %.1f%%, %d evictions, %.0f ns/request",
+				name, 100.0 * cache.getHits() / requests, cache.getEvictions(),
+				(double) elapsed / requests));
+	}
+
+	private static double[] zipf(int n, double exponent) {
+		double[] cumulative = new double[n];
+		double sum = 0;
+		for (int i = 0; i < n; i++) {
+			sum += 1 / Math.pow(i + 1, exponent);
+			cumulative[i] = sum;
+		}
+		for (int i = 0; i < n; i++) {
+			cumulative[i] /= sum;
+		}
+		return cumulative;
+	}
+
+	private static int sample(double[] cumulative, double value) {
+		int low = 0;
+		int high = cumulative.length - 1;
+		while (low < high) {
+			int middle = (low + high) >>> 1;
+			if (cumulative[middle] < value) {
+				low = middle + 1;
+			}
+			else {
+				high = middle;
+			}
+		}
+		return low;
+	}
+
+}
@@ -0,0 +1,75 @@
+package test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.atomic.AtomicLong;
+
+import documents.Document;
+import documents.DocumentsSet;
+
+/**
+ * Throughput of durable document changes with several threads, each one
+ * changing its own document: the threads waiting for the log to be
+ * forced share the same force (group commit).
+ * "update" replaces the whole content, "append" adds a few bytes.
+ * Usage: CommitBenchmark [seconds] [contentSize]
+ */
+public class CommitBenchmark {
+
+	public static void main(String[] args) throws Exception {
+		int seconds = args.length > 0 ? Integer.parseInt(args[0]) : 2;
+		int size = args.length > 1 ? Integer.parseInt(args[1]) : 4096;
+		File directory = Files.createTempDirectory("commits").toFile();
+		for (int i = 0; i < 32; i++) {
+			FileOutputStream fos = new FileOutputStream(new File(directory, "doc" + i));
+			fos.write(new byte[size]);
+			fos.close();
+		}
+		DocumentsSet documentsSet = new DocumentsSet(directory.getPath());
+		for (int threads = 1; threads <= 32; threads *= 2) {
+			long update = run(documentsSet, false, threads, seconds, size);
+			long append = run(documentsSet, true, threads, seconds, size);
+			System.out.println(String.format("%d threads: update %d commits/s, append %d commits/s",
+					threads, update, append));
+		}
+		documentsSet.close();
+	}
+
+	private static long run(DocumentsSet documentsSet, final boolean append, int threadsNumber,
+			int seconds, final int size) throws InterruptedException {
+		final AtomicLong commits = new AtomicLong();
+		final long end = System.currentTimeMillis() + seconds * 1000L;
+		Thread[] threads = new Thread[threadsNumber];
+		for (int i = 0; i < threadsNumber; i++) {
+			final Document document = documentsSet.getDocument("doc" + i);
+			threads[i] = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					byte[] content = new byte[size];
+					byte[] appended = new byte[16];
+					try {
+						while (System.currentTimeMillis() < end) {
+							if (append) {
+								document.append(appended);
+							}
+							else {
+								document.update(content);
+							}
+							commits.incrementAndGet();
+						}
+					} catch (IOException e) {
+						e.printStackTrace();
+					}
+				}
+			});
+			threads[i].start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		return commits.get() / seconds;
+	}
+
+}
@@ -0,0 +1,95 @@
+package test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+import nioEngine.DeflateCodec;
+import nioEngine.I_NioEngine;
+import nioEngine.NioEngine;
+import clients.ServerProxy;
+import documents.Document;
+
+/**
+ * Downloads text documents, and documents of random bytes, with and
+ * without a compression codec on the client side: the first ones should
+ * travel compressed, the others as they are, all with the same content.
+ * Usage: CompressionTest [documents] [documentSize]
+ */
+public class CompressionTest {
+
+	private static final int PORT = 9094;
+
+	public static void main(String[] args) throws IOException, InterruptedException, ExecutionException {
+		int documents = args.length > 0 ? Integer.parseInt(args[0]) : 200;
+		int documentSize = args.length > 1 ? Integer.parseInt(args[1]) : 64 * 1024;
+
+		File directory = createDocuments(documents, documentSize);
+		TestFixture fixture = new TestFixture(directory, PORT);
+
+		for (boolean compression : new boolean[] { false, true }) {
+			NioEngine nioEngine = new NioEngine();
+			if (compression) {
+				nioEngine.setCompression(I_NioEngine.DEFAULT_COMPRESSION_THRESHOLD, new DeflateCodec());
+			}
+			ServerProxy serverProxy = fixture.connect(nioEngine);
+
+			long start = System.nanoTime();
+			List<CompletableFuture<Document>> futures = new ArrayList<CompletableFuture<Document>>(documents);
+			for (int i = 0; i < documents; i++) {
+				futures.add(serverProxy.downloadDocumentAsync("doc" + i));
+			}
+			CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[documents])).get();
+			long elapsed = System.nanoTime() - start;
+			for (int i = 0; i < documents; i++) {
+				check(futures.get(i).get(), new File(directory, "doc" + i));
+			}
+
+			System.out.println(String.format("%s: %d downloads in %.1f ms, %d KB received as %d KB (ratio %.2f)",
+					compression ? "deflate" : "no codec", documents, elapsed / 1e6,
+					nioEngine.getUncompressedBytes() >> 10, nioEngine.getCompressedBytes() >> 10,
+					nioEngine.getCompressionRatio()));
+			nioEngine.terminate();
+		}
+		fixture.close();
+		System.exit(0);
+	}
+
+	private static void check(Document document, File file) throws IOException {
+		if (!Arrays.equals(document.getData(), Files.readAllBytes(file.toPath()))) {
+			throw new IllegalStateException("unexpected content for " + file.getName());
+		}
+	}
+
+	/**
+	 * Even documents are made of words, odd ones of random bytes
+	 */
+	private static File createDocuments(int number, int size) throws IOException {
+		File directory = TestFixture.createDirectory();
+		String[] words = { "lock", "unlock", "download", "upload", "document", "server", "client", "revision" };
+		Random random = new Random(1);
+		for (int i = 0; i < number; i++) {
+			byte[] content = new byte[size];
+			if (i % 2 == 0) {
+				StringBuilder text = new StringBuilder();
+				while (text.length() < size) {
+					text.append(words[random.nextInt(words.length)]).append(' ');
+				}
+				System.arraycopy(text.toString().getBytes(StandardCharsets.UTF_8), 0, content, 0, size);
+			}
+			else {
+				random.nextBytes(content);
+			}
+			TestFixture.writeDocument(directory, "doc" + i, content);
+		}
+		return directory;
+	}
+
+}
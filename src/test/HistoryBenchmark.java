@@ -0,0 +1,63 @@
+package test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.nio.file.Files;
+import java.util.Random;
+
+import documents.ChunkStore;
+import documents.Document;
+import documents.DocumentsSet;
+
+/**
+ * Space taken by the history of documents that are near-copies of their
+ * previous revisions and of each other: each revision inserts a few bytes
+ * at a random place, and every document starts as a copy of the first one
+ * with a small change.
+ * Usage: HistoryBenchmark [documents] [revisions] [size]
+ */
+public class HistoryBenchmark {
+
+	public static void main(String[] args) throws Exception {
+		int documents = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+		int revisions = args.length > 1 ? Integer.parseInt(args[1]) : 50;
+		int size = args.length > 2 ? Integer.parseInt(args[2]) : 1024 * 1024;
+		Random random = new Random(1);
+		File directory = Files.createTempDirectory("history").toFile();
+		byte[] original = new byte[size];
+		random.nextBytes(original);
+		for (int i = 0; i < documents; i++) {
+			byte[] copy = original.clone();
+			copy[random.nextInt(size)] = (byte) i;
+			FileOutputStream fos = new FileOutputStream(new File(directory, "doc" + i));
+			fos.write(copy);
+			fos.close();
+		}
+		DocumentsSet documentsSet = new DocumentsSet(directory.getPath());
+		ChunkStore history = documentsSet.getHistory();
+		long start = System.nanoTime();
+		for (int i = 0; i < documents; i++) {
+			Document document = documentsSet.getDocument("doc" + i);
+			history.archive(document, 0);
+			for (int r = 0; r < revisions; r++) {
+				byte[] content = document.getData();
+				int offset = random.nextInt(content.length);
+				byte[] next = new byte[content.length + 16];
+				System.arraycopy(content, 0, next, 0, offset);
+				byte[] inserted = new byte[16];
+				random.nextBytes(inserted);
+				System.arraycopy(inserted, 0, next, offset, inserted.length);
+				System.arraycopy(content, offset, next, offset + 16, content.length - offset);
+				document.update(next);
+				history.archive(document, offset);
+			}
+		}
+		double seconds = (System.nanoTime() - start) / 1e9;
+		System.out.println(String.format("%d revisions, %d MB archived in %.1f s (%.0f MB/s), %d MB stored (%.1f%%)",
+				documents * (revisions + 1), history.getArchivedBytes() >> 20, seconds,
+				history.getArchivedBytes() / 1048576.0 / seconds, history.getStoredBytes() >> 20,
+				100.0 * history.getStoredBytes() / history.getArchivedBytes()));
+		documentsSet.close();
+	}
+
+}
@@ -0,0 +1,139 @@
+package test;
+
+import java.io.IOException;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import nioEngine.I_NioEngine;
+import documents.Document;
+import documents.LockManager;
+import documents.Waiter;
+
+/**
+ * Throughput of the lock manager with several threads acquiring and
+ * releasing locks and read leases, mostly on a few hot documents.
+ * "striped" calls the lock manager directly, "global" serializes every
+ * call on one monitor, as the server did before.
+ * A request that is queued waits until the thread releasing the document
+ * grants it.
+ * Usage: LockContentionBenchmark [seconds] [hotDocuments] [coldDocuments] [readPercent]
+ */
+public class LockContentionBenchmark {
+
+	private static final Object GLOBAL = new Object();
+
+	public static void main(String[] args) throws Exception {
+		final int seconds = args.length > 0 ? Integer.parseInt(args[0]) : 2;
+		final int hot = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+		final int cold = args.length > 2 ? Integer.parseInt(args[2]) : 1000;
+		final int readPercent = args.length > 3 ? Integer.parseInt(args[3]) : 80;
+		System.out.println(Runtime.getRuntime().availableProcessors() + " processors, " + hot
+				+ " hot and " + cold + " cold documents, " + readPercent + "% reads");
+		// warm-up
+		run(false, 2, 1, hot, cold, readPercent);
+		run(true, 2, 1, hot, cold, readPercent);
+		for (int threads = 1; threads <= 8; threads *= 2) {
+			long striped = run(false, threads, seconds, hot, cold, readPercent);
+			long global = run(true, threads, seconds, hot, cold, readPercent);
+			System.out.println(String.format("%d threads: striped %d ops/s, global %d ops/s",
+					threads, striped, global));
+		}
+	}
+
+	private static long run(final boolean global, int threadsNumber, int seconds, final int hot,
+			int cold, final int readPercent) throws IOException, InterruptedException {
+		final LockManager lockManager = new LockManager();
+		final Document[] documents = new Document[hot + cold];
+		for (int i = 0; i < documents.length; i++) {
+			documents[i] = new Document("doc" + i, new byte[0], 1);
+		}
+		// each thread is a client, told by the releasing threads when it is granted
+		final Map<SocketChannel, AtomicBoolean> grants = new ConcurrentHashMap<SocketChannel, AtomicBoolean>();
+		final AtomicBoolean running = new AtomicBoolean(true);
+		final AtomicLong operations = new AtomicLong();
+		List<Thread> threads = new ArrayList<Thread>();
+		List<SocketChannel> clients = new ArrayList<SocketChannel>();
+		for (int t = 0; t < threadsNumber; t++) {
+			final SocketChannel client = SocketChannel.open();
+			final AtomicBoolean granted = new AtomicBoolean();
+			final Random random = new Random(t);
+			clients.add(client);
+			grants.put(client, granted);
+			threads.add(new Thread() {
+				@Override
+				public void run() {
+					long done = 0;
+					while (running.get()) {
+						// 90% of the requests on the hot documents
+						Document document = random.nextInt(10) < 9
+								? documents[random.nextInt(hot)]
+								: documents[hot + random.nextInt(documents.length - hot)];
+						boolean read = random.nextInt(100) < readPercent;
+						Waiter waiter = new Waiter(client, 0,
+								read ? I_NioEngine.READ : I_NioEngine.DOWNLOAD, 0);
+						if (!acquire(global, lockManager, document, waiter)) {
+							while (!granted.get()) {
+								Thread.yield();
+							}
+							granted.set(false);
+						}
+						List<Waiter> next = release(global, lockManager, document, client, read);
+						for (Waiter grantedWaiter : next) {
+							grants.get(grantedWaiter.getClient()).set(true);
+						}
+						done++;
+					}
+					operations.addAndGet(done);
+				}
+			});
+		}
+		for (Thread thread : threads) {
+			thread.start();
+		}
+		Thread.sleep(seconds * 1000L);
+		running.set(false);
+		// the last requests may wait for a thread that has stopped
+		for (AtomicBoolean granted : grants.values()) {
+			granted.set(true);
+		}
+		for (Thread thread : threads) {
+			thread.join(1000);
+			while (thread.isAlive()) {
+				for (AtomicBoolean granted : grants.values()) {
+					granted.set(true);
+				}
+				thread.join(100);
+			}
+		}
+		for (SocketChannel client : clients) {
+			client.close();
+		}
+		return operations.get() / seconds;
+	}
+
+	private static boolean acquire(boolean global, LockManager lockManager, Document document, Waiter waiter) {
+		if (global) {
+			synchronized (GLOBAL) {
+				return lockManager.acquire(document, waiter);
+			}
+		}
+		return lockManager.acquire(document, waiter);
+	}
+
+	private static List<Waiter> release(boolean global, LockManager lockManager, Document document,
+			SocketChannel client, boolean read) {
+		if (global) {
+			synchronized (GLOBAL) {
+				return read ? lockManager.releaseRead(document, client) : lockManager.unlock(document, client);
+			}
+		}
+		return read ? lockManager.releaseRead(document, client) : lockManager.unlock(document, client);
+	}
+
+}
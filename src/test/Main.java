@@ -29,7 +29,7 @@ public class Main {
 //			documentClient.getServerProxy().lockDocument("essaidoc2.txt");
 //			pause();
 //			documentClient.getCache().print();
-//			documentClient.getCache().appendToDocument(0, new String("de nouvelles données").getBytes());
+//			documentClient.getCache().appendToDocument("essaidoc1.txt", new String("de nouvelles données").getBytes());
 //			pause();
 //			documentClient.getCache().print();
 //			documentClient.unlockDocument(0);
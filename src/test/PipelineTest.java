@@ -0,0 +1,66 @@
+package test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+import clients.ServerProxy;
+import documents.Document;
+
+/**
+ * Downloads documents through the asynchronous API, first waiting for
+ * each answer before sending the next request, then with all the
+ * requests in flight at once on the same connection.
+ * Usage: PipelineTest [documents] [documentSize]
+ */
+public class PipelineTest {
+
+	private static final int PORT = 9093;
+
+	public static void main(String[] args) throws IOException, InterruptedException, ExecutionException {
+		int documents = args.length > 0 ? Integer.parseInt(args[0]) : 500;
+		int documentSize = args.length > 1 ? Integer.parseInt(args[1]) : 4096;
+
+		File directory = TestFixture.createDirectory();
+		byte[] content = new byte[documentSize];
+		for (int i = 0; i < documents; i++) {
+			TestFixture.writeDocument(directory, "doc" + i, content);
+		}
+		TestFixture fixture = new TestFixture(directory, PORT);
+		ServerProxy serverProxy = fixture.connect();
+
+		// the client owns the locks after the first round, both rounds
+		// are answered at once
+		long start = System.nanoTime();
+		for (int i = 0; i < documents; i++) {
+			check(serverProxy.downloadDocumentAsync("doc" + i).get(), i, documentSize);
+		}
+		long sequential = System.nanoTime() - start;
+
+		start = System.nanoTime();
+		List<CompletableFuture<Document>> futures = new ArrayList<CompletableFuture<Document>>(documents);
+		for (int i = 0; i < documents; i++) {
+			futures.add(serverProxy.downloadDocumentAsync("doc" + i));
+		}
+		CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[documents])).get();
+		long pipelined = System.nanoTime() - start;
+		for (int i = 0; i < documents; i++) {
+			check(futures.get(i).get(), i, documentSize);
+		}
+
+		System.out.println(String.format("%d downloads: one at a time %.1f ms, pipelined %.1f ms",
+				documents, sequential / 1e6, pipelined / 1e6));
+		fixture.close();
+		System.exit(0);
+	}
+
+	private static void check(Document document, int index, int size) {
+		if (!document.getName().equals("doc" + index) || document.getData().length != size) {
+			throw new IllegalStateException("unexpected answer for doc" + index + ": " + document.getName());
+		}
+	}
+
+}
@@ -0,0 +1,130 @@
+package test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import nioEngine.I_NioEngine;
+import nioEngine.Message;
+import server.DocumentServer;
+
+/**
+ * Throughput of the DocumentServer with one reactor versus one reactor
+ * per core, under many clients downloading concurrently.
+ * Each client owns a document and loops on DOWNLOAD / UNLOCK.
+ * Usage: ReactorBenchmark [clients] [documentSize] [seconds]
+ */
+public class ReactorBenchmark {
+
+	private static final int PORT = 9092;
+
+	public static void main(String[] args) throws IOException, InterruptedException {
+		int clients = args.length > 0 ? Integer.parseInt(args[0]) : 64;
+		int documentSize = args.length > 1 ? Integer.parseInt(args[1]) : 16 * 1024;
+		int seconds = args.length > 2 ? Integer.parseInt(args[2]) : 5;
+		int cores = Runtime.getRuntime().availableProcessors();
+
+		// per-request logging would dominate the measure
+		Logger.getLogger(DocumentServer.class.getName()).setLevel(Level.WARNING);
+		File directory = createDocuments(clients, documentSize);
+		// warm-up
+		run(directory, cores, PORT + 2, clients, 1);
+		double single = run(directory, 1, PORT, clients, seconds);
+		double multi = run(directory, cores, PORT + 1, clients, seconds);
+		System.out.println(String.format("1 reactor: %.0f downloads/s, %d reactors: %.0f downloads/s (x%.2f)",
+				single, cores, multi, multi / single));
+		System.exit(0);
+	}
+
+	private static double run(File directory, int reactors, int port, int clients, int seconds)
+			throws IOException, InterruptedException {
+		DocumentServer documentServer = new DocumentServer(directory.getPath(), port, reactors);
+		final InetSocketAddress address = new InetSocketAddress(InetAddress.getByName("localhost"), port);
+		final AtomicLong downloads = new AtomicLong();
+		final long end = System.currentTimeMillis() + seconds * 1000L;
+
+		Thread[] threads = new Thread[clients];
+		for (int i = 0; i < clients; i++) {
+			final String name = "doc" + i;
+			threads[i] = new Thread() {
+				public void run() {
+					try {
+						SocketChannel channel = SocketChannel.open(address);
+						channel.socket().setTcpNoDelay(true);
+						while (System.currentTimeMillis() < end) {
+							write(channel, new Message(I_NioEngine.DOWNLOAD, name));
+							read(channel);
+							write(channel, new Message(I_NioEngine.UNLOCK, name));
+							downloads.incrementAndGet();
+						}
+						channel.close();
+					} catch (IOException e) {
+						e.printStackTrace();
+					}
+				}
+			};
+			threads[i].start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		documentServer.close();
+		double throughput = downloads.get() / (double) seconds;
+		System.out.println(reactors + " reactor(s): " + downloads.get() + " downloads in " + seconds + " s");
+		return throughput;
+	}
+
+	private static void write(SocketChannel channel, Message message) throws IOException {
+		ByteBuffer[] buffers = message.encode();
+		long remaining = 0;
+		for (ByteBuffer buffer : buffers) {
+			remaining += buffer.remaining();
+		}
+		while (remaining > 0) {
+			remaining -= channel.write(buffers);
+		}
+	}
+
+	private static byte[] read(SocketChannel channel) throws IOException {
+		ByteBuffer size = ByteBuffer.allocate(4);
+		readFully(channel, size);
+		ByteBuffer data = ByteBuffer.allocate(size.getInt(0));
+		readFully(channel, data);
+		return data.array();
+	}
+
+	private static void readFully(SocketChannel channel, ByteBuffer buffer) throws IOException {
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer) < 0) {
+				throw new IOException("connection closed");
+			}
+		}
+	}
+
+	private static File createDocuments(int number, int size) throws IOException {
+		File directory = File.createTempFile("documents", "");
+		directory.delete();
+		directory.mkdir();
+		directory.deleteOnExit();
+		byte[] content = new byte[size];
+		for (int i = 0; i < size; i++) {
+			content[i] = (byte) ('a' + i % 26);
+		}
+		for (int i = 0; i < number; i++) {
+			File file = new File(directory, "doc" + i);
+			FileOutputStream fos = new FileOutputStream(file);
+			fos.write(content);
+			fos.close();
+			file.deleteOnExit();
+		}
+		return directory;
+	}
+
+}
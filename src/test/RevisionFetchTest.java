@@ -0,0 +1,82 @@
+package test;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+
+import nioEngine.I_NioEngine;
+import clients.ServerProxy;
+import documents.Delta;
+import documents.Document;
+
+/**
+ * Fetches a revision larger than a frame by its manifest and its chunks,
+ * asked in batches, once without a base and once more after a change,
+ * from the previous revision. The same revision cannot be downloaded
+ * whole with HISTORY.
+ * Usage: RevisionFetchTest [sizeInMB]
+ */
+public class RevisionFetchTest {
+
+	private static final int PORT = 9097;
+
+	public static void main(String[] args) throws Exception {
+		int size = (args.length > 0 ? Integer.parseInt(args[0]) : 80) * 1024 * 1024;
+		if (size <= I_NioEngine.DEFAULT_MAX_FRAME_SIZE) {
+			throw new IllegalArgumentException("the revision must be larger than a frame");
+		}
+
+		File directory = TestFixture.createDirectory();
+		byte[] content = new byte[size];
+		new Random(1).nextBytes(content);
+		TestFixture.writeDocument(directory, "big", content);
+		TestFixture fixture = new TestFixture(directory, PORT);
+		ServerProxy serverProxy = fixture.connect();
+
+		long start = System.nanoTime();
+		Document fetched = serverProxy.fetchRevisionAsync("big", 0, null).get();
+		report("fetch", size, start);
+		check(fetched, content);
+
+		try {
+			serverProxy.downloadRevisionAsync("big", 0).get();
+			throw new IllegalStateException("revision of " + size + " bytes downloaded whole");
+		} catch (ExecutionException e) {
+			System.out.println("whole download refused: " + e.getCause().getMessage());
+		}
+
+		// a few bytes appended: only the last chunks are asked
+		byte[] appended = "appended".getBytes();
+		Delta delta = new Delta(size);
+		delta.replace(size, 0, appended);
+		int base = serverProxy.lockDocumentAsync("big").get().getRevision().value();
+		serverProxy.commitDeltaAsync("big", base, delta).get();
+		start = System.nanoTime();
+		Document next = serverProxy.fetchRevisionAsync("big", 0, fetched).get();
+		report("fetch from the previous revision", size, start);
+		check(next, Files.readAllBytes(new File(directory, "big").toPath()));
+		if (next.getData().length != size + appended.length) {
+			throw new IllegalStateException("unexpected length " + next.getData().length);
+		}
+
+		fixture.close();
+		System.out.println("OK");
+		System.exit(0);
+	}
+
+	private static void check(Document document, byte[] expected) {
+		if (!Arrays.equals(document.getData(), expected)) {
+			throw new IllegalStateException("unexpected content of " + document.getName()
+					+ " revision " + document.getRevision().value());
+		}
+	}
+
+	private static void report(String transfer, long size, long start) {
+		double seconds = (System.nanoTime() - start) / 1e9;
+		System.out.println(String.format("%s: %d MB in %.2f s (%.0f MB/s)",
+				transfer, size >> 20, seconds, (size >> 20) / seconds));
+	}
+
+}
@@ -0,0 +1,147 @@
+package test;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Random;
+
+import clients.ServerProxy;
+import documents.Document;
+import documents.DocumentsSet;
+import documents.Manifest;
+import documents.UploadStage;
+
+/**
+ * Downloads a document into a file and reads ranges of it, uploads a
+ * file as its new revision, in chunks, then resumes a download and an
+ * upload left half done. Run with a heap smaller than the document
+ * (e.g. -Xmx32m) to check the transfers do not hold it in memory.
+ * Usage: StreamingTest [sizeInMB]
+ */
+public class StreamingTest {
+
+	private static final int PORT = 9095;
+
+	public static void main(String[] args) throws Exception {
+		long size = (args.length > 0 ? Long.parseLong(args[0]) : 128) * 1024 * 1024;
+
+		File directory = TestFixture.createDirectory();
+		File document = new File(directory, "big");
+		write(document, size, 1);
+		TestFixture fixture = new TestFixture(directory, PORT);
+		ServerProxy serverProxy = fixture.connect();
+
+		File target = File.createTempFile("download", "");
+		long start = System.nanoTime();
+		int revision = serverProxy.downloadToFileAsync("big", target).get();
+		report("download", size, start);
+		check(document, target);
+
+		// a page in the middle, and the last bytes
+		checkRange(serverProxy.readRangeAsync("big", revision, size / 3, 4096).get(), target, size / 3, 4096);
+		checkRange(serverProxy.readRangeAsync("big", 0, size - 100, 4096).get(), target, size - 100, 100);
+
+		// half of the revision left by an interrupted download
+		File resumed = File.createTempFile("resumed", "");
+		write(new File(resumed.getPath() + "." + revision + ".part"), size / 2, 1);
+		start = System.nanoTime();
+		serverProxy.downloadToFileAsync("big", resumed).get();
+		report("resumed download", size / 2, start);
+		check(document, resumed);
+
+		File upload = File.createTempFile("upload", "");
+		write(upload, size, 2);
+		int base = serverProxy.lockDocumentAsync("big").get().getRevision().value();
+		start = System.nanoTime();
+		revision = serverProxy.commitFileAsync("big", base, upload).get();
+		report("upload", size, start);
+		check(upload, document);
+
+		// half of the content staged by an interrupted upload
+		write(upload, size, 3);
+		base = serverProxy.lockDocumentAsync("big").get().getRevision().value();
+		write(new File(new File(directory, UploadStage.UPLOADS_DIRECTORY), "big." + base), size / 2, 3);
+		start = System.nanoTime();
+		revision = serverProxy.commitFileAsync("big", base, upload).get();
+		report("resumed upload", size / 2, start);
+		check(upload, document);
+
+		fixture.close();
+		DocumentsSet documentsSet = new DocumentsSet(directory.getPath());
+		Document restarted = documentsSet.getDocument("big");
+		if (restarted.getRevision().value() != revision) {
+			throw new IllegalStateException("revision " + restarted.getRevision().value()
+					+ " after restart instead of " + revision);
+		}
+		check(upload, document);
+		documentsSet.close();
+		System.out.println("OK, max heap " + (Runtime.getRuntime().maxMemory() >> 20) + " MB");
+		System.exit(0);
+	}
+
+	/**
+	 * Write a file of pseudo-random bytes, the same ones for the same
+	 * seed, whatever its length
+	 */
+	private static void write(File file, long size, long seed) throws IOException {
+		Random random = new Random(seed);
+		byte[] buffer = new byte[64 * 1024];
+		OutputStream out = new FileOutputStream(file);
+		try {
+			for (long written = 0; written < size; written += buffer.length) {
+				random.nextBytes(buffer);
+				out.write(buffer, 0, (int) Math.min(buffer.length, size - written));
+			}
+		} finally {
+			out.close();
+		}
+	}
+
+	private static void check(File expected, File actual) throws IOException {
+		if (expected.length() != actual.length() || !Arrays.equals(digest(expected), digest(actual))) {
+			throw new IllegalStateException(actual + " differs from " + expected);
+		}
+	}
+
+	private static void checkRange(Document range, File file, long offset, int length) throws IOException {
+		byte[] expected = new byte[length];
+		RandomAccessFile in = new RandomAccessFile(file, "r");
+		try {
+			in.seek(offset);
+			in.readFully(expected);
+		} finally {
+			in.close();
+		}
+		if (!Arrays.equals(range.getData(), expected)) {
+			throw new IllegalStateException("unexpected range [" + offset + ", +" + length + "]");
+		}
+	}
+
+	private static byte[] digest(File file) throws IOException {
+		MessageDigest digest = Manifest.newDigest();
+		byte[] buffer = new byte[64 * 1024];
+		InputStream in = new FileInputStream(file);
+		try {
+			int count;
+			while ((count = in.read(buffer)) > 0) {
+				digest.update(buffer, 0, count);
+			}
+		} finally {
+			in.close();
+		}
+		return digest.digest();
+	}
+
+	private static void report(String transfer, long size, long start) {
+		double seconds = (System.nanoTime() - start) / 1e9;
+		System.out.println(String.format("%s: %d MB in %.2f s (%.0f MB/s)",
+				transfer, size >> 20, seconds, (size >> 20) / seconds));
+	}
+
+}
@@ -0,0 +1,129 @@
+package test;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import nioEngine.I_NioEngine;
+import nioEngine.I_RecvMsgHandler;
+import nioEngine.Message;
+import nioEngine.NioEngine;
+
+/**
+ * Stress test of the server-side NioEngine framing.
+ * Opens several thousand connections and sends their frames a few bytes at
+ * a time, interleaving all connections, so that every frame is reassembled
+ * from many handleRead calls while other connections are mid-frame.
+ * Usage: StressTest [connections] [messagesPerConnection] [port]
+ */
+public class StressTest {
+
+	private static final int BODY_LENGTH = 300;
+	private static final int SLICE = 7; // bytes written per connection per round
+
+	public static void main(String[] args) throws IOException, InterruptedException {
+		int connections = args.length > 0 ? Integer.parseInt(args[0]) : 5000;
+		int messages = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+		int port = args.length > 2 ? Integer.parseInt(args[2]) : 9091;
+		InetAddress host = InetAddress.getByName("localhost");
+
+		final AtomicInteger received = new AtomicInteger();
+		final AtomicInteger corrupted = new AtomicInteger();
+		NioEngine server = new NioEngine();
+		server.InitializeAsServer(host, port, new I_RecvMsgHandler() {
+			@Override
+			public void receivedCB(Message message, SocketChannel socketChannel) {
+				if (!checkMessage(message)) {
+					corrupted.incrementAndGet();
+				}
+				received.incrementAndGet();
+			}
+		});
+		Thread serverThread = new Thread(server);
+		serverThread.setDaemon(true);
+		serverThread.start();
+
+		// open every connection before sending anything
+		SocketChannel[] channels = new SocketChannel[connections];
+		ByteBuffer[] outBuffers = new ByteBuffer[connections];
+		for (int i = 0; i < connections; i++) {
+			channels[i] = SocketChannel.open(new InetSocketAddress(host, port));
+			channels[i].configureBlocking(false);
+			outBuffers[i] = ByteBuffer.allocate(messages * (4 + Message.HEADER_LENGTH + 8 + BODY_LENGTH));
+			for (int m = 0; m < messages; m++) {
+				for (ByteBuffer buffer : makeMessage(i, m).encode()) {
+					outBuffers[i].put(buffer);
+				}
+			}
+			outBuffers[i].flip();
+		}
+
+		long start = System.currentTimeMillis();
+		boolean pending = true;
+		while (pending) {
+			pending = false;
+			for (int i = 0; i < connections; i++) {
+				ByteBuffer buffer = outBuffers[i];
+				if (buffer.hasRemaining()) {
+					int limit = buffer.limit();
+					buffer.limit(Math.min(limit, buffer.position() + SLICE));
+					channels[i].write(buffer);
+					buffer.limit(limit);
+					pending |= buffer.hasRemaining();
+				}
+			}
+		}
+
+		int expected = connections * messages;
+		long deadline = System.currentTimeMillis() + 60000;
+		while (received.get() < expected && System.currentTimeMillis() < deadline) {
+			Thread.sleep(50);
+		}
+		long elapsed = System.currentTimeMillis() - start;
+
+		for (SocketChannel channel : channels) {
+			channel.close();
+		}
+		server.terminate();
+
+		System.out.println(connections + " connections, " + received.get() + "/" + expected
+				+ " messages received, " + corrupted.get() + " corrupted, " + elapsed + " ms");
+		System.exit(received.get() == expected && corrupted.get() == 0 ? 0 : 1);
+	}
+
+	/**
+	 * Message payload: client id, message index, then bytes derived from both
+	 */
+	private static Message makeMessage(int client, int index) {
+		ByteBuffer payload = ByteBuffer.allocate(8 + BODY_LENGTH);
+		payload.putInt(client);
+		payload.putInt(index);
+		for (int b = 0; b < BODY_LENGTH; b++) {
+			payload.put((byte) (client * 31 + index + b));
+		}
+		payload.flip();
+		return new Message(I_NioEngine.UPLOAD, 0, index, null, client, payload);
+	}
+
+	private static boolean checkMessage(Message message) {
+		ByteBuffer payload = message.getPayload();
+		if (payload.remaining() != 8 + BODY_LENGTH) {
+			return false;
+		}
+		int client = payload.getInt();
+		int index = payload.getInt();
+		if (client != message.getRevision() || index != message.getRequestId()) {
+			return false;
+		}
+		for (int b = 0; b < BODY_LENGTH; b++) {
+			if (payload.get() != (byte) (client * 31 + index + b)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+}
@@ -0,0 +1,131 @@
+package test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import nioEngine.I_ChannelStateHandler;
+import nioEngine.I_RecvMsgHandler;
+import nioEngine.Message;
+import nioEngine.NioEngine;
+import server.DocumentServer;
+import clients.ServerProxy;
+
+/**
+ * A server on a directory of documents, and clients connected to it
+ * through the asynchronous API, for the test harnesses
+ */
+public class TestFixture {
+
+	/**
+	 * Answers the requests of a client, and fails them if the
+	 * connection closes
+	 */
+	private static class ProxyHandler implements I_RecvMsgHandler, I_ChannelStateHandler {
+
+		private volatile ServerProxy serverProxy;
+
+		@Override
+		public void receivedCB(Message message, SocketChannel socketChannel) {
+			serverProxy.receivedReply(message);
+		}
+
+		@Override
+		public void writableCB(SocketChannel socketChannel) {
+		}
+
+		@Override
+		public void disconnectedCB(SocketChannel socketChannel) {
+			serverProxy.disconnected();
+		}
+	}
+
+	private final File directory;
+	private final int port;
+	private final DocumentServer documentServer;
+	private final List<NioEngine> clients;
+
+	/**
+	 * Start a server, with a single reactor, on a directory
+	 * @param directory its documents (see createDirectory and writeDocument)
+	 */
+	public TestFixture(File directory, int port) throws IOException {
+		Logger.getLogger(DocumentServer.class.getName()).setLevel(Level.WARNING);
+		this.directory = directory;
+		this.port = port;
+		documentServer = new DocumentServer(directory.getPath(), port, 1);
+		clients = new ArrayList<NioEngine>();
+	}
+
+	/**
+	 * @return a new temporary directory, deleted on exit if empty
+	 */
+	public static File createDirectory() throws IOException {
+		File directory = Files.createTempDirectory("documents").toFile();
+		directory.deleteOnExit();
+		return directory;
+	}
+
+	/**
+	 * Write a document, deleted on exit
+	 */
+	public static void writeDocument(File directory, String name, byte[] content) throws IOException {
+		File file = new File(directory, name);
+		FileOutputStream fos = new FileOutputStream(file);
+		try {
+			fos.write(content);
+		} finally {
+			fos.close();
+		}
+		file.deleteOnExit();
+	}
+
+	public File getDirectory() {
+		return directory;
+	}
+
+	/**
+	 * Connect a client with a new engine
+	 */
+	public ServerProxy connect() throws IOException {
+		return connect(new NioEngine());
+	}
+
+	/**
+	 * Connect a client with an engine set up by the caller (compression...),
+	 * run by a daemon thread until close
+	 */
+	public ServerProxy connect(NioEngine nioEngine) throws IOException {
+		ProxyHandler handler = new ProxyHandler();
+		nioEngine.InitializeAsClient(InetAddress.getByName("localhost"), port, handler);
+		handler.serverProxy = new ServerProxy(nioEngine);
+		Thread engineThread = new Thread(nioEngine);
+		engineThread.setDaemon(true);
+		engineThread.start();
+		synchronized (clients) {
+			clients.add(nioEngine);
+		}
+		return handler.serverProxy;
+	}
+
+	/**
+	 * Stop the clients and the server
+	 */
+	public void close() {
+		synchronized (clients) {
+			for (NioEngine nioEngine : clients) {
+				nioEngine.terminate();
+			}
+			clients.clear();
+		}
+		documentServer.close();
+	}
+
+}